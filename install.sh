@@ -85,6 +85,8 @@ install_command st-bdv-view3d "cmd.BigDataViewerStackDisplay"
 install_command st-resave "cmd.Resave"
 install_command st-add-slice "cmd.AddSlice"
 install_command st-normalize "cmd.Normalize"
+install_command st-rechunk "cmd.Rechunk"
+install_command st-benchmark-compression "cmd.CompressionBenchmark"
 install_command st-add-annotations "cmd.AddAnnotations"
 install_command st-align-pairs "cmd.PairwiseSectionAligner"
 install_command st-align-pairs-add "cmd.AddPairwiseMatch"
@@ -107,6 +109,8 @@ else
     mv st-resave ${INSTALL_DIR}/
     mv st-add-slice ${INSTALL_DIR}/
     mv st-normalize ${INSTALL_DIR}/
+    mv st-rechunk ${INSTALL_DIR}/
+    mv st-benchmark-compression ${INSTALL_DIR}/
     mv st-add-annotations ${INSTALL_DIR}/
     mv st-align-pairs ${INSTALL_DIR}/
 	mv st-align-pairs-add ${INSTALL_DIR}/
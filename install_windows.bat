@@ -53,6 +53,8 @@ call :install_command st-bdv-view3d.bat cmd.BigDataViewerStackDisplay
 call :install_command st-resave.bat cmd.Resave
 call :install_command st-add-slice.bat cmd.AddSlice
 call :install_command st-normalize.bat cmd.Normalize
+call :install_command st-rechunk.bat cmd.Rechunk
+call :install_command st-benchmark-compression.bat cmd.CompressionBenchmark
 call :install_command st-add-annotations.bat cmd.AddAnnotations
 call :install_command st-align-pairs.bat cmd.PairwiseSectionAligner
 call :install_command st-align-pairs-view.bat cmd.ViewPairwiseAlignment
@@ -72,6 +74,8 @@ if "%CD%"=="%INSTALL_DIR%" (
    	move "st-resave.bat" "%INSTALL_DIR%\"
 	move "st-add-slice.bat" "%INSTALL_DIR%\"
 	move "st-normalize.bat" "%INSTALL_DIR%\"
+	move "st-rechunk.bat" "%INSTALL_DIR%\"
+	move "st-benchmark-compression.bat" "%INSTALL_DIR%\"
 	move "st-add-annotations.bat" "%INSTALL_DIR%\"
 	move "st-align-pairs.bat" "%INSTALL_DIR%\"
 	move "st-align-pairs-view.bat" "%INSTALL_DIR%\"
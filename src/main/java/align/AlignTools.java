@@ -2,15 +2,16 @@ package align;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import data.STData;
 import data.STDataStatistics;
 import data.STDataUtils;
 import filter.FilterFactory;
+import filter.FilterPipeline;
 import filter.Filters;
 import filter.GaussianFilterFactory;
 import filter.GaussianFilterFactory.WeightType;
-import filter.MeanFilterFactory;
 import filter.SingleSpotRemovingFilterFactory;
 import gui.bdv.AddedGene.Rendering;
 import ij.ImagePlus;
@@ -33,8 +34,8 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
-import render.MaxDistanceParam;
 import render.Render;
+import util.Threads;
 
 public class AlignTools
 {
@@ -57,6 +58,25 @@ public class AlignTools
 			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
 			final Rendering renderType,
 			final double smoothnessFactor )
+	{
+		// single-threaded, it is usually called for many genes or angles in parallel
+		return display( stdata, stStats, gene, renderInterval, transform, filterFactories, renderType, smoothnessFactor, Threads.createSameThreadExecutorService() );
+	}
+
+	/**
+	 * @param service - for filtering and rendering in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > display(
+			final STData stdata,
+			final STDataStatistics stStats,
+			final String gene,
+			final Interval renderInterval,
+			final AffineTransform2D transform,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final Rendering renderType,
+			final double smoothnessFactor,
+			final ExecutorService service )
 	{
 		//System.out.println( "Mean distance: " + stStats.getMeanDistance());
 		//System.out.println( "Median distance: " + stStats.getMedianDistance() );
@@ -103,10 +123,15 @@ public class AlignTools
 
 		//data = TransformCoordinates.sample( data, stStats.getMedianDistance() );
 
-		// filter the iterable
+		// filter the iterable, one spatial index and one neighborhood search per spot for all filters (as in Render.getRealIterable)
 		if ( filterFactories != null )
-			for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories )
-				data = Filters.filter( data, filterFactory );
+		{
+			if ( filterFactories.size() > 1 )
+				data = FilterPipeline.filter( data, filterFactories, service );
+			else
+				for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories )
+					data = Filters.filterToArray( data, filterFactory, service );
+		}
 
 		//data = Filters.filter( data, new DensityFilterFactory<>( new DoubleType(), medianDistance ) );
 		//data = Filters.filter( data, new MeanFilterFactory<>( outofbounds, medianDistance * 10 ) );
@@ -118,28 +143,8 @@ public class AlignTools
 		//System.out.println( "Min intensity: " + minmax.getA() );
 		//System.out.println( "Max intensity: " + minmax.getB() );
 
-		// for rendering the input pointcloud
-		final RealRandomAccessible< DoubleType > renderRRA;
-
-		if ( renderType == Rendering.Gauss )
-			renderRRA = Render.render( data, new GaussianFilterFactory<>( outofbounds, medianDistance*smoothnessFactor, WeightType.PARTIAL_BY_SUM_OF_WEIGHTS ) );
-		else if ( renderType == Rendering.NN )
-			renderRRA = Render.renderNN( data, outofbounds, new MaxDistanceParam( medianDistance*smoothnessFactor ) );
-		else if ( renderType == Rendering.Mean )
-			renderRRA = Render.render( data, new MeanFilterFactory<>( outofbounds, medianDistance*smoothnessFactor  ) );
-		else // LINEAR
-			renderRRA = Render.renderLinear( data, 5, 3.0, new DoubleType( 0 ), new MaxDistanceParam( medianDistance*smoothnessFactor ) );
-
-		//final RealRandomAccessible< DoubleType > renderRRA = Render.renderNN(data, outofbounds, stStats.getMedianDistance() * 10 );
-
-		// for rendering a 16x (median distance), regular sampled pointcloud
-		//final RealRandomAccessible< DoubleType > renderRRA = Render.render( data, new GaussianFilterFactory<>( outofbounds, stStats.getMedianDistance() / 4.0, WeightType.NONE ) );
-		
-		final RandomAccessibleInterval< DoubleType > rendered = Views.interval( RealViews.affine( renderRRA, transform ), renderInterval );
-		//ImageJFunctions.show( rendered, Threads.createFixedExecutorService() ).setTitle( stdata.toString() );
-		//System.out.println( new Date(System.currentTimeMillis()) + ": Done..." );
-
-		return rendered;
+		// the full image is rasterized, splatting (Gauss) or tiling (all others) is much faster than a search per pixel
+		return Render.rasterize( data, medianDistance, renderType, smoothnessFactor, transform, renderInterval, service );
 	}
 
 	public static RandomAccessibleInterval< DoubleType > displayDensityMap(
@@ -159,7 +164,7 @@ public class AlignTools
 		data = Converters.convert( data, (i,o) -> o.set( 1.0 ), new DoubleType() );
 
 		// remove single spots
-		data = Filters.filter( data, new SingleSpotRemovingFilterFactory<>( outofbounds, stStats.getMedianDistance() * 1.5 ) );
+		data = Filters.filterToArray( data, new SingleSpotRemovingFilterFactory<>( outofbounds, stStats.getMedianDistance() * 1.5 ), Threads.createSameThreadExecutorService() );
 
 		// for rendering the input pointcloud, no weights, just add gaussians as they come along
 		final double gaussRenderSigma = stStats.getMedianDistance();
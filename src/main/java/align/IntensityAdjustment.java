@@ -133,8 +133,10 @@ public class IntensityAdjustment
 						IterableRealInterval< DoubleType > dataI = puckData.get( i0 ).getExprData( gene );
 						IterableRealInterval< DoubleType > dataJ = puckData.get( j0 ).getExprData( gene );
 	
-						dataI = Filters.filter( dataI, new GaussianFilterFactory<>( new DoubleType( 0 ), maxDistance * 4, WeightType.BY_SUM_OF_WEIGHTS ) );
-						dataJ = Filters.filter( dataJ, new GaussianFilterFactory<>( new DoubleType( 0 ), maxDistance * 4, WeightType.BY_SUM_OF_WEIGHTS ) );
+						// the genes already run in parallel, so each one is filtered on its own thread
+						final ExecutorService serviceLocal = Threads.createSameThreadExecutorService();
+						dataI = Filters.filterToArray( dataI, new GaussianFilterFactory<>( new DoubleType( 0 ), maxDistance * 4, WeightType.BY_SUM_OF_WEIGHTS ), serviceLocal );
+						dataJ = Filters.filterToArray( dataJ, new GaussianFilterFactory<>( new DoubleType( 0 ), maxDistance * 4, WeightType.BY_SUM_OF_WEIGHTS ), serviceLocal );
 
 						final KDTree< DoubleType > treeJ = KDTreeUtil.createParallelizableKDTreeFrom( dataJ );
 						final NearestNeighborSearchOnKDTree< DoubleType > searchJ = new NearestNeighborSearchOnKDTree<>( treeJ );
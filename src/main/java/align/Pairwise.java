@@ -2,10 +2,12 @@ package align;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -26,7 +28,9 @@ import imglib2.icp.ICP;
 import imglib2.icp.PointMatchIdentification;
 import imglib2.icp.StDataPointMatchIdentification;
 import imglib2.phasecorrelation.PhaseCorrelation2;
+import imglib2.phasecorrelation.PhaseCorrelation2Workspace;
 import imglib2.phasecorrelation.PhaseCorrelationPeak2;
+import imglib2.phasecorrelation.SummedAreaTable;
 import io.Path;
 import io.SpatialDataContainer;
 import mpicbg.models.AffineModel2D;
@@ -53,6 +57,22 @@ public class Pairwise
 	// how many peaks to test in the PCM
 	public static final int nHighest = 5;
 
+	// how many of the candidate shifts (up to 4 per PCM peak) ranked best by their estimated cross correlation are
+	// verified exactly, and the subsampling of the estimate (see PhaseCorrelation2Util.calculateCrossCorrSAT)
+	public static final int numVerifiedShifts = 5;
+	public static final int crossCorrSubsampling = 2;
+
+	// smallest radius of the power spectrum used to estimate the rotation for RotationSearch.POLAR_SPECTRUM
+	public static final int minPolarSpectrumRadius = 3;
+
+	/**
+	 * How the rotation between two datasets is found:
+	 * EXHAUSTIVE tests all angles at full resolution,
+	 * COARSE_TO_FINE tests all angles on downsampled renderings and refines the best candidates at full resolution,
+	 * POLAR_SPECTRUM estimates the rotation from the polar power spectra and only tests that angle (and +180 degrees)
+	 */
+	public enum RotationSearch { EXHAUSTIVE, COARSE_TO_FINE, POLAR_SPECTRUM }
+
 	public static class Result
 	{
 		final Img< DoubleType > histogram = ArrayImgs.doubles( 360 );
@@ -269,6 +289,48 @@ public class Pairwise
 			final int degreeSteps,
 			final int topN,
 			final boolean doGradientDescent  )
+	{
+		return align( stdataA, stdataB, genesToTest, scaling, degreeSteps, degreeSteps, 1.0, topN, doGradientDescent );
+	}
+
+	/**
+	 * @param coarseDegreeSteps - angle steps of the initial sweep on downsampled renderings (only used if downsampling &gt; 1)
+	 * @param downsampling - if &gt; 1, a coarse-to-fine search is performed where only the topN coarse candidates are
+	 * refined at full resolution, otherwise all angles are tested at full resolution
+	 */
+	public static Pair< AffineTransform2D, Double > align(
+			final STData stdataA,
+			final STData stdataB,
+			final List< String > genesToTest,
+			final double scaling,
+			final int degreeSteps,
+			final int coarseDegreeSteps,
+			final double downsampling,
+			final int topN,
+			final boolean doGradientDescent  )
+	{
+		final RotationSearch rotationSearch = downsampling > 1 ? RotationSearch.COARSE_TO_FINE : RotationSearch.EXHAUSTIVE;
+
+		return align( stdataA, stdataB, genesToTest, scaling, rotationSearch, degreeSteps, coarseDegreeSteps, downsampling, topN, doGradientDescent );
+	}
+
+	/**
+	 * @param rotationSearch - how the rotation is found for each gene
+	 * @param degreeSteps - angle steps at full resolution (not used for POLAR_SPECTRUM)
+	 * @param coarseDegreeSteps - angle steps of the initial sweep on downsampled renderings (only used for COARSE_TO_FINE)
+	 * @param downsampling - downsampling of the renderings for the initial sweep (only used for COARSE_TO_FINE)
+	 */
+	public static Pair< AffineTransform2D, Double > align(
+			final STData stdataA,
+			final STData stdataB,
+			final List< String > genesToTest,
+			final double scaling,
+			final RotationSearch rotationSearch,
+			final int degreeSteps,
+			final int coarseDegreeSteps,
+			final double downsampling,
+			final int topN,
+			final boolean doGradientDescent  )
 	{
 		final STDataStatistics statA = new STDataStatistics( stdataA );
 		final STDataStatistics statB = new STDataStatistics( stdataB );
@@ -278,63 +340,41 @@ public class Pairwise
 
 		final Interval interval = STDataUtils.getCommonInterval( stdataA, stdataB );
 
-		final int numThreads = Threads.numThreads();
-		final ExecutorService serviceGlobal = Threads.createFixedExecutorService( numThreads );
+		final ExecutorService serviceGlobal = Threads.createFixedExecutorService( Threads.numThreads() );
 
-		final List< Callable< Void > > tasks = new ArrayList<>();
-		final AtomicInteger nextGene = new AtomicInteger();
+		// the genes are scouted one after another (the angles of each gene are evaluated in parallel), the gradient
+		// descent is then run for the top peaks of all genes at once since there are only topN peaks per gene
+		List< List< Pair< PhaseCorrelationPeak2, Double > > > alignParamLists = new ArrayList<>();
 
-		final Result result = new Result();
-
-		for ( int threadNum = 0; threadNum < numThreads; ++threadNum )
+		for ( final String gene : genesToTest )
 		{
-			tasks.add( () -> {
-				final ExecutorService serviceLocal = Threads.createFixedExecutorService( 1 );
-
-				for ( int i = nextGene.getAndIncrement(); i < genesToTest.size(); i = nextGene.getAndIncrement() )
-				{
-					final String gene = genesToTest.get( i );
-
-					final List< Pair< PhaseCorrelationPeak2, Double > > alignParamList =
-							alignGenePairwise( stdataA, statA, stdataB, statB, gene, degreeSteps, topN, doGradientDescent, scalingTransform, interval, serviceLocal );
-
-					for ( final Pair< PhaseCorrelationPeak2, Double > alignParams : alignParamList )
-					{
-						final int deg = (int)Math.round( alignParams.getB() ) % 360; // e.g. 359.6 should be 0
-						final double weight = alignParams.getA().getCrossCorr();
-
-						synchronized ( result )
-						{
-							result.histogram.getAt( deg ).add( new DoubleType( weight ) );
-							result.tx.getAt( deg ).add( new DoubleType( alignParams.getA().getShift().getDoublePosition( 0 ) * weight ) );
-							result.ty.getAt( deg ).add( new DoubleType( alignParams.getA().getShift().getDoublePosition( 1 ) * weight ) );
-						}
-
-						//System.out.println( "TOP ("+gene+"): " + alignParams.getB() + ", " + alignParams.getA().getCrossCorr() + ", " + Util.printCoordinates( alignParams.getA().getShift() ) );
-					}
+			if ( rotationSearch == RotationSearch.COARSE_TO_FINE )
+				alignParamLists.add( alignGenePairwiseCoarseToFine( stdataA, statA, stdataB, statB, gene, degreeSteps, coarseDegreeSteps, downsampling, topN, false, scalingTransform, interval, serviceGlobal ) );
+			else if ( rotationSearch == RotationSearch.POLAR_SPECTRUM )
+				alignParamLists.add( alignGenePairwisePolarSpectrum( stdataA, statA, stdataB, statB, gene, topN, false, scalingTransform, interval, serviceGlobal ) );
+			else
+				alignParamLists.add( alignGenePairwise( stdataA, statA, stdataB, statB, gene, degreeSteps, topN, false, scalingTransform, interval, serviceGlobal ) );
+		}
 
-					//System.out.println();
+		if ( doGradientDescent )
+			alignParamLists = gradientDescent( stdataA, statA, stdataB, statB, genesToTest, alignParamLists, topN, scalingTransform, interval, serviceGlobal );
 
-					//final Pair< PhaseCorrelationPeak2, Double > alignParams = alignParamList.get( 0 );
-					//System.out.println( "TOP ("+gene+"): " + alignParams.getB() + ", " + alignParams.getA().getCrossCorr() + ", " + Util.printCoordinates( alignParams.getA().getShift() ) );			
-				}
+		// fill the histogram from the results
+		final Result result = new Result();
 
-				serviceLocal.shutdown();
+		for ( final List< Pair< PhaseCorrelationPeak2, Double > > alignParamList : alignParamLists )
+		{
+			for ( final Pair< PhaseCorrelationPeak2, Double > alignParams : alignParamList )
+			{
+				final int deg = (int)Math.round( alignParams.getB() ) % 360; // e.g. 359.6 should be 0
+				final double weight = alignParams.getA().getCrossCorr();
 
-				return null;
-			} );
-		}
+				result.histogram.getAt( deg ).add( new DoubleType( weight ) );
+				result.tx.getAt( deg ).add( new DoubleType( alignParams.getA().getShift().getDoublePosition( 0 ) * weight ) );
+				result.ty.getAt( deg ).add( new DoubleType( alignParams.getA().getShift().getDoublePosition( 1 ) * weight ) );
 
-		try
-		{
-			final List< Future< Void > > futures = serviceGlobal.invokeAll( tasks );
-			for ( final Future< Void > future : futures )
-				future.get();
-		}
-		catch ( final InterruptedException | ExecutionException e )
-		{
-			e.printStackTrace();
-			throw new RuntimeException( e );
+				//System.out.println( "TOP: " + alignParams.getB() + ", " + alignParams.getA().getCrossCorr() + ", " + Util.printCoordinates( alignParams.getA().getShift() ) );
+			}
 		}
 
 		Gauss3.gauss( 2, Views.extendPeriodic( result.histogram ), result.histogram );
@@ -428,6 +468,14 @@ public class Pairwise
 		return new ValuePair<AffineTransform2D, Double>( finalTransform, degreeWeightGauss );
 	}
 
+	/**
+	 * Finds the best rotations and translations between the renderings of a gene in A and B.
+	 * The angles of the initial scouting (and the gradient descent of each top peak) are evaluated
+	 * in parallel, each thread reuses its own PCM workspace.
+	 *
+	 * @param service - thread pool used to evaluate angles in parallel (must not be used by the calling thread)
+	 * @return the topN peaks and their angles, sorted by cross correlation
+	 */
 	public static List< Pair< PhaseCorrelationPeak2, Double > > alignGenePairwise(
 			final STData stdataA, final STDataStatistics statA,
 			final STData stdataB, final STDataStatistics statB,
@@ -439,86 +487,406 @@ public class Pairwise
 			final Interval interval,
 			final ExecutorService service )
 	{
-		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > topPeaks = new ArrayList<>();
-
-		final RandomAccessibleInterval< DoubleType > imgA = ImgLib2Util.copyImg(
-				AlignTools.display( stdataA, statA, gene, ImgLib2Util.transformInterval( interval, scalingTransform ), scalingTransform, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ), new ArrayImgFactory<>( new DoubleType() ), service );
+		final RandomAccessibleInterval< DoubleType > imgA = render( stdataA, statA, gene, scalingTransform, interval );
 
 		// initial scouting
 		//System.out.println( "Scouting: " + gene );
 
-		for ( int deg = 0; deg < 360; deg += degreeSteps )
-		{
-			final AffineTransform2D transformB = scalingTransform.copy();
-			transformB.rotate( Math.toRadians( deg ) );
+		final double[] angles = new double[ ( 359 / degreeSteps ) + 1 ];
 
-			final RandomAccessibleInterval< DoubleType > imgB = ImgLib2Util.copyImg(
-					AlignTools.display( stdataB, statB, gene, ImgLib2Util.transformInterval( interval, transformB ), transformB, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ), new ArrayImgFactory<>( new DoubleType() ), service );
+		for ( int i = 0; i < angles.length; ++i )
+			angles[ i ] = i * degreeSteps;
 
-			final PhaseCorrelationPeak2 shiftPeak = testPair( Views.zeroMin( imgA ), Views.zeroMin( imgB ), nHighest, service );
-			insertIntoList( topPeaks, topN, shiftPeak, deg );
-			//System.out.println( deg + ": " + shiftPeak.getCrossCorr() + ", " + Util.printCoordinates( shiftPeak.getShift() ) );
-		}
+		final PhaseCorrelationPeak2[] peaks = testAngles( imgA, stdataB, statB, gene, angles, scalingTransform, interval, service );
+
+		// fill the list in the same order as a sequential sweep would
+		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > topPeaks = new ArrayList<>();
+
+		for ( int i = 0; i < angles.length; ++i )
+			insertIntoList( topPeaks, topN, peaks[ i ], angles[ i ] );
+
+		if ( !doGradientDescent )
+			return topPeaks;
+
+		return gradientDescent( stdataB, statB, gene, topPeaks, topN, scalingTransform, interval, imgA, service );
+	}
+
+	/**
+	 * Coarse-to-fine version of {@link #alignGenePairwise(STData, STDataStatistics, STData, STDataStatistics, String, int, int, boolean, AffineTransform2D, Interval, ExecutorService)}.
+	 * All angles are first tested in coarseDegreeSteps on renderings that are downsampled by the given factor, only the
+	 * neighborhood (+-coarseDegreeSteps) of the topN coarse candidates is then tested in degreeSteps at full resolution.
+	 *
+	 * @param coarseDegreeSteps - angle steps of the downsampled sweep (should be &gt;= degreeSteps)
+	 * @param downsampling - downsampling factor of the renderings for the coarse sweep
+	 * @param service - thread pool used to evaluate angles in parallel (must not be used by the calling thread)
+	 * @return the topN peaks and their angles, sorted by cross correlation
+	 */
+	public static List< Pair< PhaseCorrelationPeak2, Double > > alignGenePairwiseCoarseToFine(
+			final STData stdataA, final STDataStatistics statA,
+			final STData stdataB, final STDataStatistics statB,
+			final String gene,
+			final int degreeSteps,
+			final int coarseDegreeSteps,
+			final double downsampling,
+			final int topN,
+			final boolean doGradientDescent,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		// coarse sweep on downsampled renderings
+		final AffineTransform2D coarseTransform = scalingTransform.copy();
+		coarseTransform.scale( 1.0 / downsampling );
+
+		final RandomAccessibleInterval< DoubleType > coarseA = render( stdataA, statA, gene, coarseTransform, interval );
+
+		final double[] coarseAngles = new double[ ( 359 / coarseDegreeSteps ) + 1 ];
+
+		for ( int i = 0; i < coarseAngles.length; ++i )
+			coarseAngles[ i ] = i * coarseDegreeSteps;
+
+		final PhaseCorrelationPeak2[] coarsePeaks = testAngles( coarseA, stdataB, statB, gene, coarseAngles, coarseTransform, interval, service );
+
+		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > coarseTopPeaks = new ArrayList<>();
+
+		for ( int i = 0; i < coarseAngles.length; ++i )
+			insertIntoList( coarseTopPeaks, topN, coarsePeaks[ i ], coarseAngles[ i ] );
+
+		// refine the neighborhood of each candidate at full resolution (the translations of the coarse sweep are not needed)
+		final TreeSet< Double > fineAngleSet = new TreeSet<>();
+
+		for ( final Pair< PhaseCorrelationPeak2, Double > candidate : coarseTopPeaks )
+			for ( int offset = -coarseDegreeSteps; offset <= coarseDegreeSteps; offset += degreeSteps )
+				fineAngleSet.add( ( ( candidate.getB() + offset ) % 360 + 360 ) % 360 );
+
+		final double[] angles = fineAngleSet.stream().mapToDouble( Double::doubleValue ).toArray();
+
+		final RandomAccessibleInterval< DoubleType > imgA = render( stdataA, statA, gene, scalingTransform, interval );
+		final PhaseCorrelationPeak2[] peaks = testAngles( imgA, stdataB, statB, gene, angles, scalingTransform, interval, service );
+
+		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > topPeaks = new ArrayList<>();
+
+		for ( int i = 0; i < angles.length; ++i )
+			insertIntoList( topPeaks, topN, peaks[ i ], angles[ i ] );
 
 		if ( !doGradientDescent )
 			return topPeaks;
 
-		// gradient descent for every inital Peak
+		return gradientDescent( stdataB, statB, gene, topPeaks, topN, scalingTransform, interval, imgA, service );
+	}
+
+	/**
+	 * Fourier-Mellin style alternative to {@link #alignGenePairwise(STData, STDataStatistics, STData, STDataStatistics, String, int, int, boolean, AffineTransform2D, Interval, ExecutorService)}.
+	 * The rotation is estimated from the polar power spectra of A and B (which do not depend on the translation), then the
+	 * translation is computed using the PCM only at the estimated angle and at the angle + 180 degrees (the power spectrum
+	 * is point-symmetric).
+	 *
+	 * @param service - thread pool used to evaluate angles in parallel (must not be used by the calling thread)
+	 * @return the topN peaks and their angles, sorted by cross correlation
+	 */
+	public static List< Pair< PhaseCorrelationPeak2, Double > > alignGenePairwisePolarSpectrum(
+			final STData stdataA, final STDataStatistics statA,
+			final STData stdataB, final STDataStatistics statB,
+			final String gene,
+			final int topN,
+			final boolean doGradientDescent,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		final RandomAccessibleInterval< DoubleType > imgA = render( stdataA, statA, gene, scalingTransform, interval );
+		final RandomAccessibleInterval< DoubleType > imgB = render( stdataB, statB, gene, scalingTransform, interval );
+
+		// the rotation of B relative to A, B therefore needs to be rotated by the negative angle
+		final double rotation = PhaseCorrelation2.estimateRotation(
+				Views.zeroMin( imgA ), Views.zeroMin( imgB ), new ArrayImgFactory<>( new ComplexDoubleType() ), minPolarSpectrumRadius, service );
+
+		final double deg = ( 360.0 - rotation ) % 360.0;
+		final double[] angles = new double[] { deg, ( deg + 180.0 ) % 360.0 };
+
+		final PhaseCorrelationPeak2[] peaks = testAngles( imgA, stdataB, statB, gene, angles, scalingTransform, interval, service );
+
+		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > topPeaks = new ArrayList<>();
+
+		for ( int i = 0; i < angles.length; ++i )
+			insertIntoList( topPeaks, topN, peaks[ i ], angles[ i ] );
+
+		if ( !doGradientDescent )
+			return topPeaks;
+
+		return gradientDescent( stdataB, statB, gene, topPeaks, topN, scalingTransform, interval, imgA, service );
+	}
+
+	/**
+	 * @return the Gauss rendering of the gene, rasterized in memory by AlignTools.display (no copy needed)
+	 */
+	protected static RandomAccessibleInterval< DoubleType > render(
+			final STData stdata, final STDataStatistics stat,
+			final String gene,
+			final AffineTransform2D transform,
+			final Interval interval )
+	{
+		return AlignTools.display( stdata, stat, gene, ImgLib2Util.transformInterval( interval, transform ), transform, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor );
+	}
+
+	/**
+	 * Renders B rotated by every angle and computes the best shift to A, the angles are tested in parallel.
+	 *
+	 * @param imgA - rendering of A using scalingTransform
+	 * @param angles - the angles to test (in degrees)
+	 * @param service - thread pool used to evaluate angles in parallel (must not be used by the calling thread)
+	 * @return the best peak for each angle
+	 */
+	protected static PhaseCorrelationPeak2[] testAngles(
+			final RandomAccessibleInterval< DoubleType > imgA,
+			final STData stdataB, final STDataStatistics statB,
+			final String gene,
+			final double[] angles,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		final PhaseCorrelationPeak2[] peaks = new PhaseCorrelationPeak2[ angles.length ];
+		final AtomicInteger nextAngle = new AtomicInteger();
+
+		// A is the same for all angles
+		final SummedAreaTable satA = new SummedAreaTable( imgA );
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int threadNum = 0; threadNum < Math.min( Threads.numThreads(), angles.length ); ++threadNum )
+		{
+			tasks.add( () -> {
+				// runs in the calling thread, this task is already one of the parallel tasks
+				final ExecutorService serviceLocal = Threads.createSameThreadExecutorService();
+				final PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > workspace = createWorkspace( serviceLocal );
+
+				for ( int i = nextAngle.getAndIncrement(); i < angles.length; i = nextAngle.getAndIncrement() )
+				{
+					final AffineTransform2D transformB = scalingTransform.copy();
+					transformB.rotate( Math.toRadians( angles[ i ] ) );
+
+					final RandomAccessibleInterval< DoubleType > imgB = render( stdataB, statB, gene, transformB, interval );
+
+					peaks[ i ] = testPair( Views.zeroMin( imgA ), satA, Views.zeroMin( imgB ), nHighest, workspace );
+					//System.out.println( angles[ i ] + ": " + peaks[ i ].getCrossCorr() + ", " + Util.printCoordinates( peaks[ i ].getShift() ) );
+				}
+
+				serviceLocal.shutdown();
+
+				return null;
+			} );
+		}
+
+		execTasks( tasks, service );
+
+		return peaks;
+	}
+
+	/**
+	 * Gradient descent for every inital peak, the peaks are refined in parallel.
+	 *
+	 * @param service - thread pool used to refine peaks in parallel (must not be used by the calling thread)
+	 * @return the revised topN peaks and their angles, sorted by cross correlation
+	 */
+	protected static List< Pair< PhaseCorrelationPeak2, Double > > gradientDescent(
+			final STData stdataB, final STDataStatistics statB,
+			final String gene,
+			final List< Pair< PhaseCorrelationPeak2, Double > > topPeaks,
+			final int topN,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final RandomAccessibleInterval< DoubleType > imgA,
+			final ExecutorService service )
+	{
 		//System.out.println( "Gradient descent: " + gene );
 
-		final ArrayList< Pair< PhaseCorrelationPeak2, Double > > revisedTopPeaks = new ArrayList<>();
+		return gradientDescent(
+				stdataB, statB, Arrays.asList( gene ), Arrays.asList( imgA ), Arrays.asList( new SummedAreaTable( imgA ) ),
+				Arrays.asList( topPeaks ), topN, scalingTransform, interval, service ).get( 0 );
+	}
 
-		for ( final Pair< PhaseCorrelationPeak2, Double > peak : topPeaks )
+	/**
+	 * Gradient descent for the inital peaks of all genes. All (gene, peak) pairs are refined in parallel, so all threads
+	 * are busy even though there are only topN peaks per gene. The renderings of A of all genes are kept in memory.
+	 *
+	 * @param genes - the genes
+	 * @param topPeaksPerGene - the initial peaks of each gene
+	 * @param service - thread pool used to refine peaks in parallel (must not be used by the calling thread)
+	 * @return the revised topN peaks and their angles of each gene, sorted by cross correlation
+	 */
+	protected static List< List< Pair< PhaseCorrelationPeak2, Double > > > gradientDescent(
+			final STData stdataA, final STDataStatistics statA,
+			final STData stdataB, final STDataStatistics statB,
+			final List< String > genes,
+			final List< List< Pair< PhaseCorrelationPeak2, Double > > > topPeaksPerGene,
+			final int topN,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		// the rendering of A (and its summed-area table) is the same for all peaks of a gene
+		final List< RandomAccessibleInterval< DoubleType > > imgsA = new ArrayList<>( Collections.nCopies( genes.size(), null ) );
+		final List< SummedAreaTable > satsA = new ArrayList<>( Collections.nCopies( genes.size(), null ) );
+		final AtomicInteger nextGene = new AtomicInteger();
+
+		final ArrayList< Callable< Void > > renderTasks = new ArrayList<>();
+
+		for ( int threadNum = 0; threadNum < Math.min( Threads.numThreads(), genes.size() ); ++threadNum )
 		{
-			Pair< PhaseCorrelationPeak2, Double > bestPeak = peak;
+			renderTasks.add( () -> {
+				for ( int i = nextGene.getAndIncrement(); i < genes.size(); i = nextGene.getAndIncrement() )
+				{
+					imgsA.set( i, render( stdataA, statA, genes.get( i ), scalingTransform, interval ) );
+					satsA.set( i, new SummedAreaTable( imgsA.get( i ) ) );
+				}
 
-			for ( double step = 2; step > 0.001; step /= 1.5 )
-			{
-				boolean updated;
+				return null;
+			} );
+		}
+
+		execTasks( renderTasks, service );
+
+		return gradientDescent( stdataB, statB, genes, imgsA, satsA, topPeaksPerGene, topN, scalingTransform, interval, service );
+	}
+
+	protected static List< List< Pair< PhaseCorrelationPeak2, Double > > > gradientDescent(
+			final STData stdataB, final STDataStatistics statB,
+			final List< String > genes,
+			final List< RandomAccessibleInterval< DoubleType > > imgsA,
+			final List< SummedAreaTable > satsA,
+			final List< List< Pair< PhaseCorrelationPeak2, Double > > > topPeaksPerGene,
+			final int topN,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		// all (gene index, peak index) pairs
+		final ArrayList< int[] > pairs = new ArrayList<>();
+		final List< List< Pair< PhaseCorrelationPeak2, Double > > > bestPeaks = new ArrayList<>();
+
+		for ( int g = 0; g < genes.size(); ++g )
+		{
+			for ( int i = 0; i < topPeaksPerGene.get( g ).size(); ++i )
+				pairs.add( new int[] { g, i } );
 
-				do
+			bestPeaks.add( new ArrayList<>( Collections.nCopies( topPeaksPerGene.get( g ).size(), null ) ) );
+		}
+
+		final AtomicInteger nextPair = new AtomicInteger();
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int threadNum = 0; threadNum < Math.min( Threads.numThreads(), pairs.size() ); ++threadNum )
+		{
+			tasks.add( () -> {
+				// runs in the calling thread, this task is already one of the parallel tasks
+				final ExecutorService serviceLocal = Threads.createSameThreadExecutorService();
+				final PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > workspace = createWorkspace( serviceLocal );
+
+				for ( int i = nextPair.getAndIncrement(); i < pairs.size(); i = nextPair.getAndIncrement() )
 				{
-					updated = false;
-					double deg = bestPeak.getB();
-
-					AffineTransform2D transformB = scalingTransform.copy();
-					transformB.rotate( Math.toRadians( deg + step ) );
-
-					PhaseCorrelationPeak2 shiftPeak = testPair( imgA, Views.zeroMin(
-							AlignTools.display( stdataB, statB, gene, ImgLib2Util.transformInterval( interval, transformB ), transformB, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ) ), nHighest, service );
-
-					if ( shiftPeak.getCrossCorr() > bestPeak.getA().getCrossCorr() )
-					{
-						updated = true;
-						if ( deg + step >= 360 )
-							deg -= 360;
-						bestPeak = new ValuePair< PhaseCorrelationPeak2, Double >( shiftPeak, deg + step );
-					}
-
-					transformB = scalingTransform.copy();
-					transformB.rotate( Math.toRadians( deg - step ) );
-
-					shiftPeak = testPair( imgA, Views.zeroMin(
-							AlignTools.display( stdataB, statB, gene, ImgLib2Util.transformInterval( interval, transformB ), transformB, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ) ), nHighest, service );
-
-					if ( shiftPeak.getCrossCorr() > bestPeak.getA().getCrossCorr() )
-					{
-						updated = true;
-						if ( deg - step < 0 )
-							deg += 360;
-						bestPeak = new ValuePair< PhaseCorrelationPeak2, Double >( shiftPeak, deg - step );
-					}
-				} while ( updated );
-			}
+					final int g = pairs.get( i )[ 0 ];
+					final int p = pairs.get( i )[ 1 ];
+
+					bestPeaks.get( g ).set( p, gradientDescent(
+							stdataB, statB, genes.get( g ), scalingTransform, interval, imgsA.get( g ), topPeaksPerGene.get( g ).get( p ), satsA.get( g ), workspace ) );
+				}
+
+				serviceLocal.shutdown();
+
+				return null;
+			} );
+		}
+
+		execTasks( tasks, service );
+
+		final List< List< Pair< PhaseCorrelationPeak2, Double > > > revisedTopPeaksPerGene = new ArrayList<>();
+
+		for ( final List< Pair< PhaseCorrelationPeak2, Double > > bestPeaksGene : bestPeaks )
+		{
+			final ArrayList< Pair< PhaseCorrelationPeak2, Double > > revisedTopPeaks = new ArrayList<>();
 
 			// How is it possible that only 4 locations are in here with topN == 5 (e.g. mt-Nd1)
-			insertIntoList( revisedTopPeaks, topN, bestPeak.getA(), bestPeak.getB() );
+			for ( final Pair< PhaseCorrelationPeak2, Double > bestPeak : bestPeaksGene )
+				insertIntoList( revisedTopPeaks, topN, bestPeak.getA(), bestPeak.getB() );
+
+			//for ( int i = 0; i < revisedTopPeaks.size(); ++i )
+			//	System.out.println( "TOP " + i + ": " + revisedTopPeaks.get( i ).getB() + ", " + revisedTopPeaks.get( i ).getA().getCrossCorr() + ", " + Util.printCoordinates( revisedTopPeaks.get( i ).getA().getShift() ) );
+
+			revisedTopPeaksPerGene.add( revisedTopPeaks );
+		}
+
+		return revisedTopPeaksPerGene;
+	}
+
+	protected static Pair< PhaseCorrelationPeak2, Double > gradientDescent(
+			final STData stdataB, final STDataStatistics statB,
+			final String gene,
+			final AffineTransform2D scalingTransform,
+			final Interval interval,
+			final RandomAccessibleInterval< DoubleType > imgA,
+			final Pair< PhaseCorrelationPeak2, Double > peak,
+			final SummedAreaTable satA,
+			final PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > workspace )
+	{
+		Pair< PhaseCorrelationPeak2, Double > bestPeak = peak;
+
+		for ( double step = 2; step > 0.001; step /= 1.5 )
+		{
+			boolean updated;
+
+			do
+			{
+				updated = false;
+				double deg = bestPeak.getB();
+
+				AffineTransform2D transformB = scalingTransform.copy();
+				transformB.rotate( Math.toRadians( deg + step ) );
+
+				PhaseCorrelationPeak2 shiftPeak = testPair( imgA, satA, Views.zeroMin(
+						AlignTools.display( stdataB, statB, gene, ImgLib2Util.transformInterval( interval, transformB ), transformB, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ) ), nHighest, workspace );
+
+				if ( shiftPeak.getCrossCorr() > bestPeak.getA().getCrossCorr() )
+				{
+					updated = true;
+					if ( deg + step >= 360 )
+						deg -= 360;
+					bestPeak = new ValuePair< PhaseCorrelationPeak2, Double >( shiftPeak, deg + step );
+				}
+
+				transformB = scalingTransform.copy();
+				transformB.rotate( Math.toRadians( deg - step ) );
+
+				shiftPeak = testPair( imgA, satA, Views.zeroMin(
+						AlignTools.display( stdataB, statB, gene, ImgLib2Util.transformInterval( interval, transformB ), transformB, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor ) ), nHighest, workspace );
+
+				if ( shiftPeak.getCrossCorr() > bestPeak.getA().getCrossCorr() )
+				{
+					updated = true;
+					if ( deg - step < 0 )
+						deg += 360;
+					bestPeak = new ValuePair< PhaseCorrelationPeak2, Double >( shiftPeak, deg - step );
+				}
+			} while ( updated );
 		}
 
-		//for ( int i = 0; i < revisedTopPeaks.size(); ++i )
-		//	System.out.println( "TOP " + i + " ("+gene+"): " + revisedTopPeaks.get( i ).getB() + ", " + revisedTopPeaks.get( i ).getA().getCrossCorr() + ", " + Util.printCoordinates( revisedTopPeaks.get( i ).getA().getShift() ) );
+		return bestPeak;
+	}
 
-		return revisedTopPeaks;
+	protected static void execTasks( final List< Callable< Void > > tasks, final ExecutorService service )
+	{
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
 	}
 
 	protected static void insertIntoList( final List< Pair< PhaseCorrelationPeak2, Double > > topPeaks, final int topN, final PhaseCorrelationPeak2 newPeak, final double deg )
@@ -547,6 +915,26 @@ public class Pairwise
 		}
 	}
 
+	public static PhaseCorrelationPeak2 testPair( final RandomAccessibleInterval< DoubleType > imgA, final SummedAreaTable satA, final RandomAccessibleInterval< DoubleType > imgB, final int nHighest, final PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > workspace )
+	{
+		return workspace.getShift( imgA, satA, imgB, nHighest, 1000, false, false );
+	}
+
+	/**
+	 * @param service - thread pool for the workspace (not shut down when the workspace is done)
+	 * @return a new PCM workspace for 2d DoubleType images (use one per thread) that only verifies the
+	 * numVerifiedShifts best ranked candidate shifts
+	 */
+	public static PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > createWorkspace( final ExecutorService service )
+	{
+		final PhaseCorrelation2Workspace< DoubleType, ComplexDoubleType > workspace =
+				new PhaseCorrelation2Workspace<>( new ArrayImgFactory<>( new DoubleType() ), new ArrayImgFactory<>( new ComplexDoubleType() ), 2, service );
+
+		workspace.setVerification( crossCorrSubsampling, numVerifiedShifts );
+
+		return workspace;
+	}
+
 	public static PhaseCorrelationPeak2 testPair( final RandomAccessibleInterval< DoubleType > imgA, final RandomAccessibleInterval< DoubleType > imgB, final int nHighest, final ExecutorService service  )
 	{
 		RandomAccessibleInterval<DoubleType> pcm = PhaseCorrelation2.calculatePCM(
@@ -1,14 +1,28 @@
 package anndata;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.view.Views;
+import util.Threads;
+import util.Threads.ImagePortion;
 
 abstract public class CompressedStorageRai<
         D extends NativeType<D> & RealType<D>,
@@ -41,58 +55,236 @@ abstract public class CompressedStorageRai<
             throw new IllegalArgumentException("Indptr array does not fit number of slices.");
     }
 
+    /**
+     * Data and index arrays with more elements than this are backed by cells, a single Java array cannot hold more
+     * than 2^31-1 elements.
+     */
+    public static long maxArraySize = Integer.MAX_VALUE - 8;
+
+    public static int storageCellSize = 1 << 24;
+
+    /**
+     * @return a one-dimensional image of the given size, array-backed if possible, cell-backed otherwise
+     */
+    public static <T extends NativeType<T>> Img<T> createStorage(T type, long size) {
+        if (size <= maxArraySize)
+            return new ArrayImgFactory<>(type).create(size);
+        return new CellImgFactory<>(type, storageCellSize).create(size);
+    }
+
     public static <T extends NativeType<T> & RealType<T>> CompressedStorageRai<T, LongType> convertToSparse(RandomAccessibleInterval<T> rai) {
         return convertToSparse(rai, 0); // CSR per default
     }
 
     public static <T extends NativeType<T> & RealType<T>> CompressedStorageRai<T, LongType> convertToSparse(RandomAccessibleInterval<T> rai, int leadingDimension) {
+        final ExecutorService service = Threads.createFixedExecutorService();
+        final CompressedStorageRai<T, LongType> sparse = convertToSparse(rai, leadingDimension, service);
+        service.shutdown();
+        return sparse;
+    }
+
+    /**
+     * Converts a dense array in two parallel passes: the nonzeros of every slice are counted first (see
+     * {@link #computeIndexPointers(RandomAccessibleInterval, int, ExecutorService)}), then every portion of the
+     * nonzeros is compacted independently into its final position.
+     */
+    public static <T extends NativeType<T> & RealType<T>> CompressedStorageRai<T, LongType> convertToSparse(RandomAccessibleInterval<T> rai, int leadingDimension, ExecutorService service) {
         if (leadingDimension != 0 && leadingDimension != 1)
             throw new IllegalArgumentException("Leading dimension in sparse array must be 0 or 1.");
 
-        T zeroValue = rai.getAt(0, 0).copy();
+        final long[] indptr = computeIndexPointers(rai, leadingDimension, service);
+        final long nnz = indptr[indptr.length - 1];
+
+        final RandomAccessibleInterval<T> data = createStorage(rai.getAt(0, 0).createVariable(), nnz);
+        final RandomAccessibleInterval<LongType> indices = createStorage(new LongType(), nnz);
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (final ImagePortion portion : Threads.divideIntoPortions(nnz)) {
+            tasks.add(() -> {
+                final long from = portion.getStartPosition();
+                final long to = from + portion.getLoopSize();
+                compactNonzeros(rai, leadingDimension, indptr, from, to, 0, data.randomAccess(), indices.randomAccess());
+                return null;
+            });
+        }
+        invokeAll(tasks, service);
+
+        final RandomAccessibleInterval<LongType> indptrImg = ArrayImgs.longs(indptr, indptr.length);
+        return (leadingDimension == 0) ? new CsrRandomAccessibleInterval<>(rai.dimension(0), rai.dimension(1), data, indices, indptrImg)
+            : new CscRandomAccessibleInterval<>(rai.dimension(0), rai.dimension(1), data, indices, indptrImg);
+    }
+
+    /**
+     * Counts the nonzeros of all slices of a dense array (rows for CSR, columns for CSC) in parallel.
+     *
+     * @return the index pointers, i.e. indptr[j+1] - indptr[j] is the number of nonzeros of slice j
+     */
+    public static <T extends NativeType<T> & RealType<T>> long[] computeIndexPointers(RandomAccessibleInterval<T> rai, int leadingDimension, ExecutorService service) {
+        final int ptrDimension = 1 - leadingDimension;
+        final long numSlices = rai.dimension(ptrDimension);
+        final long sliceLength = rai.dimension(leadingDimension);
+        if (numSlices >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many slices for a sparse array: " + numSlices);
+
+        final long[] indptr = new long[(int) numSlices + 1];
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (final ImagePortion portion : Threads.divideIntoPortions(numSlices)) {
+            tasks.add(() -> {
+                final RandomAccess<T> ra = rai.randomAccess();
+                final T zeroValue = ra.get().createVariable();
+                zeroValue.setZero();
+
+                final int start = (int) portion.getStartPosition();
+                final int end = start + (int) portion.getLoopSize();
+                for (int j = start; j < end; ++j) {
+                    ra.setPosition(j, ptrDimension);
+                    ra.setPosition(0, leadingDimension);
+                    long count = 0;
+                    for (long i = 0; i < sliceLength; ++i, ra.fwd(leadingDimension))
+                        if (!ra.get().valueEquals(zeroValue))
+                            ++count;
+                    indptr[j + 1] = count;
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks, service);
+
+        for (int j = 0; j < numSlices; ++j)
+            indptr[j + 1] += indptr[j];
+
+        return indptr;
+    }
+
+    /**
+     * Compacts the nonzeros [from, to) of a dense array, e.g. into one output chunk. Only the slices that contain
+     * these nonzeros are visited, so disjoint ranges can be compacted in parallel.
+     *
+     * @param indptr - the index pointers of the array (see {@link #computeIndexPointers(RandomAccessibleInterval, int, ExecutorService)})
+     * @param offset - the position of nonzero k in the output is k - offset
+     * @param dataOut - receives the values of the nonzeros
+     * @param indicesOut - receives the indices (along the leading dimension) of the nonzeros
+     */
+    public static <T extends NativeType<T> & RealType<T>> void compactNonzeros(
+            RandomAccessibleInterval<T> rai,
+            int leadingDimension,
+            long[] indptr,
+            long from,
+            long to,
+            long offset,
+            RandomAccess<T> dataOut,
+            RandomAccess<LongType> indicesOut) {
+
+        if (from >= to)
+            return;
+
+        final int ptrDimension = 1 - leadingDimension;
+        final long sliceLength = rai.dimension(leadingDimension);
+        final RandomAccess<T> ra = rai.randomAccess();
+        final T zeroValue = ra.get().createVariable();
         zeroValue.setZero();
 
-        int nnz = getNumberOfNonzeros(rai);
-        int ptrDimension = 1 - leadingDimension;
-        RandomAccessibleInterval<T> data = new ArrayImgFactory<>(zeroValue).create(nnz);
-        RandomAccessibleInterval<LongType> indices = new ArrayImgFactory<>(new LongType()).create(nnz);
-        RandomAccessibleInterval<LongType> indptr = new ArrayImgFactory<>(new LongType()).create(rai.dimension(ptrDimension) + 1);
-
-        long count = 0;
-        T actualValue;
-        RandomAccess<T> ra = rai.randomAccess();
-        RandomAccess<T> dataAccess = data.randomAccess();
-        RandomAccess<LongType> indicesAccess = indices.randomAccess();
-        RandomAccess<LongType> indptrAccess = indptr.randomAccess();
-        indptrAccess.setPosition(0,0);
-        indptrAccess.get().setLong(0L);
-
-        for (long j = 0; j < rai.dimension(ptrDimension); j++) {
-            ra.setPosition(j, ptrDimension);
-            for (long i = 0; i < rai.dimension(leadingDimension); i++) {
-                ra.setPosition(i, leadingDimension);
-                actualValue = ra.get();
-                if (!actualValue.valueEquals(zeroValue)) {
-                    dataAccess.setPosition(count, 0);
-                    dataAccess.get().set(actualValue);
-                    indicesAccess.setPosition(count, 0);
-                    indicesAccess.get().setLong(i);
-                    count++;
+        // the first slice that contains nonzero 'from'
+        int slice = Arrays.binarySearch(indptr, from);
+        if (slice < 0)
+            slice = -slice - 2;
+        while (indptr[slice + 1] <= from)
+            ++slice;
+
+        long k = indptr[slice];
+        for (; k < to; ++slice) {
+            ra.setPosition(slice, ptrDimension);
+            ra.setPosition(0, leadingDimension);
+            for (long i = 0; i < sliceLength && k < to; ++i, ra.fwd(leadingDimension)) {
+                final T value = ra.get();
+                if (value.valueEquals(zeroValue))
+                    continue;
+                if (k >= from) {
+                    dataOut.setPosition(k - offset, 0);
+                    dataOut.get().set(value);
+                    indicesOut.setPosition(k - offset, 0);
+                    indicesOut.get().setLong(i);
                 }
+                ++k;
             }
-            indptrAccess.fwd(0);
-            indptrAccess.get().setLong(count);
         }
+    }
+
+    protected static void invokeAll(List<Callable<Void>> tasks, ExecutorService service) {
+        try {
+            final List<Future<Void>> futures = service.invokeAll(tasks);
+            for (final Future<Void> future : futures)
+                future.get();
+        }
+        catch (final InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts CSR to CSC and vice versa in one streaming pass over the nonzeros (counting sort by index). The result
+     * represents the same matrix, compressed along the other dimension, e.g. an AnnData matrix stored as CSR by cell
+     * becomes CSC by gene, so reading a gene costs O(nnz of the gene) instead of a binary search per cell.
+     *
+     * @param sparse - a CSR or CSC matrix
+     * @return the same matrix as CSC (if the input is CSR) or CSR (if the input is CSC)
+     */
+    public static <D extends NativeType<D> & RealType<D>, I extends NativeType<I> & IntegerType<I>> CompressedStorageRai<D, LongType> switchLayout(CompressedStorageRai<D, I> sparse) {
+        final boolean isCsr = sparse instanceof CsrRandomAccessibleInterval;
+        final long numCols = sparse.dimension(0);
+        final long numRows = sparse.dimension(1);
+        final long nnz = sparse.data.dimension(0);
+
+        // the indices of the input are the slices of the output
+        final long numSlices = isCsr ? numCols : numRows;
+        if (numSlices >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Sparse array has too many slices to switch layout: " + numSlices);
+
+        // count the nonzeros of every output slice
+        final long[] newIndptr = new long[(int) numSlices + 1];
+        for (final I index : Views.flatIterable(sparse.indices))
+            ++newIndptr[(int) index.getIntegerLong() + 1];
+        for (int s = 0; s < numSlices; ++s)
+            newIndptr[s + 1] += newIndptr[s];
+
+        // scatter the nonzeros, slices of the input are visited in order so the new indices of a slice are sorted
+        final long[] next = Arrays.copyOf(newIndptr, (int) numSlices);
+        final Img<LongType> newIndices = createStorage(new LongType(), nnz);
+        final Img<D> newData = createStorage(sparse.data.randomAccess().get().createVariable(), nnz);
+        final RandomAccess<LongType> newIndicesAccess = newIndices.randomAccess();
+        final RandomAccess<D> newDataAccess = newData.randomAccess();
+
+        final Cursor<D> dataCursor = Views.flatIterable(sparse.data).cursor();
+        final Cursor<I> indicesCursor = Views.flatIterable(sparse.indices).cursor();
+        final Cursor<I> indptrCursor = Views.flatIterable(sparse.indptr).cursor();
+
+        long end = indptrCursor.next().getIntegerLong();
+        for (long slice = 0; indptrCursor.hasNext(); ++slice) {
+            final long start = end;
+            end = indptrCursor.next().getIntegerLong();
+
+            for (long k = start; k < end; ++k) {
+                final long target = next[(int) indicesCursor.next().getIntegerLong()]++;
+                newIndicesAccess.setPosition(target, 0);
+                newIndicesAccess.get().setLong(slice);
+                newDataAccess.setPosition(target, 0);
+                newDataAccess.get().set(dataCursor.next());
+            }
+        }
+
+        final RandomAccessibleInterval<LongType> indptr = ArrayImgs.longs(newIndptr, numSlices + 1);
 
-        return (leadingDimension == 0) ? new CsrRandomAccessibleInterval<>(rai.dimension(0), rai.dimension(1), data, indices, indptr)
-            : new CscRandomAccessibleInterval<>(rai.dimension(0), rai.dimension(1), data, indices, indptr);
+        return isCsr ? new CscRandomAccessibleInterval<>(numCols, numRows, newData, newIndices, indptr)
+                : new CsrRandomAccessibleInterval<>(numCols, numRows, newData, newIndices, indptr);
     }
 
-    public static <T extends NativeType<T> & RealType<T>> int getNumberOfNonzeros(RandomAccessibleInterval<T> rai) {
+    public static <T extends NativeType<T> & RealType<T>> long getNumberOfNonzeros(RandomAccessibleInterval<T> rai) {
         T zeroValue = rai.getAt(0, 0).copy();
         zeroValue.setZero();
 
-        int nnz = 0;
+        long nnz = 0;
         Iterable<T> iterable = Views.iterable(rai);
         for (T pixel : iterable)
             if (!pixel.valueEquals(zeroValue))
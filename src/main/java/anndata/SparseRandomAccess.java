@@ -20,6 +20,12 @@ public class SparseRandomAccess<
     protected final RandomAccess<I> indptrAccess;
     protected final D fillValue;
 
+    // entries that are skipped linearly before switching to a binary search
+    protected static final int maxLinearSteps = 8;
+
+    // the slice of the last access and the position within it
+    protected long currentPtr = -1, start, end, current, currentInd;
+
     public SparseRandomAccess(CompressedStorageRai<D, I> rai) {
         super(rai.numDimensions());
         this.rai = rai;
@@ -125,35 +131,64 @@ public class SparseRandomAccess<
 
     @Override
     public D get() {
-
-        // determine range of indices to search
-        indptrAccess.setPosition(rai.ptr(position), 0);
-        long start = indptrAccess.get().getIntegerLong();
-        indptrAccess.fwd(0);
-        long end = indptrAccess.get().getIntegerLong();
+        final long ptr = rai.ptr(position);
+        final long ind = rai.ind(position);
+
+        // determine range of indices to search (only when the slice changes)
+        if (ptr != currentPtr) {
+            indptrAccess.setPosition(ptr, 0);
+            start = indptrAccess.get().getIntegerLong();
+            indptrAccess.fwd(0);
+            end = indptrAccess.get().getIntegerLong();
+
+            currentPtr = ptr;
+            current = start;
+            currentInd = -1;
+        }
 
         if (start == end)
             return fillValue;
 
-        long current, currentInd;
-        do {
-            current = (start + end) / 2L;
-            indicesAccess.setPosition(current, 0);
-            currentInd = indicesAccess.get().getIntegerLong();
-
-            if (currentInd == rai.ind(position)) {
-                dataAccess.setPosition(indicesAccess);
-                return dataAccess.get();
-            }
-            if (currentInd < rai.ind(position))
-                start = current;
-            if (currentInd > rai.ind(position))
-                end = current;
-        } while (current != start || (end - start) > 1L);
+        // current is the first entry of the slice with an index >= currentInd; when iterating along a slice (e.g. all
+        // cells of a gene in CSC), it only moves forward a few entries, so reading a slice costs O(nnz of the slice)
+        if (ind >= currentInd) {
+            for (int step = 0; step < maxLinearSteps && current < end && indexAt(current) < ind; ++step)
+                ++current;
+
+            if (current < end && indexAt(current) < ind)
+                current = lowerBound(current + 1, end, ind);
+        }
+        else {
+            current = lowerBound(start, end, ind);
+        }
+
+        currentInd = ind;
+
+        if (current < end && indexAt(current) == ind) {
+            dataAccess.setPosition(current, 0);
+            return dataAccess.get();
+        }
 
         return fillValue;
     }
 
+    protected long indexAt(final long k) {
+        indicesAccess.setPosition(k, 0);
+        return indicesAccess.get().getIntegerLong();
+    }
+
+    // first entry in [from, to) with an index >= ind (or to)
+    protected long lowerBound(long from, long to, final long ind) {
+        while (from < to) {
+            final long mid = (from + to) >>> 1;
+            if (indexAt(mid) < ind)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
     @Override
     public Sampler<D> copy() {
         return copyRandomAccess();
@@ -0,0 +1,127 @@
+package cmd;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import gui.STDataAssembly;
+import io.SpatialDataContainer;
+import io.SpatialDataIO;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "st-benchmark-compression", mixinStandardHelpOptions = true, version = "0.3.0", description = "Spatial Transcriptomics as IMages project - measure write/read throughput and compression ratio of the expression values of a dataset for several compressions")
+public class CompressionBenchmark implements Callable<Void> {
+
+	@Option(names = {"-c", "--container"}, required = false, description = "N5 container; if given, the dataset is taken from that container")
+	private String containerPath = null;
+
+	@Option(names = {"-i", "--input"}, required = true, description = "input dataset, e.g. -i /home/ssq.n5")
+	private String input = null;
+
+	@Option(names = {"--compressions"}, required = false, description = "comma separated list of compressions to test, see st-resave (default: raw,gzip:3,gzip:1,lz4,bzip2,xz:1,blosc:lz4,blosc:zstd:3)")
+	private String compressions = "raw,gzip:3,gzip:1,lz4,bzip2,xz:1,blosc:lz4,blosc:zstd:3";
+
+	@Option(names = {"--blockSize"}, required = false, description = "block size of the expression values, see st-resave (default: SQUARE)")
+	private String blockSize = "SQUARE";
+
+	@Option(names = {"--numGenes"}, required = false, description = "only use the first n genes, the tested values are held in memory (default: 100)")
+	private int numGenes = 100;
+
+	@Override
+	public Void call() throws Exception {
+		final ExecutorService service = Executors.newFixedThreadPool(8);
+
+		final boolean isStandaloneDataset = (containerPath == null || containerPath.trim().isEmpty());
+		final SpatialDataIO sdio = isStandaloneDataset ? SpatialDataIO.openReadOnly(input, service) : SpatialDataContainer.openForReading(containerPath, service).openDatasetReadOnly(input);
+		final STDataAssembly stData = sdio.readData();
+
+		if (stData == null) {
+			System.out.println("Could not load dataset '" + input + "'. Stopping.");
+			return null;
+		}
+
+		// copy into memory, so only writing/reading of the benchmark is measured
+		final RandomAccessibleInterval<DoubleType> allExprValues = stData.data().getAllExprValues();
+		final long genes = Math.min(numGenes, allExprValues.dimension(0));
+		final Img<DoubleType> exprValues = ArrayImgs.doubles(genes, allExprValues.dimension(1));
+		final RandomAccessibleInterval<DoubleType> source = Views.interval(allExprValues, new long[]{0, 0}, new long[]{genes - 1, allExprValues.max(1)});
+		final Cursor<DoubleType> in = Views.flatIterable(source).cursor();
+		for (final DoubleType value : Views.flatIterable(exprValues))
+			value.set(in.next());
+
+		final int[] matrixBlockSize = SpatialDataIO.MatrixChunking.parse(blockSize);
+		final double megabytes = exprValues.size() * 8 / 1024.0 / 1024.0;
+		System.out.println(String.format("Expression values of %d genes x %d locations (%.1f MB), block size %s", genes, exprValues.dimension(1), megabytes, Arrays.toString(matrixBlockSize)));
+
+		final List<String> names = Arrays.stream(compressions.split(",")).map(String::trim).collect(Collectors.toList());
+		for (final String name : names) {
+			final Path tmpPath = Files.createTempDirectory("st-benchmark-compression");
+			try {
+				final Compression compression = SpatialDataIO.createCompression(name);
+				final N5FSWriter n5 = new N5FSWriter(tmpPath.toString());
+
+				long time = System.nanoTime();
+				N5Utils.save(exprValues, n5, "/expressionValues", matrixBlockSize, compression, service);
+				final double writeSeconds = (System.nanoTime() - time) / 1e9;
+
+				final long bytesOnDisk = sizeOnDisk(tmpPath);
+
+				// reads block by block in a single thread, like loading genes on demand
+				time = System.nanoTime();
+				double sum = 0;
+				for (final DoubleType value : Views.flatIterable(N5Utils.<DoubleType>open(n5, "/expressionValues")))
+					sum += value.get();
+				final double readSeconds = (System.nanoTime() - time) / 1e9;
+
+				System.out.println(String.format("%-16s write: %8.1f MB/s, read: %8.1f MB/s, ratio: %6.2f (checksum %.3f)",
+						name, megabytes / writeSeconds, megabytes / readSeconds, (exprValues.size() * 8.0) / bytesOnDisk, sum));
+			}
+			catch (Exception | LinkageError e) {
+				// e.g. blosc without the native library
+				System.out.println(String.format("%-16s failed: %s", name, e));
+			}
+			finally {
+				delete(tmpPath);
+			}
+		}
+
+		service.shutdown();
+		return null;
+	}
+
+	protected static long sizeOnDisk(final Path path) throws IOException {
+		try (final Stream<Path> files = Files.walk(path)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		}
+	}
+
+	protected static void delete(final Path path) throws IOException {
+		try (final Stream<Path> files = Files.walk(path)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	public static final void main(final String... args) {
+		CommandLine.call(new CompressionBenchmark(), args);
+	}
+}
@@ -29,6 +29,12 @@ public class Normalize implements Callable<Void> {
 		@Option(names = {"-i", "--input"}, required = true, description = "comma separated list of input datasets, e.g. -i /home/ssq.n5")
 		private String input = null;
 
+		@Option(names = {"--compression"}, required = false, description = "compression of all datasets: raw, gzip[:level], bzip2[:level], lz4, xz[:level] or blosc[:codec][:level] (N5 supports all, Zarr raw/gzip/blosc, HDF5 raw/gzip), see st-benchmark-compression (default: gzip:3)")
+		private String compression = "gzip:3";
+
+		@Option(names = {"--blockSize"}, required = false, description = "block size of the expression values, SQUARE (512x512), GENE_SLAB (1x65536, fastest for reading single genes), GENE_BLOCK (16x16384) or 'genes x locations', e.g. 4x32768 (default: SQUARE)")
+		private String blockSize = "SQUARE";
+
 		@Override
 		public Void call() throws Exception {
 			List<String> inputDatasets = (input == null) ? new ArrayList<>() :
@@ -80,6 +86,8 @@ public class Normalize implements Callable<Void> {
 																   stData.transform() );
 
 				SpatialDataIO sdout = SpatialDataIO.open(outputPath, service);
+				sdout.setMatrixBlockSize(SpatialDataIO.MatrixChunking.parse(blockSize));
+				sdout.setCompression(SpatialDataIO.createCompression(compression));
 				sdout.writeData(normalizedData);
 				if (!isStandaloneDataset)
 					container.addExistingDataset(outputPath);
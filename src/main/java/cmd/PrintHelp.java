@@ -21,6 +21,8 @@ public class PrintHelp implements Callable<Void> {
 				new Resave(),
 				new AddSlice(),
 				new Normalize(),
+				new Rechunk(),
+				new CompressionBenchmark(),
 				new AddAnnotations(),
 				new PairwiseSectionAligner(),
 				new ViewPairwiseAlignment(),
@@ -0,0 +1,65 @@
+package cmd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import io.N5IO;
+import io.SpatialDataContainer;
+import io.SpatialDataIO;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "st-rechunk", mixinStandardHelpOptions = true, version = "0.3.0", description = "Spatial Transcriptomics as IMages project - rewrite the expression values of datasets in place with a new block size")
+public class Rechunk implements Callable<Void> {
+
+	@Option(names = {"-c", "--container"}, required = false, description = "N5 container; if given, all datasets are taken from that container")
+	private String containerPath = null;
+
+	@Option(names = {"-i", "--input"}, required = true, description = "comma separated list of input datasets (N5 or Zarr with dense expression values, HDF5 has to be resaved with st-resave --blockSize), e.g. -i /home/ssq.n5")
+	private String input = null;
+
+	@Option(names = {"--blockSize"}, required = false, description = "new block size of the expression values, SQUARE (512x512), GENE_SLAB (1x65536, fastest for reading single genes), GENE_BLOCK (16x16384) or 'genes x locations', e.g. 4x32768 (default: GENE_SLAB)")
+	private String blockSize = "GENE_SLAB";
+
+	@Override
+	public Void call() throws Exception {
+		final List<String> inputDatasets = Arrays.stream(input.split(",")).map(String::trim).collect(Collectors.toList());
+		final int[] matrixBlockSize = SpatialDataIO.MatrixChunking.parse(blockSize);
+
+		final boolean isStandaloneDataset = (containerPath == null || containerPath.trim().isEmpty());
+		final ExecutorService service = Executors.newFixedThreadPool(8);
+		final SpatialDataContainer container = isStandaloneDataset ? null : SpatialDataContainer.openExisting(containerPath, service);
+
+		for (final String inputPath : inputDatasets) {
+			try {
+				final SpatialDataIO sdio = isStandaloneDataset ? SpatialDataIO.open(inputPath, service) : container.openDataset(inputPath);
+
+				if (!(sdio instanceof N5IO)) {
+					System.out.println("Cannot rechunk '" + inputPath + "', only N5 and Zarr datasets are supported. Skipping.");
+					continue;
+				}
+
+				System.out.println("Rechunking '" + inputPath + "' to " + Arrays.toString(matrixBlockSize) + " ... ");
+				((N5IO) sdio).rechunkExpressionValues(matrixBlockSize);
+			}
+			catch (IOException | RuntimeException e) {
+				System.out.println("Cannot rechunk '" + inputPath + "': " + e.getMessage() + " Skipping.");
+			}
+		}
+
+		System.out.println("Done.");
+		service.shutdown();
+
+		return null;
+	}
+
+	public static final void main(final String... args) {
+		CommandLine.call(new Rechunk(), args);
+	}
+}
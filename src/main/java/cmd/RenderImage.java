@@ -1,14 +1,16 @@
 package cmd;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import data.STData;
@@ -16,7 +18,6 @@ import data.STDataStatistics;
 import data.STDataUtils;
 import filter.FilterFactory;
 import filter.GaussianFilterFactory;
-import filter.GaussianFilterFactory.WeightType;
 import filter.MeanFilterFactory;
 import filter.MedianFilterFactory;
 import filter.SingleSpotRemovingFilterFactory;
@@ -39,18 +40,21 @@ import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform2D;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
-import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
-import render.MaxDistanceParam;
+import render.BlockwiseRenderer;
+import render.LocationIndex;
 import render.Render;
+import util.Threads;
 
 @Command(name = "st-render", mixinStandardHelpOptions = true, version = "0.3.0", description = "Spatial Transcriptomics as IMages project - render ST data as images in Fiji/ImageJ")
 public class RenderImage implements Callable<Void> {
@@ -102,6 +106,18 @@ public class RenderImage implements Callable<Void> {
 	@Option(names = {"--ignoreTransforms"}, required = false, description = "ignore the transforms stored in the metadata when rendering (default: false)")
 	private boolean ignoreTransforms = false;
 
+	@Option(names = {"--n5Output"}, required = false, description = "render all genes block by block into one N5 or Zarr container (Zarr if the path ends with .zarr) as a single float32 dataset [x, y, dataset, gene], memory is bounded by the blocks in flight, e.g. --n5Output /home/export/render.zarr (default: no N5/Zarr output)")
+	private String n5Output = null;
+
+	@Option(names = {"--n5Dataset"}, required = false, description = "name of the dataset in the N5/Zarr output, e.g. --n5Dataset Puck_180531 (default: rendering)")
+	private String n5Dataset = "rendering";
+
+	@Option(names = {"--n5Levels"}, required = false, description = "number of resolution levels in the N5/Zarr output, each downsampled by 2 and stored as <n5Dataset>/s0, s1, ... if more than one, e.g. --n5Levels 4 (default: 1)")
+	private int n5Levels = 1;
+
+	@Option(names = {"--compression"}, required = false, description = "compression of the N5/Zarr output: raw, gzip[:level], bzip2[:level], lz4, xz[:level] or blosc[:codec][:level] (N5 supports all, Zarr raw/gzip/blosc), see st-benchmark-compression (default: gzip:3)")
+	private String compression = "gzip:3";
+
 	@Override
 	public Void call() throws Exception {
 		if (!(new File(inputPath)).exists()) {
@@ -109,7 +125,7 @@ public class RenderImage implements Callable<Void> {
 			return null;
 		}
 
-		final ExecutorService service = Executors.newFixedThreadPool(8);
+		final ExecutorService service = Threads.createFixedExecutorService();
 		final Map<String, SpatialDataIO> iodata = new HashMap<>();
 		if (SpatialDataContainer.isCompatibleContainer(inputPath)) {
 			SpatialDataContainer container = SpatialDataContainer.openForReading(inputPath, service);
@@ -139,6 +155,7 @@ public class RenderImage implements Callable<Void> {
 		String[] geneList = genes.split(",");
 
 		final List<Pair<STData, AffineTransform2D>> dataToVisualize = new ArrayList<>();
+		final List<String> datasetNames = new ArrayList<>();
 		for (final Map.Entry<String, SpatialDataIO> entry : iodata.entrySet()) {
 			final STDataAssembly stAssembly = entry.getValue().readData();
 
@@ -146,6 +163,7 @@ public class RenderImage implements Callable<Void> {
 				System.out.println("Assigning transform to " + entry.getKey());
 				AffineTransform2D transform = ignoreTransforms ? new AffineTransform2D() : stAssembly.transform();
 				dataToVisualize.add(new ValuePair<>(stAssembly.data(), transform));
+				datasetNames.add(entry.getKey());
 				System.out.println(transform);
 			}
 		}
@@ -156,54 +174,128 @@ public class RenderImage implements Callable<Void> {
 			return null;
 		}
 
+		// everything that does not depend on the gene is computed once per dataset and shared by all genes
+		final List<STDataStatistics> stats = new ArrayList<>();
+		final List<LocationIndex> indices = ( rendering == Rendering.Gauss && n5Output == null ) ? null : new ArrayList<>();
+
+		for ( final Pair<STData, AffineTransform2D> pair : dataToVisualize )
+		{
+			stats.add( new STDataStatistics( pair.getA() ) );
+
+			if ( indices != null )
+				indices.add( new LocationIndex( pair.getA().getExprData( pair.getA().getGeneNames().get( 0 ) ), stats.get( stats.size() - 1 ).getMedianDistance() ) );
+		}
+
 		final List<FilterFactory<DoubleType, DoubleType>> filterFactories =
-				assembleFilterFactories(
-						new STDataStatistics( dataToVisualize.get( 0 ).getA() ),
-						ffSingleSpot, ffMedian, ffGauss, ffMean );
+				assembleFilterFactories( stats.get( 0 ), ffSingleSpot, ffMedian, ffGauss, ffMean );
+
+		final Interval finalInterval = renderInterval( dataToVisualize, scale, border );
+
+		System.out.println( "Rendering interval: " + Util.printInterval( finalInterval ) );
+
+		// blockwise, the full images are never in memory
+		if ( n5Output != null )
+			renderToN5( dataToVisualize, datasetNames, stats, indices, geneList, filterFactories, finalInterval, service );
+
+		final boolean showImageJ = output == null && n5Output == null;
+
+		if ( output == null && !showImageJ )
+		{
+			service.shutdown();
+			return null;
+		}
 
-		if ( output == null )
+		if ( showImageJ )
 			new ImageJ();
-		else
-			if ( !new File( output ).exists() )
-				new File( output ).mkdirs();
+		else if ( !new File( output ).exists() )
+			new File( output ).mkdirs();
+
+		// genes are rendered (and saved) in parallel, each of them single-threaded, as many at once as fit into memory
+		final int numConcurrentGenes = numConcurrentGenes( finalInterval, dataToVisualize.size() );
+
+		if ( numConcurrentGenes < Math.min( Threads.numThreads(), geneList.length ) )
+			System.out.println( "Rendering " + numConcurrentGenes + " gene(s) at once to stay within memory"
+					+ ( numConcurrentGenes == 1 ? ", consider --n5Output for rendering block by block." : "." ) );
+
+		final ExecutorService geneService = Threads.createFixedExecutorService( numConcurrentGenes );
+		final ExecutorCompletionService< ImagePlus > completionService = new ExecutorCompletionService<>( geneService );
 
 		for ( final String gene : geneList )
 		{
-			System.out.println( "Rendering gene " + gene );
+			completionService.submit( () ->
+			{
+				System.out.println( "Rendering gene " + gene );
 
-			//ImagePlus imp = AlignTools.visualizeList( dataToVisualize, scale, gene, true );// filterFactories );
-			ImagePlus imp = visualizeList( dataToVisualize, scale, brightnessMin, brightnessMax, gene, rendering, renderingFactor, border, filterFactories );
-			imp.setTitle( gene );
+				final ImagePlus imp = visualizeList(
+						dataToVisualize, stats, indices, scale, brightnessMin, brightnessMax, gene,
+						rendering, renderingFactor, filterFactories, finalInterval, Threads.createSameThreadExecutorService() );
+				imp.setTitle( gene );
+
+				if ( output != null )
+				{
+					final String file = new File( output, gene + ".tif" ).getAbsolutePath();
+					System.out.println( "Saving as " + file );
+					IJ.saveAsTiff( imp, file );
+				}
+
+				if ( showImageJ )
+					return imp;
 
-			if ( output == null )
-			{
-				imp.show();
-			}
-			else
-			{
-				final String file = new File( output, gene + ".tif" ).getAbsolutePath();
-				System.out.println( "Saving as " + file );
-				IJ.saveAsTiff( imp, file );
 				imp.close();
+				return null;
+			});
+		}
+
+		try
+		{
+			// show the images as soon as they are done
+			for ( int i = 0; i < geneList.length; ++i )
+			{
+				final ImagePlus imp = completionService.take().get();
+
+				if ( imp != null )
+					imp.show();
 			}
 		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			geneService.shutdown();
+		}
 
 		service.shutdown();
 		return null;
 	}
 
-	public static ImagePlus visualizeList(
+	/**
+	 * @param interval - the pixel interval rendered for each gene
+	 * @param numDatasets - the number of datasets (slices) rendered for each gene
+	 * @return how many genes can be rendered at once, the rasterized images ({@link Render#bytesPerRasterizedPixel})
+	 * plus the float slices of the ImagePlus of all genes in flight have to fit into half of the heap
+	 */
+	public static int numConcurrentGenes( final Interval interval, final int numDatasets )
+	{
+		final double bytesPerGene = (double)Intervals.numElements( interval ) * numDatasets * ( Render.bytesPerRasterizedPixel + Float.BYTES );
+		final long numGenes = (long)Math.floor( Runtime.getRuntime().maxMemory() / 2 / bytesPerGene );
+
+		return (int)Math.max( 1, Math.min( Threads.numThreads(), numGenes ) );
+	}
+
+	/**
+	 * @param data - the datasets and their transforms
+	 * @param scale - scaling of the image
+	 * @param border - extra empty border in pixels
+	 * @return the interval covering all datasets (transformed and scaled) plus the border
+	 */
+	public static Interval renderInterval(
 			final List< Pair< STData, AffineTransform2D > > data,
 			final double scale,
-			final double brightnessMin,
-			final double brightnessMax,
-			final String gene,
-			final Rendering renderType,
-			final double renderingFactor,
-			final int border,
-			final List< FilterFactory< DoubleType, DoubleType > > filterFactories )
+			final int border )
 	{
-		// visualize result using the global transform
 		final AffineTransform2D tS = new AffineTransform2D();
 		tS.scale( scale );
 
@@ -215,30 +307,139 @@ public class RenderImage implements Callable<Void> {
 									entry.getB().copy().preConcatenate( tS ) )
 						).collect( Collectors.toList() ) );
 
-		final Interval finalInterval = Intervals.expand( interval, border );
+		return Intervals.expand( interval, border );
+	}
+
+	/**
+	 * Renders all genes block by block into a float32 dataset [x, y, dataset, gene] (or a pyramid of them),
+	 * only the blocks in flight are in memory.
+	 */
+	protected void renderToN5(
+			final List< Pair< STData, AffineTransform2D > > data,
+			final List< String > datasetNames,
+			final List< STDataStatistics > stats,
+			final List< LocationIndex > indices,
+			final String[] geneList,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final Interval interval,
+			final ExecutorService service ) throws IOException
+	{
+		try ( final N5Writer n5 = n5Output.endsWith( ".zarr" ) ? new N5ZarrWriter( n5Output ) : new N5FSWriter( n5Output ) )
+		{
+			final List< String > datasets =
+					BlockwiseRenderer.createDatasets(
+							n5, n5Dataset, interval, new long[] { data.size(), geneList.length }, n5Levels, BlockwiseRenderer.defaultBlockSize,
+							SpatialDataIO.checkCompression( n5, SpatialDataIO.createCompression( compression ) ) );
+
+			n5.setAttribute( n5Dataset, "genes", geneList );
+			n5.setAttribute( n5Dataset, "datasets", datasetNames );
+			n5.setAttribute( n5Dataset, "min", Intervals.minAsLongArray( interval ) );
+
+			final AffineTransform2D tS = new AffineTransform2D();
+			tS.scale( scale );
+
+			for ( int g = 0; g < geneList.length; ++g )
+			{
+				for ( int i = 0; i < data.size(); ++i )
+				{
+					System.out.println( "Rendering gene " + geneList[ g ] + " of " + datasetNames.get( i ) + " to '" + n5Output + "'" );
+
+					final STData stdata = data.get( i ).getA();
+
+					BlockwiseRenderer.render(
+							Render.getRealIterable( stdata, null, geneList[ g ], filterFactories, service ),
+							indices.get( i ),
+							stats.get( i ).getMedianDistance(),
+							rendering,
+							renderingFactor,
+							data.get( i ).getB().copy().preConcatenate( tS ),
+							interval,
+							n5,
+							datasets,
+							new long[] { i, g },
+							service );
+				}
+			}
+		}
+	}
+
+	public static ImagePlus visualizeList(
+			final List< Pair< STData, AffineTransform2D > > data,
+			final double scale,
+			final double brightnessMin,
+			final double brightnessMax,
+			final String gene,
+			final Rendering renderType,
+			final double renderingFactor,
+			final int border,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories )
+	{
+		final Interval finalInterval = renderInterval( data, scale, border );
 
 		System.out.println( "Rendering interval: " + Util.printInterval( finalInterval ) );
 
+		final List< STDataStatistics > stats = data.stream().map( pair -> new STDataStatistics( pair.getA() ) ).collect( Collectors.toList() );
+
+		final ExecutorService service = Threads.createFixedExecutorService();
+		final ImagePlus imp = visualizeList( data, stats, null, scale, brightnessMin, brightnessMax, gene, renderType, renderingFactor, filterFactories, finalInterval, service );
+		service.shutdown();
+
+		return imp;
+	}
+
+	/**
+	 * @param data - the datasets and their transforms
+	 * @param stats - the statistics of each dataset
+	 * @param indices - the location index of each dataset (can be null)
+	 * @param scale - scaling of the image
+	 * @param brightnessMin - min brightness relative to the maximal value + overall min intensity
+	 * @param brightnessMax - max brightness relative to the maximal value
+	 * @param gene - the gene
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param filterFactories - filters applied to the values (can be null)
+	 * @param finalInterval - the pixel interval to render
+	 * @param service - for filtering and rendering in parallel
+	 * @return an image stack with one slice per dataset
+	 */
+	public static ImagePlus visualizeList(
+			final List< Pair< STData, AffineTransform2D > > data,
+			final List< STDataStatistics > stats,
+			final List< LocationIndex > indices,
+			final double scale,
+			final double brightnessMin,
+			final double brightnessMax,
+			final String gene,
+			final Rendering renderType,
+			final double renderingFactor,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final Interval finalInterval,
+			final ExecutorService service )
+	{
+		final AffineTransform2D tS = new AffineTransform2D();
+		tS.scale( scale );
+
 		final ImageStack stack = new ImageStack( (int)finalInterval.dimension( 0 ), (int)finalInterval.dimension( 1 ) );
 
 		double minDisplay = Double.MAX_VALUE;
 		double maxDisplay = -Double.MAX_VALUE;
 
-		for ( Pair< STData, AffineTransform2D > pair : data )
+		for ( int i = 0; i < data.size(); ++i )
 		{
-			final AffineTransform2D tA = pair.getB().copy();
-			tA.preConcatenate( tS );
+			final Pair< STData, AffineTransform2D > pair = data.get( i );
 
 			final RandomAccessibleInterval<DoubleType> vis =
 					display(
 							pair.getA(),
-							new STDataStatistics( pair.getA() ),
+							stats.get( i ),
+							indices == null ? null : indices.get( i ),
 							pair.getB().copy().preConcatenate( tS ),
 							renderType,
 							renderingFactor,
 							filterFactories,
 							gene,
-							finalInterval );
+							finalInterval,
+							service );
 
 			System.out.println( "rendering  " + pair.getA().toString() );
 
@@ -301,45 +502,57 @@ public class RenderImage implements Callable<Void> {
 			final Rendering renderType,
 			final double renderingFactor )
 	{
-		final RealRandomAccessible< DoubleType > renderRRA;
+		return Render.createRRA( data, medianDistance, renderType, renderingFactor );
+	}
 
-		if ( renderType == Rendering.Gauss )
-		{
-			renderRRA = Render.render( data, new GaussianFilterFactory<>( new DoubleType( 0 ), medianDistance*renderingFactor, WeightType.PARTIAL_BY_SUM_OF_WEIGHTS ) );
-		}
-		else if ( renderType == Rendering.NN )
-		{
-			renderRRA = Render.renderNN( data, new DoubleType( 0 ), new MaxDistanceParam( medianDistance*renderingFactor ) );
-		}
-		else if ( renderType == Rendering.Mean )
-		{
-			renderRRA = Render.render( data, new MeanFilterFactory<>( new DoubleType( 0 ), medianDistance*renderingFactor ) );
-		}
-		else // LINEAR
-		{
-			renderRRA = Render.renderLinear( data, 5, 3.0, new DoubleType( 0 ),  new MaxDistanceParam( medianDistance*renderingFactor ) );
-		}
+	public static RandomAccessibleInterval< DoubleType > display(
+			final STData stdata,
+			final STDataStatistics stStats,
+			final AffineGet coordinateTransform,
+			final Rendering renderType,
+			final double renderingFactor,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final String gene,
+			final Interval renderInterval )
+	{
+		final ExecutorService service = Threads.createFixedExecutorService();
+		final RandomAccessibleInterval< DoubleType > rendered =
+				display( stdata, stStats, null, coordinateTransform, renderType, renderingFactor, filterFactories, gene, renderInterval, service );
+		service.shutdown();
 
-		return renderRRA;
+		return rendered;
 	}
 
+	/**
+	 * @param stdata - the dataset
+	 * @param stStats - its statistics
+	 * @param index - index of the locations of stdata, shared by all genes (can be null)
+	 * @param coordinateTransform - maps data coordinates to pixel coordinates
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param filterFactories - filters applied to the values (can be null)
+	 * @param gene - the gene
+	 * @param renderInterval - the pixel interval to render
+	 * @param service - for filtering and rendering in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
 	public static RandomAccessibleInterval< DoubleType > display(
 			final STData stdata,
 			final STDataStatistics stStats,
+			final LocationIndex index,
 			final AffineGet coordinateTransform,
 			final Rendering renderType,
 			final double renderingFactor,
 			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
 			final String gene,
-			final Interval renderInterval )
+			final Interval renderInterval,
+			final ExecutorService service )
 	{
 		// we work at full resolution so rendering and filter parameters are independent of the scale
-		final IterableRealInterval< DoubleType > data = Render.getRealIterable( stdata, null, gene, filterFactories );
-
-		final RealRandomAccessible< DoubleType > renderRRA =
-				createRRA( data, stStats.getMedianDistance(), renderType, renderingFactor );
+		final IterableRealInterval< DoubleType > data = Render.getRealIterable( stdata, null, gene, filterFactories, service );
 
-		return Views.interval( RealViews.affine( renderRRA, coordinateTransform ), renderInterval );
+		// the full image is rasterized, splatting (Gauss) or tiling (all others) is much faster than a search per pixel
+		return Render.rasterize( data, index, stStats.getMedianDistance(), renderType, renderingFactor, coordinateTransform, renderInterval, service );
 	}
 
 	public static final void main(final String... args) {
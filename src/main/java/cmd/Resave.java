@@ -21,9 +21,12 @@ import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import gui.STDataAssembly;
+import io.AnnDataIO;
+import io.N5IO;
 import io.SpatialDataContainer;
 import io.SpatialDataIO;
 import org.apache.commons.compress.archivers.ArchiveException;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.CompressorInputStream;
@@ -53,6 +56,27 @@ public class Resave implements Callable<Void> {
 	@Option(names = {"-n", "--normalize"}, required = false, description = "log-normalize the input data before saving (default: false)")
 	private boolean normalize = false;
 
+	@Option(names = {"--geneMajorIndex"}, required = false, description = "for AnnData output: additionally store the expression values by gene (CSC) next to /X for fast per-gene reads (default: false)")
+	private boolean geneMajorIndex = false;
+
+	@Option(names = {"--exprLayout"}, required = false, description = "for N5/Zarr output: layout of the expression values, DENSE, CSR (sparse by location) or CSC (sparse by gene, fastest gene reads) (default: DENSE)")
+	private N5IO.ExpressionLayout exprLayout = N5IO.ExpressionLayout.DENSE;
+
+	@Option(names = {"--stringDatasets"}, required = false, description = "for N5/Zarr output: store barcodes and gene names as chunked datasets instead of root attributes, recommended for large datasets (default: false)")
+	private boolean stringDatasets = false;
+
+	@Option(names = {"--compression"}, required = false, description = "compression of all datasets: raw, gzip[:level], bzip2[:level], lz4, xz[:level] or blosc[:codec][:level] (N5 supports all, Zarr raw/gzip/blosc, HDF5 raw/gzip), see st-benchmark-compression (default: gzip:3)")
+	private String compression = "gzip:3";
+
+	@Option(names = {"--blockSize"}, required = false, description = "block size of the expression values, SQUARE (512x512), GENE_SLAB (1x65536, fastest for reading single genes), GENE_BLOCK (16x16384) or 'genes x locations', e.g. 4x32768 (default: SQUARE)")
+	private String blockSize = "SQUARE";
+
+	@Option(names = {"--exprType"}, required = false, description = "data type for storing expression values, e.g. FLOAT32 or INT32 for raw counts (default: FLOAT64)")
+	private DataType exprType = DataType.FLOAT64;
+
+	@Option(names = {"--locationType"}, required = false, description = "data type for storing locations, e.g. FLOAT32 (default: FLOAT64)")
+	private DataType locationType = DataType.FLOAT64;
+
 	@Override
 	public Void call() throws Exception {
 		if (inputPaths == null) {
@@ -107,6 +131,15 @@ public class Resave implements Callable<Void> {
 
 		final ExecutorService service = Executors.newFixedThreadPool(8);
 		SpatialDataIO sdio = SpatialDataIO.open(outputFile.getAbsolutePath(), service);
+		if (geneMajorIndex && sdio instanceof AnnDataIO)
+			((AnnDataIO) sdio).setWriteGeneMajorIndex(true);
+		if (sdio instanceof N5IO) {
+			((N5IO) sdio).setExpressionLayout(exprLayout);
+			((N5IO) sdio).setStringListsAsDatasets(stringDatasets);
+		}
+		sdio.setStorageTypes(exprType, locationType);
+		sdio.setMatrixBlockSize(SpatialDataIO.MatrixChunking.parse(blockSize));
+		sdio.setCompression(SpatialDataIO.createCompression(compression));
 		System.out.println("\nSaving in file='" + outputFile.getPath() + "'");
 		sdio.writeData(new STDataAssembly(data));
 
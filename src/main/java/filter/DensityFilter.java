@@ -1,8 +1,8 @@
 package filter;
 
 import net.imglib2.RealLocalizable;
-import net.imglib2.neighborsearch.RadiusNeighborSearch;
 import net.imglib2.type.numeric.RealType;
+import render.RadiusCountSearch;
 
 /**
  * Visualizes the density at a certain location given the radius
@@ -13,16 +13,19 @@ import net.imglib2.type.numeric.RealType;
  */
 public class DensityFilter< T extends RealType< T > > extends RadiusSearchFilter< T, T, DensityFilterFactory< T > >
 {
-	public DensityFilter( final RadiusNeighborSearch< T > search, final DensityFilterFactory< T > factory )
+	// only counts, does not collect the neighbors
+	final RadiusCountSearch< T > countSearch;
+
+	public DensityFilter( final RadiusCountSearch< T > search, final DensityFilterFactory< T > factory )
 	{
 		super( search, factory );
+
+		this.countSearch = search;
 	}
 
 	@Override
 	public void filter( final RealLocalizable position, final T output )
 	{
-		search.search( position, factory.getRadius(), false );
-
-		output.setReal( search.numNeighbors() );
+		output.setReal( countSearch.count( position, factory.getRadius() ) );
 	}
 }
@@ -1,8 +1,10 @@
 package filter;
 
 import net.imglib2.KDTree;
-import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.RadiusCountSearchOnGrid;
+import render.RadiusCountSearchOnKDTree;
 
 public class DensityFilterFactory< T extends RealType< T > > extends RadiusSearchFilterFactory< T, T >
 {
@@ -18,7 +20,15 @@ public class DensityFilterFactory< T extends RealType< T > > extends RadiusSearc
 	public Filter< T > createFilter( final KDTree< T > tree )
 	{
 		return new DensityFilter< T >(
-				new RadiusNeighborSearchOnKDTree<>( tree ),
+				new RadiusCountSearchOnKDTree<>( tree ),
+				this );
+	}
+
+	@Override
+	public Filter< T > createFilter( final GridIndex< T > grid )
+	{
+		return new DensityFilter< T >(
+				new RadiusCountSearchOnGrid<>( grid ),
 				this );
 	}
 
@@ -0,0 +1,57 @@
+package filter;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.neighborsearch.RadiusNeighborSearch;
+import net.imglib2.type.numeric.RealType;
+import util.ExpLookupTable;
+
+/**
+ * Same as {@link GaussianFilter}, but the weights come from a lookup table and are computed directly from
+ * the squared distances, see {@link FastGaussianFilterFactory} for the numerical error.
+ */
+public class FastGaussianFilter< S extends RealType< S >, T extends RealType< T > > extends RadiusSearchFilter< S, T, FastGaussianFilterFactory< S, T > >
+{
+	final T outofbounds;
+	final ExpLookupTable lut;
+
+	public FastGaussianFilter(
+			final RadiusNeighborSearch< S > search,
+			final FastGaussianFilterFactory<S, T> factory,
+			final T outofbounds )
+	{
+		super( search, factory );
+
+		this.outofbounds = outofbounds;
+		this.lut = factory.getLookupTable();
+	}
+
+	@Override
+	public void filter( final RealLocalizable position, final T output )
+	{
+		search.search( position, factory.getRadius(), false );
+
+		final int numNeighbors = search.numNeighbors();
+
+		if ( numNeighbors == 0 )
+		{
+			output.set( outofbounds );
+		}
+		else
+		{
+			final double invTwoSqSigma = 1.0 / factory.getTwoSqSigma();
+
+			double value = 0;
+			double weight = 0;
+
+			for ( int i = 0; i < numNeighbors; ++i )
+			{
+				final double w = lut.exp( search.getSquareDistance( i ) * invTwoSqSigma );
+
+				value += search.getSampler( i ).get().getRealDouble() * w;
+				weight += w;
+			}
+
+			output.setReal( GaussianFilter.normalize( value, weight, numNeighbors, factory.getNormalize() ) );
+		}
+	}
+}
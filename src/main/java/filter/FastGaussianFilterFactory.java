@@ -0,0 +1,110 @@
+package filter;
+
+import net.imglib2.KDTree;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.RadiusCountSearchOnGrid;
+import util.ExpLookupTable;
+
+/**
+ * A {@link GaussianFilterFactory} that creates {@link FastGaussianFilter}s, which look up the Gaussian weights in a
+ * precomputed table instead of calling Math.exp for every neighbor, and which only search neighbors within a tighter
+ * cutoff (default 4 sigma instead of 5 sigma, i.e. 36% fewer neighbors in 2d).
+ *
+ * Numerical error compared to {@link GaussianFilter}:
+ * <ul>
+ * <li>interpolation: every weight differs by at most {@link ExpLookupTable#maxError()} (&lt; 5e-7 absolute for the defaults)</li>
+ * <li>cutoff: neighbors between cutoff*sigma and 5*sigma are ignored, each of them had a weight &lt; exp(-cutoff^2/2),
+ * i.e. &lt; 3.4e-4 for the default cutoff of 4 sigma (for evenly spaced spots in 2d they contribute a fraction of
+ * exp(-cutoff^2/2) - exp(-12.5) &lt; 3.4e-4 of the total weight)</li>
+ * </ul>
+ * For typical renderings (values normalized by the sum of weights) this is well below the display precision.
+ *
+ * @param <S> - input type
+ * @param <T> - output type
+ */
+public class FastGaussianFilterFactory< S extends RealType< S >, T extends RealType< T > > extends GaussianFilterFactory< S, T >
+{
+	public static double defaultCutoff = 4.0;
+	public static int defaultTableSize = 4096;
+
+	final double cutoff;
+	final ExpLookupTable lut;
+
+	public FastGaussianFilterFactory(
+			final T outofbounds,
+			final double sigma )
+	{
+		this( outofbounds, sigma, WeightType.PARTIAL_BY_SUM_OF_WEIGHTS );
+	}
+
+	public FastGaussianFilterFactory(
+			final T outofbounds,
+			final double sigma,
+			final WeightType normalize )
+	{
+		this( outofbounds, sigma, normalize, defaultCutoff, defaultTableSize );
+	}
+
+	/**
+	 * @param outofbounds - value if there are no neighbors
+	 * @param sigma - the sigma of the Gaussian
+	 * @param normalize - the weight type
+	 * @param cutoff - the search radius in multiples of sigma
+	 * @param tableSize - the number of entries of the lookup table (more entries, less interpolation error)
+	 */
+	public FastGaussianFilterFactory(
+			final T outofbounds,
+			final double sigma,
+			final WeightType normalize,
+			final double cutoff,
+			final int tableSize )
+	{
+		super( outofbounds, cutoff * sigma, sigma, normalize );
+
+		this.cutoff = cutoff;
+
+		// the table is independent of sigma: x = d^2 / (2*sigma^2) <= cutoff^2 / 2
+		this.lut = new ExpLookupTable( cutoff * cutoff / 2.0, tableSize );
+	}
+
+	@Override
+	public Filter< T > createFilter( final KDTree< S > tree )
+	{
+		return new FastGaussianFilter< S, T >(
+				new RadiusNeighborSearchOnKDTree<>( tree ),
+				this,
+				outofbounds.copy() );
+	}
+
+	@Override
+	public Filter< T > createFilter( final GridIndex< S > grid )
+	{
+		return new FastGaussianFilter< S, T >(
+				new RadiusCountSearchOnGrid<>( grid ),
+				this,
+				outofbounds.copy() );
+	}
+
+	/**
+	 * sets the sigma, radius (cutoff * sigma), and 2*sigma^2
+	 * @param sigma - new sigma
+	 */
+	@Override
+	public void setSigma( final double sigma )
+	{
+		super.setSigma( sigma );
+		this.radius = cutoff * sigma;
+	}
+
+	/**
+	 * @return the search radius in multiples of sigma
+	 */
+	public double getCutoff() { return cutoff; }
+
+	/**
+	 * @return the lookup table for exp(-x), x = d^2 / (2*sigma^2)
+	 */
+	public ExpLookupTable getLookupTable() { return lut; }
+}
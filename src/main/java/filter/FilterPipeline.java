@@ -0,0 +1,610 @@
+package filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import filter.GaussianFilterFactory.WeightType;
+import imglib2.ArrayValueRealIterable;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.KDTree;
+import net.imglib2.RealCursor;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+import util.ExpLookupTable;
+
+/**
+ * Applies a chain of radius search filters (e.g. single spot removal, median, gauss) to the values of a
+ * fixed set of locations. Since the locations do not change between the stages, the spatial index is built
+ * once and every spot is queried once at the largest radius of all stages. The neighborhoods are stored as
+ * (index, squared distance) lists and each stage is evaluated from them into primitive value buffers, so a
+ * chain of N filters needs one KDTree and one search per spot instead of N.
+ *
+ * Supported are {@link SingleSpotRemovingFilterFactory}, {@link MedianFilterFactory}, {@link MeanFilterFactory},
+ * {@link GaussianFilterFactory} and {@link DensityFilterFactory}, see {@link #supports(List)}. The result is
+ * the same (up to floating point rounding) as applying {@link Filters#filter(IterableRealInterval, FilterFactory)}
+ * one after another.
+ *
+ * Note: all neighborhoods are kept in memory ({@link #bytesPerNeighbor} bytes per neighbor, twice that while they
+ * are assembled), which is proportional to the number of spots times the average number of neighbors within the
+ * largest radius. {@link #create(IterableRealInterval, double, long, ExecutorService)} gives up once a limit is
+ * exceeded and {@link #filter(IterableRealInterval, List, ExecutorService)} then filters stage by stage.
+ *
+ * @author spreibi
+ */
+public class FilterPipeline
+{
+	// one int (index) and one double (squared distance) per neighbor
+	public static final int bytesPerNeighbor = 12;
+
+	final int numPoints;
+	final double maxRadius;
+
+	// neighborhood of spot i: neighbors[ offsets[ i ] ] ... neighbors[ offsets[ i + 1 ] - 1 ]
+	final int[] offsets;
+	final int[] neighbors;
+	final double[] sqDistances;
+
+	protected FilterPipeline(
+			final int numPoints,
+			final double maxRadius,
+			final int[] offsets,
+			final int[] neighbors,
+			final double[] sqDistances )
+	{
+		this.numPoints = numPoints;
+		this.maxRadius = maxRadius;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.sqDistances = sqDistances;
+	}
+
+	/**
+	 * Builds the spatial index over the locations and queries the neighborhood of every location.
+	 *
+	 * @param locations - the locations, the order of iteration defines the order of all value arrays
+	 * @param maxRadius - the largest radius any stage will use
+	 * @param maxNeighbors - the maximal number of neighbors of all locations together (see {@link #maxNeighbors(long)})
+	 * @param service - for parallel queries
+	 * @return the pipeline, or null if the locations have more than maxNeighbors neighbors in total
+	 */
+	public static FilterPipeline create(
+			final IterableRealInterval< ? > locations,
+			final double maxRadius,
+			final long maxNeighbors,
+			final ExecutorService service )
+	{
+		if ( locations.size() > Integer.MAX_VALUE )
+			return null;
+
+		final int numPoints = (int)locations.size();
+		final int limit = (int)Math.min( Integer.MAX_VALUE - 8, maxNeighbors );
+
+		final List< RealPoint > points = new ArrayList<>( numPoints );
+		final List< IntType > indices = new ArrayList<>( numPoints );
+
+		final RealCursor< ? > cursor = locations.localizingCursor();
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			cursor.fwd();
+			points.add( new RealPoint( cursor ) );
+			indices.add( new IntType( i ) );
+		}
+
+		final KDTree< IntType > tree = new KDTree<>( indices, points );
+
+		final int blockSize = Math.max( 1000, numPoints / 100 );
+		final int numBlocks = ( numPoints + blockSize - 1 ) / blockSize;
+
+		final int[][] blockNeighbors = new int[ numBlocks ][];
+		final double[][] blockSqDistances = new double[ numBlocks ][];
+		final int[][] blockCounts = new int[ numBlocks ][];
+
+		final AtomicLong total = new AtomicLong();
+		final AtomicBoolean exceeded = new AtomicBoolean( false );
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final int block = b;
+
+			tasks.add( () ->
+			{
+				final RadiusNeighborSearchOnKDTree< IntType > search = new RadiusNeighborSearchOnKDTree<>( tree );
+
+				final int start = block * blockSize;
+				final int end = Math.min( numPoints, start + blockSize );
+
+				final int[] counts = new int[ end - start ];
+				int[] n = new int[ (int)Math.min( limit, ( end - start ) * 8L ) ];
+				double[] d = new double[ n.length ];
+				int size = 0;
+
+				for ( int i = start; i < end; ++i )
+				{
+					search.search( points.get( i ), maxRadius, false );
+
+					final int numNeighbors = search.numNeighbors();
+
+					// stop early once all blocks together exceed the limit
+					if ( total.addAndGet( numNeighbors ) > limit || exceeded.get() )
+					{
+						exceeded.set( true );
+						return null;
+					}
+
+					if ( size + numNeighbors > n.length )
+					{
+						final int newLength = (int)Math.min( limit, Math.max( 2L * n.length, size + numNeighbors ) );
+						n = Arrays.copyOf( n, newLength );
+						d = Arrays.copyOf( d, newLength );
+					}
+
+					for ( int k = 0; k < numNeighbors; ++k )
+					{
+						n[ size ] = search.getSampler( k ).get().get();
+						d[ size++ ] = search.getSquareDistance( k );
+					}
+
+					counts[ i - start ] = numNeighbors;
+				}
+
+				blockNeighbors[ block ] = Arrays.copyOf( n, size );
+				blockSqDistances[ block ] = Arrays.copyOf( d, size );
+				blockCounts[ block ] = counts;
+
+				return null;
+			});
+		}
+
+		execTasks( tasks, service );
+
+		if ( exceeded.get() )
+			return null;
+
+		final int[] offsets = new int[ numPoints + 1 ];
+		final int[] neighbors = new int[ (int)total.get() ];
+		final double[] sqDistances = new double[ (int)total.get() ];
+
+		int i = 0;
+		int pos = 0;
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			System.arraycopy( blockNeighbors[ b ], 0, neighbors, pos, blockNeighbors[ b ].length );
+			System.arraycopy( blockSqDistances[ b ], 0, sqDistances, pos, blockSqDistances[ b ].length );
+
+			for ( final int count : blockCounts[ b ] )
+			{
+				offsets[ i++ ] = pos;
+				pos += count;
+			}
+		}
+
+		offsets[ numPoints ] = pos;
+
+		return new FilterPipeline( numPoints, maxRadius, offsets, neighbors, sqDistances );
+	}
+
+	public int numPoints() { return numPoints; }
+	public double maxRadius() { return maxRadius; }
+
+	/**
+	 * Applies all filters one after another to the values (the output of one stage is the input of the next).
+	 *
+	 * @param values - the values in iteration order of the locations (not modified)
+	 * @param filterFactories - the stages, all must be supported (see {@link #supports(List)}) and their radius must not exceed {@link #maxRadius()}
+	 * @param service - for parallel evaluation
+	 * @return the filtered values in iteration order of the locations
+	 */
+	public double[] filter(
+			final double[] values,
+			final List< ? extends FilterFactory< ?, ? > > filterFactories,
+			final ExecutorService service )
+	{
+		if ( values.length != numPoints )
+			throw new RuntimeException( "Number of values (" + values.length + ") does not match the number of locations (" + numPoints + ")." );
+
+		double[] input = values.clone();
+		double[] output = new double[ numPoints ];
+
+		for ( final FilterFactory< ?, ? > filterFactory : filterFactories )
+		{
+			final double radius = ((RadiusSearchFilterFactory< ?, ? >)filterFactory).getRadius();
+
+			if ( radius > maxRadius )
+				throw new RuntimeException( "Radius of " + filterFactory.getClass().getSimpleName() + " (" + radius + ") is larger than the radius of the pipeline (" + maxRadius + ")." );
+
+			final double[] in = input;
+			final double[] out = output;
+
+			final List< Callable< Void > > tasks = new ArrayList<>();
+			final int blockSize = Math.max( 1000, numPoints / 100 );
+
+			for ( int i = 0; i < numPoints; i += blockSize )
+			{
+				final int start = i;
+				final int end = Math.min( numPoints, start + blockSize );
+
+				tasks.add( () ->
+				{
+					filterBlock( filterFactory, radius * radius, in, out, start, end );
+					return null;
+				});
+			}
+
+			execTasks( tasks, service );
+
+			// swap buffers
+			input = out;
+			output = in;
+		}
+
+		return input;
+	}
+
+	protected void filterBlock(
+			final FilterFactory< ?, ? > filterFactory,
+			final double sqRadius,
+			final double[] in,
+			final double[] out,
+			final int start,
+			final int end )
+	{
+		if ( filterFactory instanceof SingleSpotRemovingFilterFactory )
+		{
+			final double outofbounds = ((SingleSpotRemovingFilterFactory< ? >)filterFactory).outofbounds.getRealDouble();
+
+			for ( int i = start; i < end; ++i )
+			{
+				int numNeighbors = 0, nearest = -1;
+				double minSqDist = Double.MAX_VALUE;
+
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; ++k )
+				{
+					final double sqDist = sqDistances[ k ];
+
+					if ( sqDist <= sqRadius )
+					{
+						++numNeighbors;
+
+						if ( sqDist < minSqDist )
+						{
+							minSqDist = sqDist;
+							nearest = neighbors[ k ];
+						}
+					}
+				}
+
+				out[ i ] = numNeighbors > 1 ? in[ nearest ] : outofbounds;
+			}
+		}
+		else if ( filterFactory instanceof MedianFilterFactory )
+		{
+			final double outofbounds = ((MedianFilterFactory< ? >)filterFactory).outofbounds.getRealDouble();
+
+			double[] tmp = new double[ 16 ];
+
+			for ( int i = start; i < end; ++i )
+			{
+				int numNeighbors = 0;
+
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; ++k )
+				{
+					if ( sqDistances[ k ] <= sqRadius )
+					{
+						if ( numNeighbors == tmp.length )
+							tmp = Arrays.copyOf( tmp, tmp.length * 2 );
+
+						tmp[ numNeighbors++ ] = in[ neighbors[ k ] ];
+					}
+				}
+
+				if ( numNeighbors > 1 )
+					out[ i ] = Util.median( Arrays.copyOf( tmp, numNeighbors ) );
+				else if ( numNeighbors == 1 )
+					out[ i ] = tmp[ 0 ];
+				else
+					out[ i ] = outofbounds;
+			}
+		}
+		else if ( filterFactory instanceof MeanFilterFactory )
+		{
+			final double outofbounds = ((MeanFilterFactory< ?, ? >)filterFactory).outofbounds.getRealDouble();
+
+			for ( int i = start; i < end; ++i )
+			{
+				int numNeighbors = 0;
+				double value = 0;
+
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; ++k )
+				{
+					if ( sqDistances[ k ] <= sqRadius )
+					{
+						++numNeighbors;
+						value += in[ neighbors[ k ] ];
+					}
+				}
+
+				out[ i ] = numNeighbors == 0 ? outofbounds : value / numNeighbors;
+			}
+		}
+		else if ( filterFactory instanceof GaussianFilterFactory )
+		{
+			final GaussianFilterFactory< ?, ? > gaussFactory = (GaussianFilterFactory< ?, ? >)filterFactory;
+			final double outofbounds = gaussFactory.outofbounds.getRealDouble();
+			final double twoSqSigma = gaussFactory.getTwoSqSigma();
+			final WeightType normalize = gaussFactory.getNormalize();
+			final ExpLookupTable lut = ( gaussFactory instanceof FastGaussianFilterFactory ) ? ((FastGaussianFilterFactory< ?, ? >)gaussFactory).getLookupTable() : null;
+
+			for ( int i = start; i < end; ++i )
+			{
+				int numNeighbors = 0;
+				double value = 0;
+				double weight = 0;
+
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; ++k )
+				{
+					final double sqDist = sqDistances[ k ];
+
+					if ( sqDist <= sqRadius )
+					{
+						final double w = ( lut == null ) ? Math.exp( -sqDist / twoSqSigma ) : lut.exp( sqDist / twoSqSigma );
+
+						++numNeighbors;
+						value += in[ neighbors[ k ] ] * w;
+						weight += w;
+					}
+				}
+
+				out[ i ] = numNeighbors == 0 ? outofbounds : GaussianFilter.normalize( value, weight, numNeighbors, normalize );
+			}
+		}
+		else if ( filterFactory instanceof DensityFilterFactory )
+		{
+			for ( int i = start; i < end; ++i )
+			{
+				int numNeighbors = 0;
+
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; ++k )
+					if ( sqDistances[ k ] <= sqRadius )
+						++numNeighbors;
+
+				out[ i ] = numNeighbors;
+			}
+		}
+		else
+		{
+			throw new RuntimeException( "FilterFactory " + filterFactory.getClass().getSimpleName() + " is not supported by the FilterPipeline." );
+		}
+	}
+
+	/**
+	 * @param filterFactories - the filter stages
+	 * @return true if all stages can be evaluated by a FilterPipeline
+	 */
+	public static boolean supports( final List< ? extends FilterFactory< ?, ? > > filterFactories )
+	{
+		for ( final FilterFactory< ?, ? > filterFactory : filterFactories )
+			if ( !( filterFactory instanceof SingleSpotRemovingFilterFactory ||
+					filterFactory instanceof MedianFilterFactory ||
+					filterFactory instanceof MeanFilterFactory ||
+					filterFactory instanceof GaussianFilterFactory ||
+					filterFactory instanceof DensityFilterFactory ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param filterFactories - the filter stages
+	 * @param locations - the locations
+	 * @param memoryBudget - the memory (in bytes) the neighborhoods may use (see {@link #defaultMemoryBudget()})
+	 * @return true if all stages can be evaluated by a FilterPipeline and the estimated memory of the neighborhoods is within the budget
+	 */
+	public static boolean supports(
+			final List< ? extends FilterFactory< ?, ? > > filterFactories,
+			final IterableRealInterval< ? > locations,
+			final long memoryBudget )
+	{
+		return supports( filterFactories ) &&
+				locations.size() <= Integer.MAX_VALUE &&
+				estimateMemory( locations, maxRadius( filterFactories ) ) <= memoryBudget;
+	}
+
+	/**
+	 * @return the default memory budget for the neighborhoods, a quarter of the maximal heap size
+	 */
+	public static long defaultMemoryBudget()
+	{
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * @param memoryBudget - the memory (in bytes) the neighborhoods may use
+	 * @return the maximal number of neighbors of all locations together that fit into the budget while assembling
+	 */
+	public static long maxNeighbors( final long memoryBudget )
+	{
+		return Math.min( Integer.MAX_VALUE - 8, memoryBudget / ( 2 * bytesPerNeighbor ) );
+	}
+
+	/**
+	 * @param locations - the locations
+	 * @param radius - the search radius
+	 * @return the estimated peak memory (in bytes) of the neighborhoods of a FilterPipeline
+	 */
+	public static long estimateMemory( final IterableRealInterval< ? > locations, final double radius )
+	{
+		final double bytes = 2.0 * bytesPerNeighbor * estimateNumNeighbors( locations, radius ) + 4.0 * ( locations.size() + 1 );
+
+		return bytes >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)bytes;
+	}
+
+	/**
+	 * Estimates the total number of neighbors of all locations within a radius (every location is its own
+	 * neighbor). The locations are counted in a coarse grid (at least the radius per cell, at most ~2^20 cells)
+	 * assuming a uniform density within each cell, which also works for clustered data (e.g. tissue that only
+	 * covers part of the bounding box).
+	 *
+	 * @param locations - the locations
+	 * @param radius - the search radius
+	 * @return the estimated number of neighbors of all locations together
+	 */
+	public static double estimateNumNeighbors( final IterableRealInterval< ? > locations, final double radius )
+	{
+		final int n = locations.numDimensions();
+		final double size = locations.size();
+
+		if ( size == 0 || !( radius > 0 ) )
+			return size;
+
+		final double[] min = new double[ n ];
+		double maxExtent = 0;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = locations.realMin( d );
+			maxExtent = Math.max( maxExtent, locations.realMax( d ) - min[ d ] );
+		}
+
+		final int maxCellsPerDim = Math.max( 1, (int)Math.floor( Math.pow( 1 << 20, 1.0 / n ) ) );
+		final double cellSize = Math.max( radius, maxExtent / maxCellsPerDim );
+
+		final int[] numCells = new int[ n ];
+		final long[] stride = new long[ n ];
+		long totalCells = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numCells[ d ] = (int)Math.floor( ( locations.realMax( d ) - min[ d ] ) / cellSize ) + 1;
+			stride[ d ] = totalCells;
+			totalCells *= numCells[ d ];
+		}
+
+		final int[] counts = new int[ (int)totalCells ];
+		final RealCursor< ? > cursor = locations.localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			long index = 0;
+			for ( int d = 0; d < n; ++d )
+				index += stride[ d ] * Math.max( 0, Math.min( numCells[ d ] - 1, (int)Math.floor( ( cursor.getDoublePosition( d ) - min[ d ] ) / cellSize ) ) );
+
+			++counts[ (int)index ];
+		}
+
+		// every location of a cell has ( count / cellVolume ) * ballVolume neighbors
+		double sumSq = 0;
+		for ( final int c : counts )
+			sumSq += (double)c * c;
+
+		final double estimate = sumSq * ballVolume( radius, n ) / Math.pow( cellSize, n );
+
+		return Math.max( size, Math.min( size * size, estimate ) );
+	}
+
+	protected static double ballVolume( final double radius, final int n )
+	{
+		if ( n == 0 )
+			return 1;
+		else if ( n == 1 )
+			return 2 * radius;
+		else
+			return ballVolume( radius, n - 2 ) * 2 * Math.PI * radius * radius / n;
+	}
+
+	/**
+	 * @param filterFactories - the filter stages (must be {@link RadiusSearchFilterFactory})
+	 * @return the largest radius of all stages
+	 */
+	public static double maxRadius( final List< ? extends FilterFactory< ?, ? > > filterFactories )
+	{
+		double maxRadius = 0;
+
+		for ( final FilterFactory< ?, ? > filterFactory : filterFactories )
+			maxRadius = Math.max( maxRadius, ((RadiusSearchFilterFactory< ?, ? >)filterFactory).getRadius() );
+
+		return maxRadius;
+	}
+
+	/**
+	 * @param data - the data
+	 * @return the values in iteration order
+	 */
+	public static double[] values( final IterableRealInterval< ? extends RealType< ? > > data )
+	{
+		if ( data.size() > Integer.MAX_VALUE )
+			throw new RuntimeException( "Too many values: " + data.size() );
+
+		final double[] values = new double[ (int)data.size() ];
+
+		int i = 0;
+		for ( final RealType< ? > t : data )
+			values[ i++ ] = t.getRealDouble();
+
+		return values;
+	}
+
+	/**
+	 * Applies a chain of filters with a single spatial index and a single neighborhood search per spot.
+	 * The result is the same as calling {@link Filters#filter(IterableRealInterval, FilterFactory)} for each stage.
+	 * If a stage is not supported or the neighborhoods would exceed {@link #defaultMemoryBudget()}, the stages are
+	 * applied one after another with {@link Filters#filterToArray(IterableRealInterval, FilterFactory, ExecutorService)}.
+	 *
+	 * @param data - the input data
+	 * @param filterFactories - the stages
+	 * @param service - for parallel search and evaluation
+	 * @return the filtered data at the original locations (backed by a single double[])
+	 */
+	public static ArrayValueRealIterable filter(
+			final IterableRealInterval< DoubleType > data,
+			final List< ? extends FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final ExecutorService service )
+	{
+		final long memoryBudget = defaultMemoryBudget();
+
+		final FilterPipeline pipeline = supports( filterFactories, data, memoryBudget ) ?
+				create( data, maxRadius( filterFactories ), maxNeighbors( memoryBudget ), service ) : null;
+
+		if ( pipeline != null )
+			return new ArrayValueRealIterable( data, pipeline.filter( values( data ), filterFactories, service ) );
+
+		// stage by stage, only one spatial index and one array of values in memory at a time
+		ArrayValueRealIterable filtered = new ArrayValueRealIterable( data, values( data ) );
+
+		for ( final FilterFactory< DoubleType, DoubleType > filterFactory : filterFactories )
+			filtered = Filters.filterToArray( filtered, filterFactory, service );
+
+		return filtered;
+	}
+
+	protected static void execTasks( final List< Callable< Void > > tasks, final ExecutorService service )
+	{
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+	}
+}
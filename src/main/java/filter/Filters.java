@@ -8,6 +8,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
+import imglib2.ArrayValueRealIterable;
 import imglib2.ConvertingIterableRealInterval;
 import imglib2.ConvertingIterableRealInterval.TriConsumer;
 import net.imglib2.Cursor;
@@ -20,7 +21,9 @@ import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.RealPointSampleList;
 import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
+import render.GridIndex;
 import util.KDTreeUtil;
 
 public class Filters
@@ -30,17 +33,17 @@ public class Filters
 			final FilterFactory< S, T > filterFactory,
 			final Supplier< T > typeSupplier )
 	{
+		// we share a KDtree for all instances
+		final Supplier< Filter< T > > filterSupplier = sharedFilterSupplier( data, filterFactory );
+
 		// can't use standard converters because we need location
 		final Supplier<TriConsumer<RealLocalizable, ? super S, ? super T>> functionSupplier = new Supplier< TriConsumer<RealLocalizable, ? super S, ? super T>>()
 		{
-			// we share a KDtree for all instances
-			final KDTree< S > tree = KDTreeUtil.createParallelizableKDTreeFrom( data );
-
 			// when requesting a new TriConsumer, we create a new filter
 			@Override
 			public TriConsumer<RealLocalizable, S, T> get()
 			{
-				final Filter<T> filter = filterFactory.createFilter( tree );
+				final Filter<T> filter = filterSupplier.get();
 
 				return ( r, s, t ) -> filter.filter( r, t );
 			}
@@ -52,6 +55,59 @@ public class Filters
 				typeSupplier );
 	}
 
+	/**
+	 * Creates a supplier of independent {@link Filter} instances that all share one spatial index of the data.
+	 * For a {@link RadiusSearchFilterFactory} the index (a {@link GridIndex} for near-uniform 2d data, otherwise a
+	 * KDTree) is built once (on the first request) and is only read afterwards, each filter carries its own search
+	 * state, so requesting another filter is O(1) in the number of spots. Other factories create their filters
+	 * directly from the data.
+	 *
+	 * @param data - the data to filter
+	 * @param filterFactory - the factory creating the filters
+	 * @return a thread-safe supplier of filters
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static < S, T > Supplier< Filter< T > > sharedFilterSupplier(
+			final IterableRealInterval< S > data,
+			final FilterFactory< S, T > filterFactory )
+	{
+		if ( !RadiusSearchFilterFactory.class.isInstance( filterFactory ) )
+			return () -> filterFactory.createFilter( data );
+
+		final RadiusSearchFilterFactory< S, T > radiusSearchFilterFactory = (RadiusSearchFilterFactory< S, T >)filterFactory;
+
+		return new Supplier< Filter< T > >()
+		{
+			private boolean initialized = false;
+			private GridIndex< S > grid = null;
+			private KDTree< S > tree = null;
+
+			@Override
+			public Filter< T > get()
+			{
+				init();
+
+				if ( grid != null )
+					return radiusSearchFilterFactory.createFilter( grid );
+				else
+					return radiusSearchFilterFactory.createFilter( tree );
+			}
+
+			private synchronized void init()
+			{
+				if ( !initialized )
+				{
+					grid = GridIndex.createIfNearUniform( data );
+
+					if ( grid == null )
+						tree = KDTreeUtil.createParallelizableKDTreeFrom( (IterableRealInterval)data );
+
+					initialized = true;
+				}
+			}
+		};
+	}
+
 	public static < S extends Type< S >, T > RealPointSampleList< T > filter( final IterableRealInterval< S > data, final FilterFactory< S, T > filterFactory, ExecutorService service )
 	{
 		// create full realpointsamplelist
@@ -65,7 +121,7 @@ public class Filters
 			filtered.add( new RealPoint( cursor ), filterFactory.create() );
 		}
 
-		final KDTree< S > tree = KDTreeUtil.createParallelizableKDTreeFrom( data );
+		final Supplier< Filter< T > > filterSupplier = sharedFilterSupplier( data, filterFactory );
 
 		final List< Callable< Void > > tasks = new ArrayList<>();
 		final long blockSize = Math.max( 1000, data.size() / 100 );
@@ -76,7 +132,7 @@ public class Filters
 
 			tasks.add( () ->
 			{
-				final Filter< T > filter = filterFactory.createFilter( tree );
+				final Filter< T > filter = filterSupplier.get();
 
 				final RealCursor< T > outputCursor = filtered.localizingCursor();
 				if ( steps > 0 )
@@ -107,6 +163,85 @@ public class Filters
 		return filtered;
 	}
 
+	/**
+	 * Filters the data in parallel and returns the result as a view that combines the locations of the input
+	 * with a single primitive array (no RealPoint or sample objects are created per spot).
+	 *
+	 * @param data - the input data
+	 * @param filterFactory - the filter
+	 * @param service - for parallel filtering
+	 * @return an IterableRealInterval over the locations of data and the filtered values
+	 */
+	public static < S extends Type< S >, T extends RealType< T > > ArrayValueRealIterable filterToArray(
+			final IterableRealInterval< S > data,
+			final FilterFactory< S, T > filterFactory,
+			final ExecutorService service )
+	{
+		return new ArrayValueRealIterable( data, filterValues( data, filterFactory, service ) );
+	}
+
+	/**
+	 * @param data - the input data
+	 * @param filterFactory - the filter
+	 * @param service - for parallel filtering
+	 * @return the filtered values aligned with the iteration order of data
+	 */
+	public static < S extends Type< S >, T extends RealType< T > > double[] filterValues(
+			final IterableRealInterval< S > data,
+			final FilterFactory< S, T > filterFactory,
+			final ExecutorService service )
+	{
+		if ( data.size() > Integer.MAX_VALUE )
+			throw new RuntimeException( "Too many spots to filter into an array: " + data.size() );
+
+		final int size = (int)data.size();
+		final double[] values = new double[ size ];
+
+		final Supplier< Filter< T > > filterSupplier = sharedFilterSupplier( data, filterFactory );
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		final int blockSize = Math.max( 1000, size / 100 );
+
+		for ( int i = 0; i < size; i += blockSize )
+		{
+			final int start = i;
+			final int end = Math.min( size, start + blockSize );
+
+			tasks.add( () ->
+			{
+				final Filter< T > filter = filterSupplier.get();
+				final T value = filterFactory.create();
+
+				final RealCursor< S > cursor = data.localizingCursor();
+				if ( start > 0 )
+					cursor.jumpFwd( start );
+
+				for ( int j = start; j < end; ++j )
+				{
+					cursor.fwd();
+					filter.filter( cursor, value );
+					values[ j ] = value.getRealDouble();
+				}
+
+				return null;
+			});
+		}
+
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+
+		return values;
+	}
+
 	public static < S, T > RealPointSampleList< T > filter( final IterableRealInterval< S > data, final FilterFactory< S, T > filterFactory )
 	{
 		return filter( data, data.localizingCursor(), filterFactory );
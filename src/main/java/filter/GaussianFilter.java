@@ -11,8 +11,8 @@ public class GaussianFilter< S extends RealType< S >, T extends RealType< T > >
 	//final WeightType normalize;
 	//final double two_sq_sigma;
 
-	final double thresholdMax = 0.5;
-	final double thresholdMin = 0.001;
+	final static double thresholdMax = 0.5;
+	final static double thresholdMin = 0.001;
 
 	public GaussianFilter(
 			final RadiusNeighborSearch< S > search,
@@ -52,27 +52,39 @@ public class GaussianFilter< S extends RealType< S >, T extends RealType< T > >
 					weight += w;
 			}
 
-			if ( factory.getNormalize() == WeightType.PARTIAL_BY_SUM_OF_WEIGHTS )
+			output.setReal( normalize( value, weight, search.numNeighbors(), factory.getNormalize() ) );
+		}
+	}
+
+	/**
+	 * @param value - the sum of all weighted values
+	 * @param weight - the sum of all weights (only required for BY_SUM_OF_WEIGHTS and PARTIAL_BY_SUM_OF_WEIGHTS)
+	 * @param numNeighbors - the number of neighbors
+	 * @param normalize - the weight type
+	 * @return the normalized filter result
+	 */
+	public static double normalize( final double value, final double weight, final int numNeighbors, final WeightType normalize )
+	{
+		if ( normalize == WeightType.PARTIAL_BY_SUM_OF_WEIGHTS )
+		{
+			if ( weight > thresholdMax )
+				return value / weight;
+			else if ( weight <= thresholdMax && weight >= thresholdMin )
 			{
-				if ( weight > thresholdMax )
-					output.setReal( value / weight );
-				else if ( weight <= thresholdMax && weight >= thresholdMin )
-				{
-					final double a = Math.sin( ( ( weight - thresholdMin ) / ( thresholdMax - thresholdMin ) ) * Math.PI/2 );
-					final double b = 1.0 - a;
-
-					output.setReal( a * ( value / weight ) + b * value );
-				}
-				else
-					output.setReal( value );
+				final double a = Math.sin( ( ( weight - thresholdMin ) / ( thresholdMax - thresholdMin ) ) * Math.PI/2 );
+				final double b = 1.0 - a;
+
+				return a * ( value / weight ) + b * value;
 			}
-			else if ( factory.getNormalize() == WeightType.BY_SUM_OF_WEIGHTS )
-				output.setReal( value / weight );
-			else if ( factory.getNormalize() == WeightType.BY_SUM_OF_SAMPLES )
-				output.setReal( value / search.numNeighbors() );
 			else
-				output.setReal( value );
+				return value;
 		}
+		else if ( normalize == WeightType.BY_SUM_OF_WEIGHTS )
+			return value / weight;
+		else if ( normalize == WeightType.BY_SUM_OF_SAMPLES )
+			return value / numNeighbors;
+		else
+			return value;
 	}
 
 	public static void main( String[] arg )
@@ -3,6 +3,8 @@ package filter;
 import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.RadiusCountSearchOnGrid;
 
 public class GaussianFilterFactory< S extends RealType< S >, T extends RealType< T > > extends RadiusSearchFilterFactory< S, T >
 {
@@ -53,6 +55,15 @@ public class GaussianFilterFactory< S extends RealType< S >, T extends RealType<
 				normalize );*/
 	}
 
+	@Override
+	public Filter< T > createFilter( final GridIndex< S > grid )
+	{
+		return new GaussianFilter< S, T >(
+				new RadiusCountSearchOnGrid<>( grid ),
+				this,
+				outofbounds.copy() );
+	}
+
 	/**
 	 * sets the sigma, radius, and 2*sigma^2
 	 * @param sigma - new sigma
@@ -3,6 +3,8 @@ package filter;
 import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.RadiusCountSearchOnGrid;
 
 public class MeanFilterFactory< S extends RealType< S >, T extends RealType< T > > extends RadiusSearchFilterFactory< S, T >
 {
@@ -25,6 +27,15 @@ public class MeanFilterFactory< S extends RealType< S >, T extends RealType< T >
 				outofbounds );
 	}
 
+	@Override
+	public Filter< T > createFilter( final GridIndex< S > grid )
+	{
+		return new MeanFilter< S, T >(
+				new RadiusCountSearchOnGrid<>( grid ),
+				this,
+				outofbounds );
+	}
+
 	@Override
 	public T create()
 	{
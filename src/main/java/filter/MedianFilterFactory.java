@@ -3,6 +3,8 @@ package filter;
 import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.RadiusCountSearchOnGrid;
 
 public class MedianFilterFactory< T extends RealType< T > > extends RadiusSearchFilterFactory< T, T >
 {
@@ -25,6 +27,15 @@ public class MedianFilterFactory< T extends RealType< T > > extends RadiusSearch
 				outofbounds );
 	}
 
+	@Override
+	public Filter< T > createFilter( final GridIndex< T > grid )
+	{
+		return new MedianFilter< T >(
+				new RadiusCountSearchOnGrid<>( grid ),
+				this,
+				outofbounds );
+	}
+
 	@Override
 	public T create()
 	{
@@ -2,6 +2,7 @@ package filter;
 
 import net.imglib2.IterableRealInterval;
 import net.imglib2.KDTree;
+import render.GridIndex;
 import util.KDTreeUtil;
 
 public abstract class RadiusSearchFilterFactory< S, T > implements FilterFactory< S, T >
@@ -16,11 +17,22 @@ public abstract class RadiusSearchFilterFactory< S, T > implements FilterFactory
 	@Override
 	public Filter< T > createFilter( final IterableRealInterval< S > data )
 	{
-		return createFilter( KDTreeUtil.createParallelizableKDTreeFrom( (IterableRealInterval)data ) );
+		final GridIndex< S > grid = GridIndex.createIfNearUniform( data );
+
+		if ( grid != null )
+			return createFilter( grid );
+		else
+			return createFilter( KDTreeUtil.createParallelizableKDTreeFrom( (IterableRealInterval)data ) );
 	}
 
 	public abstract Filter< T > createFilter( final KDTree< S > tree );
 
+	/**
+	 * @param grid - a grid index of the data, used instead of a KDTree for near-uniformly distributed data
+	 * @return a new filter instance that searches on the grid
+	 */
+	public abstract Filter< T > createFilter( final GridIndex< S > grid );
+
 	/**
 	 * @return - the current radius for the search, can be changed dynamically (each instance requests the radius from its factory when using it)
 	 */
@@ -1,27 +1,38 @@
 package filter;
 
 import net.imglib2.RealLocalizable;
-import net.imglib2.neighborsearch.RadiusNeighborSearch;
+import net.imglib2.neighborsearch.NearestNeighborSearch;
 import net.imglib2.type.numeric.RealType;
+import render.RadiusCountSearch;
 
 public class SingleSpotRemovingFilter< T extends RealType< T > > extends RadiusSearchFilter< T, T, SingleSpotRemovingFilterFactory< T > >
 {
 	final T outofbounds;
+	final RadiusCountSearch< T > countSearch;
+	final NearestNeighborSearch< T > nnSearch;
 
-	public SingleSpotRemovingFilter( final RadiusNeighborSearch< T > search, final SingleSpotRemovingFilterFactory< T > factory, final T outofbounds )
+	public SingleSpotRemovingFilter(
+			final RadiusCountSearch< T > search,
+			final NearestNeighborSearch< T > nnSearch,
+			final SingleSpotRemovingFilterFactory< T > factory,
+			final T outofbounds )
 	{
 		super( search, factory );
 
+		this.countSearch = search;
+		this.nnSearch = nnSearch;
 		this.outofbounds = outofbounds;
 	}
 
 	@Override
 	public void filter( final RealLocalizable position, final T output )
 	{
-		search.search( position, factory.getRadius(), true );
-
-		if ( search.numNeighbors() > 1 )
-			output.setReal( search.getSampler( 0 ).get().getRealDouble() );
+		// no need to sort or collect all neighbors, stop as soon as a second spot is found
+		if ( countSearch.atLeast( position, factory.getRadius(), 2 ) )
+		{
+			nnSearch.search( position );
+			output.setReal( nnSearch.getSampler().get().getRealDouble() );
+		}
 		else 
 			output.set( outofbounds );
 	}
@@ -1,8 +1,12 @@
 package filter;
 
 import net.imglib2.KDTree;
-import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.RealType;
+import render.GridIndex;
+import render.NearestNeighborSearchOnGrid;
+import render.RadiusCountSearchOnGrid;
+import render.RadiusCountSearchOnKDTree;
 
 public class SingleSpotRemovingFilterFactory< T extends RealType< T > > extends RadiusSearchFilterFactory< T, T >
 {
@@ -20,7 +24,18 @@ public class SingleSpotRemovingFilterFactory< T extends RealType< T > > extends
 	public Filter< T > createFilter( final KDTree< T > tree )
 	{
 		return new SingleSpotRemovingFilter< T >(
-				new RadiusNeighborSearchOnKDTree<>( tree ),
+				new RadiusCountSearchOnKDTree<>( tree ),
+				new NearestNeighborSearchOnKDTree<>( tree ),
+				this,
+				outofbounds );
+	}
+
+	@Override
+	public Filter< T > createFilter( final GridIndex< T > grid )
+	{
+		return new SingleSpotRemovingFilter< T >(
+				new RadiusCountSearchOnGrid<>( grid ),
+				new NearestNeighborSearchOnGrid<>( grid ),
 				this,
 				outofbounds );
 	}
@@ -1,7 +1,10 @@
 package filter.realrandomaccess;
 
+import java.util.function.Supplier;
+
 import filter.Filter;
 import filter.FilterFactory;
+import filter.Filters;
 import net.imglib2.IterableRealInterval;
 import net.imglib2.Localizable;
 import net.imglib2.RealLocalizable;
@@ -13,6 +16,7 @@ public class FilteredRealRandomAccess< S, T > implements RealRandomAccess< T >
 {
 	final IterableRealInterval< S > data;
 	final FilterFactory< S, T > filterFactory;
+	final Supplier< Filter< T > > filterSupplier;
 	final Filter< T > filter;
 	final T output;
 	final double[] pos;
@@ -20,12 +24,26 @@ public class FilteredRealRandomAccess< S, T > implements RealRandomAccess< T >
 	final int n;
 
 	public FilteredRealRandomAccess( final IterableRealInterval< S > data, final FilterFactory< S, T > filterFactory )
+	{
+		this( data, filterFactory, Filters.sharedFilterSupplier( data, filterFactory ) );
+	}
+
+	/**
+	 * @param data - the data to filter
+	 * @param filterFactory - the factory for the output type
+	 * @param filterSupplier - creates the filter of this instance, copies request their own filter from the same supplier (and thereby share its spatial index)
+	 */
+	public FilteredRealRandomAccess(
+			final IterableRealInterval< S > data,
+			final FilterFactory< S, T > filterFactory,
+			final Supplier< Filter< T > > filterSupplier )
 	{
 		this.data = data;
 		this.filterFactory = filterFactory;
+		this.filterSupplier = filterSupplier;
 		this.n = data.numDimensions();
 		this.pos = new double[ n ];
-		this.filter = filterFactory.createFilter( data );
+		this.filter = filterSupplier.get();
 		this.output = filterFactory.create();
 		this.loc = new SimpleRealLocalizable( pos );
 	}
@@ -41,7 +59,7 @@ public class FilteredRealRandomAccess< S, T > implements RealRandomAccess< T >
 	@Override
 	public RealRandomAccess< T > copyRealRandomAccess()
 	{
-		final FilteredRealRandomAccess< S, T > mrr = new FilteredRealRandomAccess< S, T >( data, filterFactory );
+		final FilteredRealRandomAccess< S, T > mrr = new FilteredRealRandomAccess< S, T >( data, filterFactory, filterSupplier );
 		mrr.setPosition( this );
 
 		return mrr;
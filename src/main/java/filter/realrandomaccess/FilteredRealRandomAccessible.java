@@ -1,6 +1,10 @@
 package filter.realrandomaccess;
 
+import java.util.function.Supplier;
+
+import filter.Filter;
 import filter.FilterFactory;
+import filter.Filters;
 import net.imglib2.IterableRealInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealRandomAccess;
@@ -11,18 +15,22 @@ public class FilteredRealRandomAccessible< S, T > implements RealRandomAccessibl
 	final IterableRealInterval< S > data;
 	final FilterFactory< S, T > filterFactory;
 
+	// all RealRandomAccesses (and their copies) share one spatial index, it is built on first access
+	final Supplier< Filter< T > > filterSupplier;
+
 	public FilteredRealRandomAccessible(
 			final IterableRealInterval< S > data,
 			final FilterFactory< S, T > filterFactory )
 	{
 		this.data = data;
 		this.filterFactory = filterFactory;
+		this.filterSupplier = Filters.sharedFilterSupplier( data, filterFactory );
 	}
 
 	@Override
 	public RealRandomAccess< T > realRandomAccess()
 	{
-		return new FilteredRealRandomAccess< S, T >( data, filterFactory );
+		return new FilteredRealRandomAccess< S, T >( data, filterFactory, filterSupplier );
 	}
 
 	@Override
@@ -1,5 +1,8 @@
 package filter.realrandomaccess;
 
+import java.util.function.Supplier;
+
+import filter.Filter;
 import filter.MedianFilterFactory;
 import net.imglib2.IterableRealInterval;
 import net.imglib2.type.numeric.RealType;
@@ -13,10 +16,18 @@ public class MedianRealRandomAccess< T extends RealType< T > > extends FilteredR
 		super( data, filterFactory );
 	}
 
+	public MedianRealRandomAccess(
+			final IterableRealInterval< T > data,
+			final MedianFilterFactory< T > filterFactory,
+			final Supplier< Filter< T > > filterSupplier )
+	{
+		super( data, filterFactory, filterSupplier );
+	}
+
 	@Override
 	public MedianRealRandomAccess< T > copyRealRandomAccess()
 	{
-		final MedianRealRandomAccess< T > mrr = new MedianRealRandomAccess< T >( data, (MedianFilterFactory< T >)filterFactory );
+		final MedianRealRandomAccess< T > mrr = new MedianRealRandomAccess< T >( data, (MedianFilterFactory< T >)filterFactory, filterSupplier );
 		mrr.setPosition( this );
 
 		return mrr;
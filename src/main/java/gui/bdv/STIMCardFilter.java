@@ -4,10 +4,14 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -21,16 +25,19 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
 
 import filter.FilterFactory;
+import filter.FilterPipeline;
 import filter.Filters;
 import filter.GaussianFilterFactory;
 import filter.MeanFilterFactory;
 import filter.MedianFilterFactory;
 import filter.SingleSpotRemovingFilterFactory;
+import gui.STDataAssembly;
 import net.imglib2.RealCursor;
 import net.imglib2.RealPointSampleList;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.miginfocom.swing.MigLayout;
 import util.Text;
+import util.Threads;
 
 public class STIMCardFilter
 {
@@ -166,6 +173,10 @@ public class STIMCardFilter
 
 		boolean isEditable = true;
 
+		// one FilterPipeline per dataset (null if it would not fit into memory), see updatePipelines()
+		final Map< STDataAssembly, FilterPipeline > pipelines = new HashMap<>();
+		double pipelineRadius = -1;
+
 		final JTable table;
 
 		final Object[][] filters = {
@@ -291,37 +302,103 @@ public class STIMCardFilter
 			new Thread( () ->
 			{
 				SwingUtilities.invokeLater( () -> table.setForeground( Color.lightGray ) );
-	
-				// replace original values first
-				stimcard.sourceData().values().forEach(data -> data.forEach(d -> {
-					final Iterator<Double> iFilt = d.originalValues().iterator();
-					d.tree().forEach( t -> t.set( iFilt.next() ) );
-				}));
-	
-				for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories() )
+
+				try
 				{
+					// replace original values first
+					stimcard.sourceData().values().forEach(data -> data.forEach(d -> {
+						final Iterator<Double> iFilt = d.originalValues().iterator();
+						d.tree().forEach( t -> t.set( iFilt.next() ) );
+					}));
+
+					final List< FilterFactory< DoubleType, DoubleType > > filterFactories = filterFactories();
+
+					// the locations never change, so all filters are evaluated from one neighborhood search per spot and dataset
+					if ( filterFactories.size() > 1 && FilterPipeline.supports( filterFactories ) )
+						updatePipelines( FilterPipeline.maxRadius( filterFactories ) );
+					else
+						pipelines.clear();
+
 					stimcard.sourceData().forEach( (gene,data) ->
 					{
 						final List< Callable< Void > > tasks = new ArrayList<>();
 
 						data.forEach(d -> tasks.add(() -> {
-							final RealPointSampleList<DoubleType> filteredA =
-									Filters.filter( d.tree(), d.tree().iterator(), filterFactory );
-
-							final RealCursor<DoubleType> iAFilt = filteredA.cursor();
-							d.tree().forEach( t -> t.set( iAFilt.next() ) );
+							// the KDTrees of all genes of a dataset are built from the same locations and iterate them in the same order
+							final FilterPipeline pipeline = pipelines.get( d.data() );
+
+							if ( pipeline != null && pipeline.numPoints() == d.tree().size() )
+							{
+								// we are already running in parallel over the datasets
+								final double[] filtered = pipeline.filter( FilterPipeline.values( d.tree() ), filterFactories, Threads.createSameThreadExecutorService() );
+
+								final RealCursor<DoubleType> cursor = d.tree().cursor();
+								for ( int i = 0; i < filtered.length; ++i )
+									cursor.next().set( filtered[ i ] );
+							}
+							else for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories )
+							{
+								final RealPointSampleList<DoubleType> filteredA =
+										Filters.filter( d.tree(), d.tree().iterator(), filterFactory );
+
+								final RealCursor<DoubleType> iAFilt = filteredA.cursor();
+								d.tree().forEach( t -> t.set( iAFilt.next() ) );
+							}
 
 							return null;
 						}));
 
-						try { service.invokeAll( tasks ); } catch (InterruptedException e) { e.printStackTrace(); }
+						execTasks( tasks );
 					});
 				}
-	
-				stimcard.bdvhandle().getViewerPanel().requestRepaint();
-				SwingUtilities.invokeLater( () -> table.setForeground( Color.black ) );
-				isEditable = true;
+				finally
+				{
+					stimcard.bdvhandle().getViewerPanel().requestRepaint();
+					SwingUtilities.invokeLater( () -> table.setForeground( Color.black ) );
+					isEditable = true;
+				}
 			}).start();
 		}
+
+		/**
+		 * Makes sure there is a {@link FilterPipeline} for the locations of every dataset, they are shared by all genes
+		 * and only rebuilt if the radius changes. A dataset whose neighborhoods exceed its share of the memory budget
+		 * gets no pipeline (null) and is filtered stage by stage.
+		 *
+		 * @param maxRadius - the largest radius of all filters
+		 */
+		protected void updatePipelines( final double maxRadius )
+		{
+			if ( maxRadius != pipelineRadius )
+			{
+				pipelines.clear();
+				pipelineRadius = maxRadius;
+			}
+
+			if ( stimcard.sourceData().isEmpty() )
+				return;
+
+			// all genes share the datasets, one AddedGene per dataset
+			final List< AddedGene > datasets = stimcard.sourceData().values().iterator().next();
+			final long maxNeighbors = FilterPipeline.maxNeighbors( FilterPipeline.defaultMemoryBudget() / datasets.size() );
+
+			for ( final AddedGene d : datasets )
+				if ( !pipelines.containsKey( d.data() ) )
+					pipelines.put( d.data(), FilterPipeline.create( d.tree(), maxRadius, maxNeighbors, service ) );
+		}
+
+		protected void execTasks( final List< Callable< Void > > tasks )
+		{
+			try
+			{
+				for ( final Future< Void > future : service.invokeAll( tasks ) )
+					future.get();
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				e.printStackTrace();
+				throw new RuntimeException( e );
+			}
+		}
 	}
 }
@@ -0,0 +1,227 @@
+package imglib2;
+
+import java.util.Iterator;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.RealCursor;
+import net.imglib2.RealPositionable;
+import net.imglib2.Sampler;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * An IterableRealInterval that combines the locations of an existing IterableRealInterval with values
+ * stored in a primitive double[] (aligned with the iteration order of the locations). No objects are created
+ * per location, the values are accessed in place (i.e. writing to the DoubleType changes the array).
+ *
+ * @author spreibi
+ */
+public class ArrayValueRealIterable implements IterableRealInterval< DoubleType >
+{
+	final IterableRealInterval< ? > locations;
+	final double[] values;
+	final ArrayImg< DoubleType, DoubleArray > valueImg;
+
+	public ArrayValueRealIterable(
+			final IterableRealInterval< ? > locations,
+			final double[] values )
+	{
+		if ( locations.size() != values.length )
+			throw new RuntimeException( "Number of values (" + values.length + ") does not match the number of locations (" + locations.size() + ")." );
+
+		this.locations = locations;
+		this.values = values;
+		this.valueImg = ArrayImgs.doubles( values, values.length );
+	}
+
+	/**
+	 * @return the underlying values, aligned with the iteration order of the locations
+	 */
+	public double[] values() { return values; }
+
+	/**
+	 * @return the IterableRealInterval that provides the locations
+	 */
+	public IterableRealInterval< ? > locations() { return locations; }
+
+	@Override
+	public RealCursor< DoubleType > localizingCursor()
+	{
+		return new ArrayValueRealCursor();
+	}
+
+	@Override
+	public double realMin( final int d )
+	{
+		return locations.realMin( d );
+	}
+
+	@Override
+	public void realMin( final double[] min )
+	{
+		locations.realMin( min );
+	}
+
+	@Override
+	public void realMin( final RealPositionable min )
+	{
+		locations.realMin( min );
+	}
+
+	@Override
+	public double realMax( final int d )
+	{
+		return locations.realMax( d );
+	}
+
+	@Override
+	public void realMax( final double[] max )
+	{
+		locations.realMax( max );
+	}
+
+	@Override
+	public void realMax( final RealPositionable max )
+	{
+		locations.realMax( max );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return locations.numDimensions();
+	}
+
+	@Override
+	public Iterator< DoubleType > iterator()
+	{
+		return localizingCursor();
+	}
+
+	@Override
+	public RealCursor< DoubleType > cursor()
+	{
+		return localizingCursor();
+	}
+
+	@Override
+	public long size()
+	{
+		return values.length;
+	}
+
+	@Override
+	public DoubleType firstElement()
+	{
+		return cursor().next();
+	}
+
+	@Override
+	public Object iterationOrder()
+	{
+		return this;
+	}
+
+	public class ArrayValueRealCursor implements RealCursor< DoubleType >
+	{
+		final RealCursor< ? > locationCursor;
+		final Cursor< DoubleType > valueCursor;
+
+		public ArrayValueRealCursor()
+		{
+			this.locationCursor = locations.localizingCursor();
+			this.valueCursor = valueImg.cursor();
+		}
+
+		protected ArrayValueRealCursor( final ArrayValueRealCursor cursor )
+		{
+			this.locationCursor = cursor.locationCursor.copyCursor();
+			this.valueCursor = cursor.valueCursor.copyCursor();
+		}
+
+		@Override
+		public DoubleType get()
+		{
+			return valueCursor.get();
+		}
+
+		@Override
+		public void jumpFwd( final long steps )
+		{
+			locationCursor.jumpFwd( steps );
+			valueCursor.jumpFwd( steps );
+		}
+
+		@Override
+		public void fwd()
+		{
+			locationCursor.fwd();
+			valueCursor.fwd();
+		}
+
+		@Override
+		public void reset()
+		{
+			locationCursor.reset();
+			valueCursor.reset();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return valueCursor.hasNext();
+		}
+
+		@Override
+		public DoubleType next()
+		{
+			fwd();
+			return get();
+		}
+
+		@Override
+		public void localize( final float[] position )
+		{
+			locationCursor.localize( position );
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			locationCursor.localize( position );
+		}
+
+		@Override
+		public float getFloatPosition( final int d )
+		{
+			return locationCursor.getFloatPosition( d );
+		}
+
+		@Override
+		public double getDoublePosition( final int d )
+		{
+			return locationCursor.getDoublePosition( d );
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return locationCursor.numDimensions();
+		}
+
+		@Override
+		public Sampler< DoubleType > copy()
+		{
+			return copyCursor();
+		}
+
+		@Override
+		public RealCursor< DoubleType > copyCursor()
+		{
+			return new ArrayValueRealCursor( this );
+		}
+	}
+}
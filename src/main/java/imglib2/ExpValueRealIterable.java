@@ -45,6 +45,14 @@ public class ExpValueRealIterable< T > implements IterableRealInterval< T >
 		this.iterableValues = Views.flatIterable( values );
 	}
 
+	/**
+	 * @return the locations (shared by all genes of a dataset)
+	 */
+	public RandomAccessibleInterval< DoubleType > getLocations()
+	{
+		return locations;
+	}
+
 	@Override
 	public RealCursor< T > localizingCursor()
 	{
@@ -54,6 +54,8 @@ public class TransformedIterableRealInterval< T > implements IterableRealInterva
 		}
 	}
 
+	public IterableRealInterval< T > getSource() { return irt; }
+
 	@Override
 	public double realMin( final int d )
 	{
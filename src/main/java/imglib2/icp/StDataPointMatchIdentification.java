@@ -96,26 +96,26 @@ public class StDataPointMatchIdentification < P extends RealLocalizable > implem
 
 			if ( ffSingleSpot != null )
 			{
-				ref = Filters.filter( ref, new SingleSpotRemovingFilterFactory<>( new DoubleType( 0 ), ffSingleSpot ), service );
-				target = Filters.filter( target, new SingleSpotRemovingFilterFactory<>( new DoubleType( 0 ), ffSingleSpot ), service );
+				ref = Filters.filterToArray( ref, new SingleSpotRemovingFilterFactory<>( new DoubleType( 0 ), ffSingleSpot ), service );
+				target = Filters.filterToArray( target, new SingleSpotRemovingFilterFactory<>( new DoubleType( 0 ), ffSingleSpot ), service );
 			}
 
 			if ( ffMedian != null )
 			{
-				ref = Filters.filter( ref, new MedianFilterFactory<>( new DoubleType( 0 ), ffMedian ), service );
-				target = Filters.filter( target, new MedianFilterFactory<>( new DoubleType( 0 ), ffMedian ), service );
+				ref = Filters.filterToArray( ref, new MedianFilterFactory<>( new DoubleType( 0 ), ffMedian ), service );
+				target = Filters.filterToArray( target, new MedianFilterFactory<>( new DoubleType( 0 ), ffMedian ), service );
 			}
 
 			if ( ffGauss != null )
 			{
-				ref = Filters.filter( ref, new GaussianFilterFactory<>( new DoubleType( 0 ), ffGauss, WeightType.BY_SUM_OF_WEIGHTS ), service );
-				target = Filters.filter( target, new GaussianFilterFactory<>( new DoubleType( 0 ), ffGauss, WeightType.BY_SUM_OF_WEIGHTS ), service );
+				ref = Filters.filterToArray( ref, new GaussianFilterFactory<>( new DoubleType( 0 ), ffGauss, WeightType.BY_SUM_OF_WEIGHTS ), service );
+				target = Filters.filterToArray( target, new GaussianFilterFactory<>( new DoubleType( 0 ), ffGauss, WeightType.BY_SUM_OF_WEIGHTS ), service );
 			}
 
 			if ( ffMean != null )
 			{
-				ref = Filters.filter( ref, new MeanFilterFactory<>( new DoubleType( 0 ), ffMean ), service );
-				target = Filters.filter( target, new MeanFilterFactory<>( new DoubleType( 0 ), ffMean ), service );
+				ref = Filters.filterToArray( ref, new MeanFilterFactory<>( new DoubleType( 0 ), ffMean ), service );
+				target = Filters.filterToArray( target, new MeanFilterFactory<>( new DoubleType( 0 ), ffMean ), service );
 			}
 
 			if ( sumReference == null )
@@ -32,6 +32,7 @@ import ij.ImageJ;
 import imglib2.ImgLib2Util;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -158,6 +159,54 @@ public class PhaseCorrelation2 {
 		
 	}
 
+	/*
+	 * compute the dimensions needed to calculate the PCM of two images, i.e. the padded real size of the
+	 * extended images, the size of their FFTs and the size of the resulting PCM
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param paddedDimensions - will be filled with the padded real dimensions
+	 * @param fftSize - will be filled with the dimensions of the complex FFT images
+	 * @param pcmSize - will be filled with the dimensions of the PCM
+	 */
+	static void getPCMDimensions(
+			Dimensions img1, Dimensions img2, int[] extension, long[] paddedDimensions, long[] fftSize, long[] pcmSize)
+	{
+		Dimensions extSize = PhaseCorrelation2Util.getExtendedSize(img1, img2, extension);
+		FFTMethods.dimensionsRealToComplexFast(extSize, paddedDimensions, fftSize);
+		FFTMethods.dimensionsComplexToRealFast(new FinalDimensions(fftSize), new long[fftSize.length], pcmSize);
+	}
+
+	/*
+	 * calculate the phase correlation matrix of two images into preallocated images, no new images are created
+	 * fft1, fft2 and pcm must have exactly the dimensions computed by getPCMDimensions(), only used by
+	 * PhaseCorrelation2Workspace, which owns the reused buffers
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param fft1 - temporary complex image
+	 * @param fft2 - temporary complex image
+	 * @param pcm - will contain the PCM
+	 * @param service
+	 */
+	static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>, C extends ComplexType<C>> void calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension,
+			RandomAccessibleInterval<C> fft1, RandomAccessibleInterval<C> fft2, RandomAccessibleInterval<R> pcm,
+			ExecutorService service)
+	{
+		Dimensions extSize = PhaseCorrelation2Util.getExtendedSize(img1, img2, extension);
+		long[] paddedDimensions = new long[extSize.numDimensions()];
+		long[] fftSize = new long[extSize.numDimensions()];
+		FFTMethods.dimensionsRealToComplexFast(extSize, paddedDimensions, fftSize);
+
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img1, extension), 
+				FFTMethods.paddingIntervalCentered(img1, new FinalInterval(paddedDimensions))), fft1, service);
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img2, extension), 
+				FFTMethods.paddingIntervalCentered(img2, new FinalInterval(paddedDimensions))), fft2, service);
+
+		calculatePCMInPlace(fft1, fft2, pcm, service);
+	}
+
 	/*
 	 * calculate PCM with default extension
 	 * @param img1
@@ -173,6 +222,45 @@ public class PhaseCorrelation2 {
 		return calculatePCM(img1, img2, extension, factory, fftFactory, service);
 	}
 
+	/*
+	 * estimate the rotation of img2 relative to img1 (Fourier-Mellin style) by correlating the polar representations
+	 * of their power spectra, the result is ambiguous by 180 degrees. A translation between the images does not change
+	 * the power spectra, it can be computed in a second step using the PCM of img1 and the rotated img2.
+	 * @param img1
+	 * @param img2
+	 * @param fftFactory
+	 * @param minRadius - smallest radius of the power spectrum (in frequency pixels) that is used
+	 * @param service
+	 * @return the rotation in degrees [0, 360)
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, C extends ComplexType<C>> double estimateRotation(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, ImgFactory<C> fftFactory, int minRadius,
+			ExecutorService service)
+	{
+		if (img1.numDimensions() != 2)
+			throw new RuntimeException( "Only dim=2 allowed." );
+
+		int [] extension = new int[img1.numDimensions()];
+		Arrays.fill(extension, 10);
+
+		long[] paddedDimensions = new long[img1.numDimensions()];
+		long[] fftSize = new long[img1.numDimensions()];
+		PhaseCorrelation2Util.getSquarePaddedSize(img1, img2, extension, paddedDimensions, fftSize);
+
+		RandomAccessibleInterval<C> fft1 = fftFactory.create(fftSize);
+		RandomAccessibleInterval<C> fft2 = fftFactory.create(fftSize);
+
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img1, extension), 
+				FFTMethods.paddingIntervalCentered(img1, new FinalInterval(paddedDimensions))), fft1, service);
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img2, extension), 
+				FFTMethods.paddingIntervalCentered(img2, new FinalInterval(paddedDimensions))), fft2, service);
+
+		Img<FloatType> polar1 = PhaseCorrelation2Util.computePointSymmetricPolarPowerSpectrum(fft1, new FloatType());
+		Img<FloatType> polar2 = PhaseCorrelation2Util.computePointSymmetricPolarPowerSpectrum(fft2, new FloatType());
+
+		return PhaseCorrelation2Util.estimateRotation(polar1, polar2, minRadius);
+	}
+
 	/**
 	 * calculate the shift between two images from the phase correlation matrix
 	 * @param pcm the phase correlation matrix of img1 and img2
@@ -207,6 +295,46 @@ public class PhaseCorrelation2 {
 			return null;
 	}
 
+	/**
+	 * calculate the shift between two images from the phase correlation matrix, the candidate shifts are ranked
+	 * using the summed-area tables of both images and only the numVerified best ones are checked via exact cross. corr.
+	 * (see PhaseCorrelation2Util.calculateCrossCorrSAT)
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param sat1 summed-area table of image 1
+	 * @param sat2 summed-area table of image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param subsampling step size for estimating the cross product of each candidate (1 means all pixels)
+	 * @param numVerified how many of the best candidates are checked via exact cross. corr.
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2,
+			SummedAreaTable sat1, SummedAreaTable sat2, int nHighestPeaks, long minOverlap, boolean subpixelAccuracy,
+			boolean interpolateSubpixel, int subsampling, int numVerified, ExecutorService service)
+	{
+		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
+
+		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2);
+
+		PhaseCorrelation2Util.calculateCrossCorrSAT(peaks, img1, img2, sat1, sat2, minOverlap, subsampling, numVerified, service, interpolateSubpixel);
+
+		Collections.sort(peaks, Collections.reverseOrder(new PhaseCorrelationPeak2.ComparatorByCrossCorrelation()));
+
+		if (peaks.size() > 0)
+			return peaks.get(0);
+		else
+			return null;
+	}
+
 	/**
 	 * get shift, do not interpolate subpixel offset for cross correlation 
 	 * @param pcm the phase correlation matrix of img1 and img2
@@ -244,6 +244,151 @@ public class PhaseCorrelation2Util {
 		}
 	}
 	
+	/*
+	 * estimate the crosscorrelation of img1 and img2 for the shift of a peak. Like getCorrelation() only pixels
+	 * that are > 0 are used: the means and variances of both images in the overlapping area come from their
+	 * summed-area tables, only the mean cross product of the pixels that are > 0 in both images is computed
+	 * from the pixels (on a grid subsampled by the given step in every dimension). The means and variances are
+	 * taken over the non-zero pixels of each image rather than over the pixels that are non-zero in both, so the
+	 * result is only meant for ranking candidate shifts.
+	 * @param peak
+	 * @param img1
+	 * @param img2
+	 * @param sat1 summed-area table of img1
+	 * @param sat2 summed-area table of img2
+	 * @param minOverlapPx
+	 * @param subsampling step size for the cross product (1 means all pixels)
+	 * @return the estimated correlation, -infinity if there is not enough overlap
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> double estimateCrossCorr(
+			final PhaseCorrelationPeak2 peak, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final SummedAreaTable sat1, final SummedAreaTable sat2, final long minOverlapPx, final int subsampling)
+	{
+		final Pair<Interval, Interval> intervals = getOverlapIntervals(img1, img2, peak.getShift());
+
+		if (intervals == null)
+			return Double.NEGATIVE_INFINITY;
+
+		long nPixel = 1;
+		for (int d = 0; d < intervals.getA().numDimensions(); d++)
+			nPixel *= intervals.getA().dimension(d);
+
+		if (nPixel < Math.max(1, minOverlapPx))
+			return Double.NEGATIVE_INFINITY;
+
+		final long n1 = sat1.count(intervals.getA());
+		final long n2 = sat2.count(intervals.getB());
+
+		// the exact cross. corr. is 0 as well
+		if (Math.min(n1, n2) < Math.max(1, minOverlapPx))
+			return 0;
+
+		final double m1 = sat1.sum(intervals.getA()) / n1;
+		final double m2 = sat2.sum(intervals.getB()) / n2;
+		final double var1 = sat1.sumOfSquares(intervals.getA()) / n1 - m1 * m1;
+		final double var2 = sat2.sumOfSquares(intervals.getB()) / n2 - m2 * m2;
+
+		// all pixels had the same color....
+		if (var1 <= 0 || var2 <= 0)
+			return 0;
+
+		final Cursor<T> c1 = Views.flatIterable(Views.subsample(Views.interval(Views.zeroMin(img1), intervals.getA()), subsampling)).cursor();
+		final Cursor<S> c2 = Views.flatIterable(Views.subsample(Views.interval(Views.zeroMin(img2), intervals.getB()), subsampling)).cursor();
+
+		double sum12 = 0;
+		long n = 0;
+
+		while (c1.hasNext())
+		{
+			final double c = c1.next().getRealDouble();
+			final double r = c2.next().getRealDouble();
+
+			if (c > 0 && r > 0)
+			{
+				sum12 += c * r;
+				++n;
+			}
+		}
+
+		if (n == 0)
+			return 0;
+
+		return (sum12 / n - m1 * m2) / Math.sqrt(var1 * var2);
+	}
+
+	/*
+	 * rank all shifts represented by a PhaseCorrelationPeak List using estimateCrossCorr() and compute the exact
+	 * crosscorrelation (see calculateCrossCorrParallel) only for the numVerified best ones, all other peaks
+	 * get a crosscorrelation of -infinity. The cost of the exact verification is therefore independent of the
+	 * number of candidates. service remains functional after the call
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param sat1 summed-area table of img1
+	 * @param sat2 summed-area table of img2
+	 * @param minOverlapPx
+	 * @param subsampling step size for the estimated cross product (1 means all pixels)
+	 * @param numVerified how many of the best estimates are verified exactly
+	 * @param service
+	 * @param interpolateSubpixel
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrSAT(
+			final List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final SummedAreaTable sat1, final SummedAreaTable sat2, final long minOverlapPx, final int subsampling,
+			final int numVerified, ExecutorService service, boolean interpolateSubpixel)
+	{
+		// nothing to rank
+		if (numVerified >= peaks.size())
+		{
+			calculateCrossCorrParallel(peaks, img1, img2, minOverlapPx, service, interpolateSubpixel);
+			return;
+		}
+
+		final double[] estimates = new double[peaks.size()];
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < peaks.size(); i++){
+			final int index = i;
+			futures.add(service.submit(() -> {
+				estimates[index] = estimateCrossCorr(peaks.get(index), img1, img2, sat1, sat2, minOverlapPx, subsampling);
+			}));
+		}
+
+		waitFor(futures);
+
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < peaks.size(); i++)
+			order.add(i);
+
+		Collections.sort(order, (i1, i2) -> Double.compare(estimates[i2], estimates[i1]));
+
+		final List<PhaseCorrelationPeak2> toVerify = new ArrayList<PhaseCorrelationPeak2>();
+
+		for (int i = 0; i < order.size(); i++){
+			final PhaseCorrelationPeak2 p = peaks.get(order.get(i));
+
+			if (i < numVerified && estimates[order.get(i)] != Double.NEGATIVE_INFINITY)
+				toVerify.add(p);
+			else
+				p.setCrossCorr(Double.NEGATIVE_INFINITY);
+		}
+
+		calculateCrossCorrParallel(toVerify, img1, img2, minOverlapPx, service, interpolateSubpixel);
+	}
+
+	private static void waitFor(List<Future<?>> futures)
+	{
+		for (Future<?> f: futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/*
 	 * find local maxima in PCM
 	 * @param pcm
@@ -271,15 +416,25 @@ public class PhaseCorrelation2Util {
 	}
 	
 	/*
-	 * find maxima in PCM, use a temporary thread pool for calculation
+	 * find maxima in PCM in the calling thread (no thread pool is created), use
+	 * getPCMMaxima(pcm, service, maxN, subpixelAccuracy) to find them in parallel
 	 * @param pcm
 	 * @param nMax 
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, int nMax, boolean subpixelAccuracy){
-		ExecutorService tExecService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		List<PhaseCorrelationPeak2> res = getPCMMaxima(pcm, tExecService, nMax, subpixelAccuracy);
-		tExecService.shutdown();
+		
+		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
+		
+		ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMax(Views.extendPeriodic(pcm), pcm, nMax);
+		
+		for (Pair<Localizable, Double> p: maxima){
+			PhaseCorrelationPeak2 pcp = new PhaseCorrelationPeak2(p.getA(), p.getB());
+			if (subpixelAccuracy)
+				pcp.calculateSubpixelLocalization(pcm);
+
+			res.add(pcp);
+		}
 		return res;
 	}
 	
@@ -911,6 +1066,161 @@ public class PhaseCorrelation2Util {
 		return polarImg;
 	}
 
+	/*
+	 * like computePolarPowerSpectrum, but the negative x half-plane is taken from the point symmetry of the power
+	 * spectrum instead of mirroring x (which makes +/- rotations indistinguishable), and the radius is limited so
+	 * that y does not wrap around. Dimension 0 of the result are the angles in degrees [0...359], dimension 1 the
+	 * radius (in frequency pixels). The FFT should have the same (padded) size in x and y so that rotations of the
+	 * image correspond to rotations of the power spectrum in pixel coordinates (see getSquarePaddedSize)
+	 * @param fft
+	 * @param type
+	 * @return
+	 */
+	public static < C extends ComplexType< C >, T extends RealType< T > & NativeType< T > > Img< T > computePointSymmetricPolarPowerSpectrum( final RandomAccessibleInterval< C > fft, final T type )
+	{
+		if ( fft.numDimensions() != 2 )
+			throw new RuntimeException( "Only dim=2 allowed." );
+
+		final RandomAccessibleInterval< T > power = Converters.convertRAI( fft, new ComplexPowerGLogRealConverter<>(), type );
+
+		// larger radii would wrap around in y
+		final long numRadii = Math.min( power.dimension( 0 ), power.dimension( 1 ) / 2 + 1 );
+		final Img< T > polarImg = new ArrayImgFactory< T >( type ).create( 360, numRadii );
+
+		final PolarToCartesianTransform2D polarTransform = new PolarToCartesianTransform2D();
+
+		// y is periodic, the negative x half-plane is not stored (see below)
+		final RealRandomAccess< T > in = Views.interpolate( Views.extendPeriodic( power ), new NLinearInterpolatorFactory<>() ).realRandomAccess();
+		final Cursor< T > cursor = polarImg.localizingCursor();
+
+		final double[] source = new double[ 2 ];
+
+		while ( cursor.hasNext() )
+		{
+			final T t = cursor.next();
+
+			source[ 0 ] = cursor.getIntPosition( 1 );
+			source[ 1 ] = Math.toRadians( cursor.getIntPosition( 0 ) );
+
+			polarTransform.apply( source, source );
+
+			// the power spectrum of a real image is point-symmetric, i.e. |F(-x,-y)| = |F(x,y)|
+			if ( source[ 0 ] < 0 )
+			{
+				source[ 0 ] = -source[ 0 ];
+				source[ 1 ] = -source[ 1 ];
+			}
+
+			in.setPosition( source );
+			t.set( in.get() );
+		}
+
+		return polarImg;
+	}
+
+	/*
+	 * compute a square padded size (and the corresponding FFT size) that can hold img1 and img2 extended by extension pixels
+	 * on each side, a square size is required so that rotations of the images correspond to rotations of their power spectra
+	 * @param dim1
+	 * @param dim2
+	 * @param extension
+	 * @param paddedDimensions - will be filled with the padded real dimensions
+	 * @param fftSize - will be filled with the dimensions of the complex FFT images
+	 */
+	public static void getSquarePaddedSize(Dimensions dim1, Dimensions dim2, int[] extension, long[] paddedDimensions, long[] fftSize)
+	{
+		final Dimensions extSize = getExtendedSize(dim1, dim2, extension);
+		final long[] square = new long[extSize.numDimensions()];
+
+		for (int d = 0; d < extSize.numDimensions(); d++)
+			square[0] = Math.max(square[0], extSize.dimension(d));
+
+		// the fast sizes for the real (dim 0) and complex (all other dims) FFTs differ, increase until they agree
+		while (true)
+		{
+			Arrays.fill(square, square[0]);
+			FFTMethods.dimensionsRealToComplexFast(new FinalDimensions(square), paddedDimensions, fftSize);
+
+			boolean isSquare = true;
+
+			for (int d = 0; d < paddedDimensions.length; d++)
+			{
+				isSquare &= paddedDimensions[d] == paddedDimensions[0];
+				square[0] = Math.max(square[0], paddedDimensions[d]);
+			}
+
+			if (isSquare)
+				return;
+		}
+	}
+
+	/*
+	 * estimate the rotation of image 2 relative to image 1 from their polar power spectra (see computePointSymmetricPolarPowerSpectrum)
+	 * using a circular cross correlation along the angle axis, summed over all radii >= minRadius (the smallest radii are
+	 * dominated by the DC component and the outline of the images). As the power spectra are point-symmetric the result is
+	 * ambiguous by 180 degrees.
+	 * @param polar1
+	 * @param polar2
+	 * @param minRadius
+	 * @return the rotation in degrees [0, 360), parabolic subpixel accuracy
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> double estimateRotation(
+			RandomAccessibleInterval<T> polar1, RandomAccessibleInterval<S> polar2, int minRadius)
+	{
+		final int numAngles = (int) polar1.dimension(0);
+		final int numRadii = (int) Math.min(polar1.dimension(1), polar2.dimension(1));
+
+		final double[][] p1 = getMeanFreeRows(polar1, numRadii);
+		final double[][] p2 = getMeanFreeRows(polar2, numRadii);
+
+		final double[] corr = new double[numAngles];
+
+		for (int s = 0; s < numAngles; s++)
+			for (int r = minRadius; r < numRadii; r++)
+				for (int a = 0; a < numAngles; a++)
+					corr[s] += p1[r][a] * p2[r][(a + s) % numAngles];
+
+		int best = 0;
+
+		for (int s = 1; s < numAngles; s++)
+			if (corr[s] > corr[best])
+				best = s;
+
+		// parabola through the maximum and its neighbors
+		final double l = corr[(best - 1 + numAngles) % numAngles];
+		final double c = corr[best];
+		final double r = corr[(best + 1) % numAngles];
+		final double denom = l - 2 * c + r;
+		final double subpixel = denom < 0 ? 0.5 * (l - r) / denom : 0;
+
+		return ((best + subpixel) * 360.0 / numAngles + 360.0) % 360.0;
+	}
+
+	private static <T extends RealType<T>> double[][] getMeanFreeRows(RandomAccessibleInterval<T> polar, int numRadii)
+	{
+		final int numAngles = (int) polar.dimension(0);
+		final double[][] rows = new double[numRadii][numAngles];
+		final RandomAccess<T> ra = Views.zeroMin(polar).randomAccess();
+
+		for (int r = 0; r < numRadii; r++)
+		{
+			ra.setPosition(r, 1);
+			double sum = 0;
+
+			for (int a = 0; a < numAngles; a++)
+			{
+				ra.setPosition(a, 0);
+				rows[r][a] = ra.get().getRealDouble();
+				sum += rows[r][a];
+			}
+
+			for (int a = 0; a < numAngles; a++)
+				rows[r][a] -= sum / numAngles;
+		}
+
+		return rows;
+	}
+
 	public static void main(String[] args)
 	{
 		new ImageJ();
@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package imglib2.phasecorrelation;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Preallocated FFT and PCM images plus an external thread pool for computing many phase correlations in a row
+ * (e.g. when testing many rotations). The images only grow if a bigger size is required, otherwise zero-min views
+ * of the required size are used, so repeated PCMs of the same (or smaller) size create no new images and no threads.
+ * 
+ * Not thread-safe, use one instance per thread. The PCM returned by {@link #calculatePCM(RandomAccessibleInterval, RandomAccessibleInterval)}
+ * is a view into the workspace that is overwritten by the next call.
+ *
+ * @param <R> PCM pixel type
+ * @param <C> FFT pixel type
+ */
+public class PhaseCorrelation2Workspace< R extends RealType< R >, C extends ComplexType< C > >
+{
+	final ImgFactory< R > factory;
+	final ImgFactory< C > fftFactory;
+	final int[] extension;
+	final ExecutorService service;
+
+	Img< C > fft1, fft2;
+	Img< R > pcm;
+	SummedAreaTable sat2;
+
+	// verify all candidate shifts exactly, see setVerification()
+	public static final int verifyAll = Integer.MAX_VALUE;
+
+	// ranking of candidate shifts using summed-area tables (see PhaseCorrelation2Util.calculateCrossCorrSAT)
+	int subsampling = 2;
+	int numVerified = verifyAll;
+
+	/**
+	 * @param factory factory for the PCM
+	 * @param fftFactory factory for the FFTs
+	 * @param extension number of pixels the images are extended by at each side in each dimension
+	 * @param service thread pool used for all computations, it is not shut down by the workspace
+	 */
+	public PhaseCorrelation2Workspace( final ImgFactory< R > factory, final ImgFactory< C > fftFactory, final int[] extension, final ExecutorService service )
+	{
+		this.factory = factory;
+		this.fftFactory = fftFactory;
+		this.extension = extension.clone();
+		this.service = service;
+	}
+
+	/**
+	 * Workspace using the default extension of {@link PhaseCorrelation2} (10 pixels)
+	 *
+	 * @param factory factory for the PCM
+	 * @param fftFactory factory for the FFTs
+	 * @param numDimensions dimensionality of the images
+	 * @param service thread pool used for all computations, it is not shut down by the workspace
+	 */
+	public PhaseCorrelation2Workspace( final ImgFactory< R > factory, final ImgFactory< C > fftFactory, final int numDimensions, final ExecutorService service )
+	{
+		this( factory, fftFactory, defaultExtension( numDimensions ), service );
+	}
+
+	public ExecutorService getExecutorService() { return service; }
+
+	/**
+	 * By default all candidate shifts are checked via exact cross. corr., ranking them first is opt-in since the
+	 * estimate takes means and variances over the non-zero pixels of each image instead of the pixels that are
+	 * non-zero in both (see PhaseCorrelation2Util.estimateCrossCorr), so numVerified should not be too small.
+	 *
+	 * @param subsampling step size for estimating the cross product of each candidate shift (1 means all pixels)
+	 * @param numVerified how many of the best candidate shifts are checked via exact cross. corr. ({@link #verifyAll} for all)
+	 */
+	public void setVerification( final int subsampling, final int numVerified )
+	{
+		this.subsampling = subsampling;
+		this.numVerified = numVerified;
+	}
+
+	/**
+	 * calculate the phase correlation matrix of two images using the preallocated FFT images
+	 * @param img1 image 1
+	 * @param img2 image 2
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return the PCM, a view that is only valid until the next call
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > RandomAccessibleInterval< R > calculatePCM(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2 )
+	{
+		final int n = img1.numDimensions();
+		final long[] paddedDimensions = new long[ n ];
+		final long[] fftSize = new long[ n ];
+		final long[] pcmSize = new long[ n ];
+
+		PhaseCorrelation2.getPCMDimensions( img1, img2, extension, paddedDimensions, fftSize, pcmSize );
+
+		if ( fft1 == null || !fits( fft1, fftSize ) )
+		{
+			final long[] size = grow( fft1, fftSize );
+			fft1 = fftFactory.create( size );
+			fft2 = fftFactory.create( size );
+		}
+
+		if ( pcm == null || !fits( pcm, pcmSize ) )
+			pcm = factory.create( grow( pcm, pcmSize ) );
+
+		final RandomAccessibleInterval< R > pcmView = Views.interval( pcm, new FinalInterval( pcmSize ) );
+
+		PhaseCorrelation2.calculatePCM(
+				img1, img2, extension,
+				Views.interval( fft1, new FinalInterval( fftSize ) ),
+				Views.interval( fft2, new FinalInterval( fftSize ) ),
+				pcmView,
+				service );
+
+		return pcmView;
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > PhaseCorrelationPeak2 getShift(
+			final RandomAccessibleInterval< R > pcm, final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2,
+			final int nHighestPeaks, final long minOverlap, final boolean subpixelAccuracy, final boolean interpolateSubpixel )
+	{
+		return PhaseCorrelation2.getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, service );
+	}
+
+	/**
+	 * calculate the PCM of two images and the shift between them
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > PhaseCorrelationPeak2 getShift(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2,
+			final int nHighestPeaks, final long minOverlap, final boolean subpixelAccuracy, final boolean interpolateSubpixel )
+	{
+		return getShift( calculatePCM( img1, img2 ), img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel );
+	}
+
+	/**
+	 * calculate the PCM of two images and the shift between them, if enabled by {@link #setVerification(int, int)} the
+	 * candidate shifts are ranked using summed-area tables and only the best ones are checked via exact cross. corr.
+	 * @param img1 source image 1
+	 * @param sat1 summed-area table of image 1 (e.g. computed once if img1 is compared to many images)
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > PhaseCorrelationPeak2 getShift(
+			final RandomAccessibleInterval< T > img1, final SummedAreaTable sat1, final RandomAccessibleInterval< S > img2,
+			final int nHighestPeaks, final long minOverlap, final boolean subpixelAccuracy, final boolean interpolateSubpixel )
+	{
+		if ( numVerified == verifyAll )
+			return getShift( img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel );
+
+		if ( sat2 == null )
+			sat2 = new SummedAreaTable( img2 );
+		else
+			sat2.compute( img2 );
+
+		return PhaseCorrelation2.getShift(
+				calculatePCM( img1, img2 ), img1, img2, sat1, sat2, nHighestPeaks, minOverlap,
+				subpixelAccuracy, interpolateSubpixel, subsampling, numVerified, service );
+	}
+
+	protected static int[] defaultExtension( final int numDimensions )
+	{
+		final int[] extension = new int[ numDimensions ];
+		Arrays.fill( extension, 10 );
+		return extension;
+	}
+
+	protected static boolean fits( final Interval buffer, final long[] size )
+	{
+		for ( int d = 0; d < size.length; ++d )
+			if ( buffer.dimension( d ) < size[ d ] )
+				return false;
+
+		return true;
+	}
+
+	protected static long[] grow( final Interval buffer, final long[] size )
+	{
+		final long[] newSize = size.clone();
+
+		if ( buffer != null )
+			for ( int d = 0; d < size.length; ++d )
+				newSize[ d ] = Math.max( newSize[ d ], buffer.dimension( d ) );
+
+		return newSize;
+	}
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package imglib2.phasecorrelation;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Summed-area tables (integral images) of the intensities, squared intensities and the number of pixels of an
+ * n-dimensional image, the sum, sum of squares and count of any box are then computed in constant time. Like
+ * {@link PhaseCorrelation2Util#getCorrelation} only pixels that are &gt; 0 are taken into account. Coordinates
+ * are relative to the zero-min image. The tables can be recomputed for another image, they are only re-allocated
+ * if they are too small.
+ */
+public class SummedAreaTable
+{
+	int n;
+	final long[] dim;
+	final int[] stride;
+
+	double[] sum, sumSq, count;
+
+	public < T extends RealType< T > > SummedAreaTable( final RandomAccessibleInterval< T > img )
+	{
+		this.dim = new long[ img.numDimensions() ];
+		this.stride = new int[ img.numDimensions() ];
+
+		compute( img );
+	}
+
+	/**
+	 * (re)compute the tables for a new image of the same dimensionality
+	 * @param img the image
+	 * @param <T> pixel type
+	 */
+	public < T extends RealType< T > > void compute( final RandomAccessibleInterval< T > img )
+	{
+		if ( img.numDimensions() != dim.length )
+			throw new RuntimeException( "Dimensionality does not match: " + img.numDimensions() + " != " + dim.length );
+
+		n = img.numDimensions();
+		img.dimensions( dim );
+
+		// one extra row/column of zeros in every dimension
+		long size = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			stride[ d ] = (int)size;
+			size *= dim[ d ] + 1;
+		}
+
+		if ( size > Integer.MAX_VALUE - 8 )
+			throw new RuntimeException( "Image too large for a summed-area table: " + size + " entries." );
+
+		if ( sum == null || sum.length < size )
+		{
+			sum = new double[ (int)size ];
+			sumSq = new double[ (int)size ];
+			count = new double[ (int)size ];
+		}
+
+		// only entries with coordinate 0 in some dimension are not overwritten below
+		for ( int i = 0; i < size; ++i )
+			sum[ i ] = sumSq[ i ] = count[ i ] = 0;
+
+		final Cursor< T > cursor = Views.iterable( Views.zeroMin( img ) ).localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			final double v = cursor.next().getRealDouble();
+
+			// pixels that are 0 are ignored, just like in the exact cross. corr.
+			if ( v <= 0 )
+				continue;
+
+			int index = 0;
+
+			for ( int d = 0; d < n; ++d )
+				index += ( cursor.getIntPosition( d ) + 1 ) * stride[ d ];
+
+			sum[ index ] = v;
+			sumSq[ index ] = v * v;
+			count[ index ] = 1;
+		}
+
+		// cumulative sums along every dimension
+		for ( int d = 0; d < n; ++d )
+		{
+			final long dimD = dim[ d ] + 1;
+
+			for ( int i = 0; i < size; ++i )
+			{
+				if ( ( i / stride[ d ] ) % dimD != 0 )
+				{
+					sum[ i ] += sum[ i - stride[ d ] ];
+					sumSq[ i ] += sumSq[ i - stride[ d ] ];
+					count[ i ] += count[ i - stride[ d ] ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param interval box relative to the zero-min image
+	 * @return sum of all intensities &gt; 0 inside the box
+	 */
+	public double sum( final Interval interval )
+	{
+		return boxSum( sum, interval );
+	}
+
+	/**
+	 * @param interval box relative to the zero-min image
+	 * @return sum of all squared intensities &gt; 0 inside the box
+	 */
+	public double sumOfSquares( final Interval interval )
+	{
+		return boxSum( sumSq, interval );
+	}
+
+	/**
+	 * @param interval box relative to the zero-min image
+	 * @return number of pixels &gt; 0 inside the box
+	 */
+	public long count( final Interval interval )
+	{
+		return Math.round( boxSum( count, interval ) );
+	}
+
+	protected double boxSum( final double[] table, final Interval interval )
+	{
+		double s = 0;
+
+		// inclusion-exclusion over all corners of the box
+		for ( int corner = 0; corner < ( 1 << n ); ++corner )
+		{
+			int index = 0;
+			int numLower = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ( ( corner >> d ) & 1 ) == 1 )
+				{
+					index += ( interval.max( d ) + 1 ) * stride[ d ];
+				}
+				else
+				{
+					index += interval.min( d ) * stride[ d ];
+					++numLower;
+				}
+			}
+
+			if ( numLower % 2 == 0 )
+				s += table[ index ];
+			else
+				s -= table[ index ];
+		}
+
+		return s;
+	}
+}
@@ -3,28 +3,33 @@ package io;
 import anndata.CompressedStorageRai;
 import anndata.CscRandomAccessibleInterval;
 import anndata.CsrRandomAccessibleInterval;
-import ch.systemsx.cisd.hdf5.HDF5Factory;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import ch.systemsx.cisd.hdf5.IHDF5StringWriter;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.LongType;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
 import io.SpatialDataIO.N5Options;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 class AnnDataDetails {
@@ -66,25 +71,40 @@ class AnnDataDetails {
     }
 
     public static List<String> readStringAnnotation(N5Reader reader, String path) throws IOException {
+        return readStringAnnotation(reader, path, null);
+    }
+
+    /**
+     * @param hdf5Strings - a shared handle for reading strings from HDF5 files, if null a handle is opened and closed for this call
+     */
+    public static List<String> readStringAnnotation(N5Reader reader, String path, HDF5StringArrays hdf5Strings) throws IOException {
         final AnnDataFieldType type = getFieldType(reader, path);
         switch (type) {
             case STRING_ARRAY:
-                return readStringList(reader, path);
+                return readStringList(reader, path, hdf5Strings);
             case CATEGORICAL_ARRAY:
-                return readCategoricalList(reader, path);
+                return readCategoricalList(reader, path, hdf5Strings);
             default:
                 throw new UnsupportedOperationException("Reading string annotations for " + type + " not supported.");
         }
     }
 
-    protected static List<String> readStringList(N5Reader reader, String path) {
-        final String[] array = readPrimitiveStringArray((N5HDF5Reader) reader, path);
+    protected static List<String> readStringList(N5Reader reader, String path, HDF5StringArrays hdf5Strings) throws IOException {
+        final String[] array = readPrimitiveStringArray(reader, path, hdf5Strings);
         return Arrays.asList(array);
     }
 
-    protected static String[] readPrimitiveStringArray(N5HDF5Reader reader, String path) {
-        final IHDF5Reader hdf5Reader = HDF5Factory.openForReading(reader.getFilename());
-        return hdf5Reader.readStringArray(path);
+    protected static String[] readPrimitiveStringArray(N5Reader reader, String path, HDF5StringArrays hdf5Strings) throws IOException {
+        // N5 does not support variable length strings, so they are read directly from the backend
+        if (reader instanceof N5ZarrReader)
+            return ZarrStringArray.read((N5ZarrReader) reader, path);
+
+        if (hdf5Strings != null)
+            return hdf5Strings.read(path);
+
+        try (final HDF5StringArrays strings = new HDF5StringArrays((N5HDF5Reader) reader)) {
+            return strings.read(path);
+        }
     }
 
     public static <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<T> readFromDataFrame(N5Reader reader, String dataFrame, String label) throws IOException {
@@ -93,11 +113,17 @@ class AnnDataDetails {
             throw new IOException("Dataframe '" + dataFrame + "' does not contain '" + label + "'.");
 
         // TODO: this returns null for non-readble datatypes (e.g. string); is there a better way to treat string annotations?
-        DatasetAttributes attributes = reader.getDatasetAttributes(dataFrame + "/" + label);
+        final String path = dataFrame + "/" + label;
+
+        // N5-Zarr cannot parse the dtype of zarr string arrays ('|O')
+        if (reader instanceof N5ZarrReader && ZarrStringArray.isStringArray((N5ZarrReader) reader, path))
+            return null;
+
+        DatasetAttributes attributes = reader.getDatasetAttributes(path);
         if (attributes == null || attributes.getDataType() == null)
             return null;
 
-        return N5Utils.open(reader, dataFrame + "/" + label);
+        return N5Utils.open(reader, path);
     }
 
     public static List<String> getExistingDataFrameDatasets(N5Reader reader, String dataFrame) throws IOException {
@@ -115,8 +141,8 @@ class AnnDataDetails {
         return datasets;
     }
 
-    protected static List<String> readCategoricalList(N5Reader reader, String path) throws IOException {
-        final String[] categoryNames = readPrimitiveStringArray((N5HDF5Reader) reader, path + "/categories");
+    protected static List<String> readCategoricalList(N5Reader reader, String path, HDF5StringArrays hdf5Strings) throws IOException {
+        final String[] categoryNames = readPrimitiveStringArray(reader, path + "/categories", hdf5Strings);
         final Img<? extends IntegerType<?>> category = N5Utils.open(reader, path + "/codes");
         final RandomAccess<? extends IntegerType<?>> ra = category.randomAccess();
 
@@ -196,9 +222,14 @@ class AnnDataDetails {
         if (typeFitsData) {
            sparse = (CompressedStorageRai<T, ?>) data;
         }
+        else if (data instanceof CompressedStorageRai) {
+            // CSR <-> CSC in one pass over the nonzeros
+            sparse = CompressedStorageRai.switchLayout((CompressedStorageRai<T, ?>) data);
+        }
         else {
             final int leadingDim = (type == AnnDataFieldType.CSR_MATRIX) ? 0 : 1;
-            sparse = CompressedStorageRai.convertToSparse(data, leadingDim);
+            writeDenseAsSparseArray(writer, path, data, leadingDim, options);
+            return;
         }
 
         writer.createGroup(path);
@@ -208,14 +239,69 @@ class AnnDataDetails {
         N5Utils.save(sparse.getIndexPointerArray(), writer, path + "/indptr", blockSize, options.compression, options.exec);
     }
 
+    /**
+     * Writes a dense array as CSR (leadingDim = 0) or CSC (leadingDim = 1) without holding the sparse array in memory:
+     * the nonzeros of all slices are counted in parallel, then every chunk of data/indices is compacted and written
+     * independently, so only the index pointers and one chunk per thread are held.
+     */
+    protected static <T extends NativeType<T> & RealType<T>> void writeDenseAsSparseArray(
+            N5Writer writer,
+            String path,
+            RandomAccessibleInterval<T> data,
+            int leadingDim,
+            N5Options options) throws IOException, ExecutionException, InterruptedException {
+
+        final long[] indptr = CompressedStorageRai.computeIndexPointers(data, leadingDim, options.exec);
+        final long nnz = indptr[indptr.length - 1];
+
+        final T type = data.getAt(0, 0).createVariable();
+        final int chunkSize = (options.blockSize.length == 1) ? options.blockSize[0] : options.blockSize[0]*options.blockSize[1];
+        final int[] blockSize = new int[]{(int) Math.max(1, Math.min(chunkSize, nnz))};
+
+        writer.createGroup(path);
+        writer.createDataset(path + "/data", new long[]{nnz}, blockSize, N5Utils.dataType(type), options.compression);
+        writer.createDataset(path + "/indices", new long[]{nnz}, blockSize, DataType.INT64, options.compression);
+        final DatasetAttributes dataAttributes = writer.getDatasetAttributes(path + "/data");
+        final DatasetAttributes indicesAttributes = writer.getDatasetAttributes(path + "/indices");
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (long chunk = 0; chunk * blockSize[0] < nnz; ++chunk) {
+            final long from = chunk * blockSize[0];
+            final long to = Math.min(nnz, from + blockSize[0]);
+            final long[] gridPosition = new long[]{chunk};
+            tasks.add(() -> {
+                final Img<T> dataChunk = new ArrayImgFactory<>(type).create(to - from);
+                final Img<LongType> indicesChunk = ArrayImgs.longs(to - from);
+                CompressedStorageRai.compactNonzeros(data, leadingDim, indptr, from, to, from, dataChunk.randomAccess(), indicesChunk.randomAccess());
+                N5Utils.saveBlock(dataChunk, writer, path + "/data", dataAttributes, gridPosition);
+                N5Utils.saveBlock(indicesChunk, writer, path + "/indices", indicesAttributes, gridPosition);
+                return null;
+            });
+        }
+        for (final Future<Void> future : options.exec.invokeAll(tasks))
+            future.get();
+
+        N5Utils.save(ArrayImgs.longs(indptr, indptr.length), writer, path + "/indptr", new int[]{chunkSize}, options.compression, options.exec);
+    }
+
     public static void createDataFrame(N5Writer writer, String path, List<String> index) throws IOException {
+        createDataFrame(writer, path, index, null);
+    }
+
+    /**
+     * @param hdf5Strings - a shared handle for writing strings to HDF5 files, if null a handle is opened and closed for this call
+     */
+    public static void createDataFrame(N5Writer writer, String path, List<String> index, HDF5StringArrays hdf5Strings) throws IOException {
         writer.createGroup(path);
         writeEncoding(writer, path, AnnDataFieldType.DATA_FRAME);
         writer.setAttribute(path, "_index", "_index");
-        // this should be an empty attribute, which N5 doesn't support -> use "" as surrogate
-        writer.setAttribute(path, "column-order", "");
+        // this should be an empty attribute, which N5 doesn't support for HDF5 -> use "" as surrogate
+        if (writer instanceof N5ZarrWriter)
+            writer.setAttribute(path, "column-order", new String[0]);
+        else
+            writer.setAttribute(path, "column-order", "");
 
-        writePrimitiveStringArray((N5HDF5Writer) writer, path + "/_index", index.toArray(new String[0]));
+        writePrimitiveStringArray(writer, path + "/_index", index.toArray(new String[0]), hdf5Strings);
         writeEncoding(writer, path + "/_index", AnnDataFieldType.STRING_ARRAY);
     }
 
@@ -239,9 +325,20 @@ class AnnDataDetails {
         }
     }
 
-    protected static void writePrimitiveStringArray(N5HDF5Writer writer, String path, String[] array) {
-        final IHDF5StringWriter stringWriter = HDF5Factory.open(writer.getFilename()).string();
-        stringWriter.writeArrayVL(path, array);
+    protected static void writePrimitiveStringArray(N5Writer writer, String path, String[] array, HDF5StringArrays hdf5Strings) throws IOException {
+        if (writer instanceof N5ZarrWriter) {
+            ZarrStringArray.write((N5ZarrWriter) writer, path, array);
+            return;
+        }
+
+        if (hdf5Strings != null) {
+            hdf5Strings.write(path, array);
+            return;
+        }
+
+        try (final HDF5StringArrays strings = new HDF5StringArrays((N5HDF5Writer) writer)) {
+            strings.write(path, array);
+        }
     }
 
     protected static void createMapping(N5Writer writer, String path) throws IOException {
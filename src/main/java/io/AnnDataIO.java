@@ -12,7 +12,10 @@ import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
 
+import anndata.CompressedStorageRai;
+import anndata.CsrRandomAccessibleInterval;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
@@ -26,7 +29,6 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.converter.Converters;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineSet;
@@ -41,6 +43,15 @@ import render.Render;
 
 public class AnnDataIO extends SpatialDataIO {
 
+	// a gene-major (CSC) copy of a CSR expression matrix is stored under this path in /uns, e.g. /uns/X_csc for /X
+	public static String geneMajorSuffix = "_csc";
+
+	protected boolean geneMajorAccess = false;
+	protected boolean writeGeneMajorIndex = false;
+
+	// one handle for all string arrays of an HDF5 file, opened on first use and closed after reading/writing
+	protected HDF5StringArrays hdf5Strings = null;
+
 	public AnnDataIO(final Supplier<? extends N5Reader> ioSupplier, final String basePath, final boolean readOnly, final ExecutorService service) {
 		super(ioSupplier, basePath, readOnly, service);
 	}
@@ -57,8 +68,40 @@ public class AnnDataIO extends SpatialDataIO {
 		super(ioSupplier, basePath, readOnly, vectorBlockSize, matrixBlockSize, compression, service);
 
 		// TODO: remove this check once the issue is fixed
-		if (!N5HDF5Reader.class.isInstance(ioSupplier.get()))
-			throw new IllegalArgumentException("IO for AnnData currently only supports hdf5.");
+		final N5Reader reader = ioSupplier.get();
+		if (!(reader instanceof N5HDF5Reader) && !(reader instanceof N5ZarrReader))
+			throw new IllegalArgumentException("IO for AnnData currently only supports hdf5 and zarr.");
+	}
+
+	/**
+	 * If the expression values are stored as CSR (by cell) and there is no gene-major copy (see
+	 * {@link #setWriteGeneMajorIndex(boolean)}), convert them to CSC in memory when reading, so reading a gene costs
+	 * O(nnz of the gene) instead of a binary search per cell. Costs one pass over and a copy of all nonzeros.
+	 *
+	 * @param geneMajorAccess - whether to convert CSR to CSC when reading
+	 */
+	public void setGeneMajorAccess(final boolean geneMajorAccess) {
+		this.geneMajorAccess = geneMajorAccess;
+	}
+
+	/**
+	 * Additionally store the expression values as CSC (by gene) next to the CSR matrix, which is used for reading
+	 * if present. Other AnnData tools ignore it, it roughly doubles the size of the expression values. If false, an
+	 * existing gene-major copy is removed when writing the expression values.
+	 *
+	 * @param writeGeneMajorIndex - whether to write a gene-major copy of the expression values
+	 */
+	public void setWriteGeneMajorIndex(final boolean writeGeneMajorIndex) {
+		this.writeGeneMajorIndex = writeGeneMajorIndex;
+	}
+
+	/**
+	 * @param exprValuePath - path of the expression values, e.g. /X
+	 * @return the path of the gene-major copy, e.g. /uns/X_csc
+	 */
+	public static String geneMajorPath(final String exprValuePath) {
+		final String name = exprValuePath.substring(exprValuePath.lastIndexOf('/') + 1);
+		return "/uns/" + name + geneMajorSuffix;
 	}
 
 	@Override
@@ -101,7 +144,38 @@ public class AnnDataIO extends SpatialDataIO {
 		N5Reader reader = ioSupplier.get();
 		if (!AnnDataDetails.isValidAnnData(reader))
 			System.out.println("Anndata file seems to be missing some metadata. Trying to read it anyways...");
-		return super.readData();
+		try {
+			return super.readData();
+		}
+		finally {
+			closeStringArrays();
+		}
+	}
+
+	@Override
+	public void writeData(STDataAssembly data) throws IOException {
+		try {
+			super.writeData(data);
+		}
+		finally {
+			closeStringArrays();
+		}
+	}
+
+	/**
+	 * @return the shared handle for string arrays if this is an HDF5 file, null otherwise
+	 */
+	protected synchronized HDF5StringArrays stringArrays(N5Reader reader) {
+		if (hdf5Strings == null && reader instanceof N5HDF5Reader)
+			hdf5Strings = new HDF5StringArrays((N5HDF5Reader) reader);
+		return hdf5Strings;
+	}
+
+	protected synchronized void closeStringArrays() {
+		if (hdf5Strings != null) {
+			hdf5Strings.close();
+			hdf5Strings = null;
+		}
 	}
 
 	@Override
@@ -109,13 +183,25 @@ public class AnnDataIO extends SpatialDataIO {
 		// transpose locations, since AnnData stores them as columns
 		RandomAccessibleInterval<? extends RealType<?>> locations = Views.permute(
 				(RandomAccessibleInterval<? extends RealType<?>>) AnnDataDetails.readArray(reader, locationPath), 0, 1);
-		return Converters.convert(locations, (i, o) -> o.set(i.getRealDouble()), new DoubleType());
+		return asDoubleType(locations);
 	}
 
 	@Override
 	protected RandomAccessibleInterval<DoubleType> readExpressionValues(N5Reader reader, String exprValuePath) throws IOException {
-		RandomAccessibleInterval<? extends RealType<?>> expressionVals = (RandomAccessibleInterval<? extends RealType<?>>) AnnDataDetails.readArray(reader, exprValuePath);
-		return Converters.convert(expressionVals, (i, o) -> o.set(i.getRealDouble()), new DoubleType());
+		RandomAccessibleInterval<? extends RealType<?>> expressionVals;
+
+		// most access is per gene, which is fast for CSC and slow for CSR (a binary search per cell)
+		if (AnnDataDetails.getFieldType(reader, exprValuePath) == AnnDataFieldType.CSR_MATRIX && reader.exists(geneMajorPath(exprValuePath))) {
+			expressionVals = (RandomAccessibleInterval<? extends RealType<?>>) AnnDataDetails.readArray(reader, geneMajorPath(exprValuePath));
+		}
+		else {
+			expressionVals = (RandomAccessibleInterval<? extends RealType<?>>) AnnDataDetails.readArray(reader, exprValuePath);
+
+			if (geneMajorAccess && expressionVals instanceof CsrRandomAccessibleInterval)
+				expressionVals = CompressedStorageRai.switchLayout((CsrRandomAccessibleInterval) expressionVals);
+		}
+
+		return asDoubleType(expressionVals);
 	}
 
 	protected <T extends NativeType<T> & RealType<T>> void readAndSetTransformation(N5Reader reader, AffineSet transform, String name) throws IOException {
@@ -143,12 +229,12 @@ public class AnnDataIO extends SpatialDataIO {
 
 	@Override
 	protected List<String> readBarcodes(N5Reader reader) throws IOException {
-		return AnnDataDetails.readStringAnnotation(reader, "/obs/_index");
+		return AnnDataDetails.readStringAnnotation(reader, "/obs/_index", stringArrays(reader));
 	}
 
 	@Override
 	protected List<String> readGeneNames(N5Reader reader) throws IOException {
-		return AnnDataDetails.readStringAnnotation(reader, "/var/_index");
+		return AnnDataDetails.readStringAnnotation(reader, "/var/_index", stringArrays(reader));
 	}
 
 	@Override
@@ -172,21 +258,41 @@ public class AnnDataIO extends SpatialDataIO {
 
 	@Override
 	protected void writeBarcodes(N5Writer writer, List<String> barcodes) throws IOException {
-		AnnDataDetails.createDataFrame(writer, "/obs", barcodes);
+		AnnDataDetails.createDataFrame(writer, "/obs", barcodes, stringArrays(writer));
 	}
 
 	@Override
 	protected void writeGeneNames(N5Writer writer, List<String> geneNames) throws IOException {
-		AnnDataDetails.createDataFrame(writer, "/var", geneNames);
+		AnnDataDetails.createDataFrame(writer, "/var", geneNames, stringArrays(writer));
 	}
 
 	@Override
 	protected void writeLocations(N5Writer writer, RandomAccessibleInterval<DoubleType> locations, String locationPath) throws IOException {
-		AnnDataDetails.writeArray(writer, locationPath, Views.permute(locations, 0, 1), options);
+		AnnDataDetails.writeArray(writer, locationPath, Views.permute(convertForStorage(locations, locationStorageType), 0, 1), options);
 	}
 
 	@Override
 	protected void writeExpressionValues(N5Writer writer, RandomAccessibleInterval<DoubleType> exprValues, String exprValuePath) throws IOException {
-		AnnDataDetails.writeArray(writer, exprValuePath, exprValues, options, AnnDataFieldType.CSR_MATRIX);
+		// sparse input is only converted if the values are stored with another type
+		writeSparseExpressionValues(writer, convertForStorage(exprValues, exprValueStorageType), exprValuePath);
+	}
+
+	protected <T extends NativeType<T> & RealType<T>> void writeSparseExpressionValues(N5Writer writer, RandomAccessibleInterval<T> exprValues, String exprValuePath) throws IOException {
+		if (!writeGeneMajorIndex) {
+			// a gene-major copy of previously written values would be read instead of the new ones
+			if (writer.exists(geneMajorPath(exprValuePath)))
+				writer.remove(geneMajorPath(exprValuePath));
+
+			AnnDataDetails.writeArray(writer, exprValuePath, exprValues, options, AnnDataFieldType.CSR_MATRIX);
+			return;
+		}
+
+		// convert once, the gene-major copy is derived from the CSR matrix in one pass over the nonzeros
+		final CompressedStorageRai<T, ?> csr = (exprValues instanceof CsrRandomAccessibleInterval)
+				? (CompressedStorageRai<T, ?>) exprValues
+				: CompressedStorageRai.convertToSparse(exprValues, 0, options.exec);
+
+		AnnDataDetails.writeArray(writer, exprValuePath, csr, options, AnnDataFieldType.CSR_MATRIX);
+		AnnDataDetails.writeArray(writer, geneMajorPath(exprValuePath), CompressedStorageRai.switchLayout(csr), options, AnnDataFieldType.CSC_MATRIX);
 	}
 }
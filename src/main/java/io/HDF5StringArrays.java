@@ -0,0 +1,56 @@
+package io;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+
+import java.io.Closeable;
+
+/**
+ * A single JHDF5 handle for reading and writing variable length string arrays of one HDF5 file (N5 does not support
+ * them), opened on first use. Reading uses a read-only handle until the first write, which reopens the file for
+ * writing.
+ */
+class HDF5StringArrays implements Closeable {
+
+    private final N5HDF5Reader n5;
+    private IHDF5Reader reader = null;
+    private IHDF5Writer writer = null;
+
+    public HDF5StringArrays(N5HDF5Reader n5) {
+        this.n5 = n5;
+    }
+
+    public synchronized String[] read(String path) {
+        if (writer != null)
+            return writer.readStringArray(path);
+        if (reader == null)
+            reader = HDF5Factory.openForReading(n5.getFilename());
+        return reader.readStringArray(path);
+    }
+
+    public synchronized void write(String path, String[] array) {
+        if (writer == null) {
+            closeReader();
+            writer = HDF5Factory.open(n5.getFilename());
+        }
+        writer.string().writeArrayVL(path, array);
+    }
+
+    @Override
+    public synchronized void close() {
+        closeReader();
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
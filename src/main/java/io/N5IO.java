@@ -1,9 +1,13 @@
 package io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
@@ -11,19 +15,40 @@ import java.util.function.Supplier;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineSet;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
 import data.STData;
+import io.AnnDataDetails.AnnDataFieldType;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 public class N5IO extends SpatialDataIO {
 
+	/**
+	 * Storage layout of the expression values: a dense array, or a sparse matrix (same layout as in AnnData) that is
+	 * compressed by location (CSR) or by gene (CSC, fastest for reading single genes).
+	 */
+	public enum ExpressionLayout { DENSE, CSR, CSC }
+
+	protected ExpressionLayout expressionLayout = ExpressionLayout.DENSE;
+
+	public static int stringBlockSize = 1 << 16;
+
+	protected static final String barcodePath = "/barcodeList";
+	protected static final String geneNamePath = "/geneList";
+
+	protected boolean stringListsAsDatasets = false;
+
 	public N5IO(final Supplier<? extends N5Reader> ioSupplier, final String basePath, final boolean readOnly, final ExecutorService service) {
 		super(ioSupplier, basePath, readOnly, service);
 	}
@@ -40,6 +65,60 @@ public class N5IO extends SpatialDataIO {
 		super(ioSupplier, basePath, readOnly, vectorBlockSize, matrixBlockSize, compression, service);
 	}
 
+	/**
+	 * Sets the layout used for writing the expression values, reading detects the layout automatically.
+	 *
+	 * @param expressionLayout - the layout of the expression values
+	 */
+	public void setExpressionLayout(final ExpressionLayout expressionLayout) {
+		this.expressionLayout = expressionLayout;
+	}
+
+	/**
+	 * Store barcodes and gene names as chunked datasets (UTF-8 bytes and offsets) instead of attributes of the root
+	 * group, which keeps the root attributes small, so reading or updating e.g. the transformation does not parse and
+	 * rewrite them. Reading detects how they are stored.
+	 *
+	 * @param stringListsAsDatasets - whether to store barcodes and gene names as datasets
+	 */
+	public void setStringListsAsDatasets(final boolean stringListsAsDatasets) {
+		this.stringListsAsDatasets = stringListsAsDatasets;
+	}
+
+	/**
+	 * Rewrites the (dense) expression values with a new block size, keeping data type and compression. The values
+	 * are written to a temporary dataset first, since the blocks cannot be rewritten while they are read, which then
+	 * replaces the original one. Only N5 and Zarr are supported, HDF5 does not reclaim the space of removed datasets
+	 * (resave the dataset with a new block size instead).
+	 *
+	 * @param blockSize - the new block size [genes, locations], see {@link MatrixChunking}
+	 * @throws IOException if the values are sparse, stored in HDF5, or cannot be written
+	 */
+	public <T extends NativeType<T>> void rechunkExpressionValues(final int[] blockSize) throws IOException {
+		if (readOnly)
+			throw new IllegalStateException("Trying to modify a read-only file.");
+
+		final N5Writer writer = (N5Writer) ioSupplier.get();
+		if (writer instanceof N5HDF5Writer)
+			throw new IOException("HDF5 does not reclaim the space of removed datasets, resave '" + path + "' with a new block size instead.");
+		if (!writer.datasetExists(exprValuePath))
+			throw new IOException("Only dense expression values can be rechunked, '" + exprValuePath + "' is not a dataset.");
+
+		final String tmpPath = exprValuePath + "-rechunked";
+		final Compression compression = writer.getDatasetAttributes(exprValuePath).getCompression();
+
+		try {
+			final RandomAccessibleInterval<T> exprValues = N5Utils.open(writer, exprValuePath);
+			N5Utils.save(exprValues, writer, tmpPath, blockSize, compression, options.exec);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Could not rechunk expression values.", e);
+		}
+
+		// datasets of N5 and Zarr are self-contained directories, so the new one can simply be moved into place
+		writer.remove(exprValuePath);
+		Files.move(Paths.get(path, tmpPath), Paths.get(path, exprValuePath));
+	}
+
 	@Override
 	public void setDataPaths(String locationPath, String exprValuePath, String annotationPath) {
 		this.locationPath = (locationPath == null) ? "/locations" : locationPath;
@@ -59,31 +138,59 @@ public class N5IO extends SpatialDataIO {
 
 	@Override
 	protected RandomAccessibleInterval<DoubleType> readLocations(N5Reader reader, String locationsPath) throws IOException {
-		return N5Utils.open(reader, locationsPath);
+		return asDoubleType((RandomAccessibleInterval<? extends RealType<?>>) N5Utils.open(reader, locationsPath));
 	}
 
 	@Override
 	protected RandomAccessibleInterval<DoubleType> readExpressionValues(N5Reader reader, String exprValuesPath) throws IOException {
-		return N5Utils.open(reader, exprValuesPath);
+		if (reader.datasetExists(exprValuesPath))
+			return asDoubleType((RandomAccessibleInterval<? extends RealType<?>>) N5Utils.open(reader, exprValuesPath));
+
+		// a sparse matrix is a group of data/indices/indptr
+		return asDoubleType((RandomAccessibleInterval<? extends RealType<?>>) AnnDataDetails.readArray(reader, exprValuesPath));
 	}
 
 	@Override
 	@SuppressWarnings("unchecked")
 	protected List<String> readBarcodes(N5Reader reader) throws IOException {
+		if (reader.exists(barcodePath))
+			return readStringList(reader, barcodePath);
 		return reader.getAttribute("/", "barcodeList", List.class);
 	}
 
 	@Override
 	@SuppressWarnings("unchecked")
 	protected List<String> readGeneNames(N5Reader reader) throws IOException {
+		if (reader.exists(geneNamePath))
+			return readStringList(reader, geneNamePath);
 		return reader.getAttribute("/", "geneList", List.class);
 	}
 
+	@SuppressWarnings("unchecked")
+	protected List<String> readStringList(N5Reader reader, String path) throws IOException {
+		final long[] offsets = new long[(int) reader.getDatasetAttributes(path + "/offsets").getDimensions()[0]];
+		int i = 0;
+		for (final LongType offset : Views.flatIterable((RandomAccessibleInterval<LongType>) N5Utils.open(reader, path + "/offsets")))
+			offsets[i++] = offset.get();
+
+		final byte[] chars = new byte[(int) offsets[offsets.length - 1]];
+		if (chars.length > 0) {
+			i = 0;
+			for (final UnsignedByteType c : Views.flatIterable((RandomAccessibleInterval<UnsignedByteType>) N5Utils.open(reader, path + "/chars")))
+				chars[i++] = (byte) c.get();
+		}
+
+		final List<String> strings = new ArrayList<>(offsets.length - 1);
+		for (i = 0; i < offsets.length - 1; ++i)
+			strings.add(new String(chars, (int) offsets[i], (int) (offsets[i + 1] - offsets[i]), StandardCharsets.UTF_8));
+		return strings;
+	}
+
 	@Override
 	protected <T extends NativeType<T> & RealType<T>> void readAndSetTransformation(N5Reader reader, AffineSet transform, String name) throws IOException {
-		final Set<String> attributes = reader.listAttributes("/").keySet();
-		if (attributes.contains(name))
-			transform.set(reader.getAttribute("/", name, double[].class ) );
+		final double[] values = reader.getAttribute("/", name, double[].class);
+		if (values != null)
+			transform.set(values);
 	}
 
 	@Override
@@ -100,7 +207,7 @@ public class N5IO extends SpatialDataIO {
 	protected void writeLocations(N5Writer writer, RandomAccessibleInterval<DoubleType> locations, String locationsPath) throws IOException {
 		try {
 			int[] blockSize = new int[]{options1d.blockSize[0], (int) locations.dimension(1)};
-			N5Utils.save(locations, writer, locationsPath, blockSize, options.compression, options.exec);
+			N5Utils.save(convertForStorage(locations, locationStorageType), writer, locationsPath, blockSize, options.compression, options.exec);
 		} catch (InterruptedException | ExecutionException e) {
 			throw new IOException("Could not write locations.", e);
 		}
@@ -108,8 +215,21 @@ public class N5IO extends SpatialDataIO {
 
 	@Override
 	protected void writeExpressionValues(N5Writer writer, RandomAccessibleInterval<DoubleType> exprValues, String exprValuesPath) throws IOException {
+		// remove a previously written layout, reading prefers a dense dataset over the groups of a sparse matrix
+		if (writer.exists(exprValuesPath))
+			writer.remove(exprValuesPath);
+
+		if (expressionLayout == ExpressionLayout.CSR) {
+			AnnDataDetails.writeArray(writer, exprValuesPath, convertForStorage(exprValues, exprValueStorageType), options, AnnDataFieldType.CSR_MATRIX);
+			return;
+		}
+		if (expressionLayout == ExpressionLayout.CSC) {
+			AnnDataDetails.writeArray(writer, exprValuesPath, convertForStorage(exprValues, exprValueStorageType), options, AnnDataFieldType.CSC_MATRIX);
+			return;
+		}
+
 		try {
-			N5Utils.save(exprValues, writer, exprValuesPath, options.blockSize, options.compression, options.exec);
+			N5Utils.save(convertForStorage(exprValues, exprValueStorageType), writer, exprValuesPath, options.blockSize, options.compression, options.exec);
 		} catch (InterruptedException | ExecutionException e) {
 			throw new IOException("Could not write expression values.", e);
 		}
@@ -117,12 +237,53 @@ public class N5IO extends SpatialDataIO {
 
 	@Override
 	protected void writeBarcodes(N5Writer writer, List<String> barcodes) throws IOException {
-		writer.setAttribute("/", "barcodeList", barcodes);
+		writeStringList(writer, barcodePath, "barcodeList", barcodes);
 	}
 
 	@Override
 	protected void writeGeneNames(N5Writer writer, List<String> geneNames) throws IOException {
-		writer.setAttribute("/", "geneList", geneNames);
+		writeStringList(writer, geneNamePath, "geneList", geneNames);
+	}
+
+	/**
+	 * Writes a string list as datasets or as an attribute of the root group and removes the other representation, since
+	 * reading prefers the datasets and a stale attribute would still be parsed with all other root attributes.
+	 */
+	protected void writeStringList(N5Writer writer, String path, String attributeName, List<String> strings) throws IOException {
+		if (stringListsAsDatasets) {
+			writeStringList(writer, path, strings);
+			// there is no way to remove a single attribute, a null value is dropped (or stored as null)
+			if (writer.listAttributes("/").containsKey(attributeName))
+				writer.setAttribute("/", attributeName, null);
+		}
+		else {
+			if (writer.exists(path))
+				writer.remove(path);
+			writer.setAttribute("/", attributeName, strings);
+		}
+	}
+
+	protected void writeStringList(N5Writer writer, String path, List<String> strings) throws IOException {
+		final long[] offsets = new long[strings.size() + 1];
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < strings.size(); ++i) {
+			final byte[] string = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			bytes.write(string, 0, string.length);
+			offsets[i + 1] = offsets[i] + string.length;
+		}
+		final byte[] chars = bytes.toByteArray();
+
+		// an empty list has no chars, which must not be left over from a previous list
+		if (writer.exists(path))
+			writer.remove(path);
+		writer.createGroup(path);
+		try {
+			N5Utils.save(ArrayImgs.longs(offsets, offsets.length), writer, path + "/offsets", options1d.blockSize, options.compression, options.exec);
+			if (chars.length > 0)
+				N5Utils.save(ArrayImgs.unsignedBytes(chars, chars.length), writer, path + "/chars", new int[]{stringBlockSize}, options.compression, options.exec);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Could not write string list '" + path + "'.", e);
+		}
 	}
 
 	@Override
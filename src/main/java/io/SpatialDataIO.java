@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,14 +12,21 @@ import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
 
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
 import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
 import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
 
@@ -27,6 +35,7 @@ import data.STDataImgLib2;
 import data.STDataStatistics;
 import gui.STDataAssembly;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineSet;
 import net.imglib2.realtransform.AffineTransform2D;
@@ -128,6 +137,8 @@ public abstract class SpatialDataIO {
 	protected String exprValuePath;
 	protected String annotationPath;
 	protected String path;
+	protected DataType exprValueStorageType = DataType.FLOAT64;
+	protected DataType locationStorageType = DataType.FLOAT64;
 
 	public String getPath() { return path; }
 
@@ -168,8 +179,12 @@ public abstract class SpatialDataIO {
 			final Compression compression,
 			final ExecutorService service) {
 
-		if (!readOnly && !(ioSupplier.get() instanceof N5Writer))
-			throw new IllegalArgumentException("Supplier for read-write must return N5Writer");
+		if (!readOnly) {
+			final N5Reader backend = ioSupplier.get();
+			if (!(backend instanceof N5Writer))
+				throw new IllegalArgumentException("Supplier for read-write must return N5Writer");
+			checkCompression(backend, compression);
+		}
 
 		this.path = basePath;
 
@@ -191,6 +206,214 @@ public abstract class SpatialDataIO {
 	 */
 	public abstract void setDataPaths(String locationPath, String exprValuePath, String annotationPath);
 
+	/**
+	 * Block shapes of the expression matrix [genes x locations]. Most tools read one gene at a time, which touches all
+	 * blocks along the locations, so gene-major slabs avoid decompressing data of other genes.
+	 */
+	public enum MatrixChunking {
+		SQUARE(512, 512),
+		GENE_SLAB(1, 65536),
+		GENE_BLOCK(16, 16384);
+
+		private final int genes, locations;
+
+		MatrixChunking(int genes, int locations) {
+			this.genes = genes;
+			this.locations = locations;
+		}
+
+		public int[] blockSize() { return new int[]{genes, locations}; }
+
+		/**
+		 * @param chunking the name of a preset (case-insensitive) or an explicit block size 'genes x locations', e.g. '4x32768'
+		 * @return the block size of the expression matrix
+		 */
+		public static int[] parse(String chunking) {
+			for (MatrixChunking preset : values())
+				if (preset.name().equalsIgnoreCase(chunking.trim()))
+					return preset.blockSize();
+
+			final String[] sizes = chunking.trim().toLowerCase().split("x");
+			if (sizes.length != 2)
+				throw new IllegalArgumentException("Cannot parse block size '" + chunking + "', use one of " + Arrays.toString(values()) + " or 'genes x locations', e.g. '4x32768'.");
+			final int[] blockSize = new int[]{Integer.parseInt(sizes[0].trim()), Integer.parseInt(sizes[1].trim())};
+			if (blockSize[0] <= 0 || blockSize[1] <= 0)
+				throw new IllegalArgumentException("Block size '" + chunking + "' must be positive.");
+			return blockSize;
+		}
+	}
+
+	/**
+	 * Set the block size of the expression matrix for writing, see {@link MatrixChunking} for presets.
+	 *
+	 * @param blockSize block size [genes, locations]
+	 */
+	public void setMatrixBlockSize(int[] blockSize) {
+		if (blockSize.length != 2)
+			throw new IllegalArgumentException("Block size of the expression matrix must be two-dimensional.");
+		this.options.blockSize = blockSize;
+	}
+
+	/**
+	 * Set the compression for writing all datasets (expression values, locations, annotations), see
+	 * {@link #createCompression(String)}.
+	 *
+	 * @param compression the compression
+	 * @throws IllegalArgumentException if the backend cannot write the compression
+	 */
+	public void setCompression(Compression compression) {
+		checkCompression(ioSupplier.get(), compression);
+		this.options.compression = compression;
+		this.options1d.compression = compression;
+	}
+
+	/**
+	 * Create a compression by name, optionally followed by a level, e.g. 'gzip:6'. Supported are raw, gzip[:level]
+	 * (0-9), bzip2[:level] (1-9), lz4, xz[:level] (0-9) and blosc (requires the native blosc library) with an
+	 * optional codec and level (0-9), e.g. 'blosc:zstd:5', 'blosc:lz4' or 'blosc:5'. N5 supports all of them, Zarr
+	 * raw, gzip and blosc, HDF5 raw and gzip, see {@link #checkCompression(N5Reader, Compression)}.
+	 *
+	 * @param compression the name and optional parameters
+	 * @return the compression
+	 * @throws IllegalArgumentException if the name, codec or level is not valid
+	 */
+	public static Compression createCompression(String compression) {
+		final String[] parts = compression.trim().toLowerCase().split(":", -1);
+		final String name = parts[0];
+
+		switch (name) {
+			case "raw":
+				checkNumParts(compression, parts, 1);
+				return new RawCompression();
+			case "gzip":
+				checkNumParts(compression, parts, 2);
+				return new GzipCompression(parts.length > 1 ? parseLevel(compression, parts[1], 0, 9) : 3);
+			case "bzip2":
+				checkNumParts(compression, parts, 2);
+				return parts.length > 1 ? new Bzip2Compression(parseLevel(compression, parts[1], 1, 9)) : new Bzip2Compression();
+			case "lz4":
+				checkNumParts(compression, parts, 1);
+				return new Lz4Compression();
+			case "xz":
+				checkNumParts(compression, parts, 2);
+				return new XzCompression(parts.length > 1 ? parseLevel(compression, parts[1], 0, 9) : 6);
+			case "blosc":
+				checkNumParts(compression, parts, 3);
+				// blosc:level, blosc:codec or blosc:codec:level
+				if (parts.length == 2 && parts[1].matches("\\d+"))
+					return createBloscCompression("lz4", parseLevel(compression, parts[1], 0, 9));
+				return createBloscCompression(parts.length > 1 ? parts[1] : "lz4", parts.length > 2 ? parseLevel(compression, parts[2], 0, 9) : 5);
+			default:
+				throw new IllegalArgumentException("Unknown compression '" + compression + "', use raw, gzip, bzip2, lz4, xz or blosc.");
+		}
+	}
+
+	protected static void checkNumParts(String compression, String[] parts, int maxParts) {
+		if (parts.length > maxParts)
+			throw new IllegalArgumentException("Compression '" + compression + "' has too many parameters, "
+					+ (maxParts == 1 ? "'" + parts[0] + "' has no level." : "'" + parts[0] + "' has at most " + (maxParts - 1) + "."));
+	}
+
+	protected static int parseLevel(String compression, String level, int min, int max) {
+		final int value;
+		try {
+			value = Integer.parseInt(level);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Level '" + level + "' of compression '" + compression + "' is not a number.", e);
+		}
+		if (value < min || value > max)
+			throw new IllegalArgumentException("Level of compression '" + compression + "' must be between " + min + " and " + max + ", but is " + value + ".");
+		return value;
+	}
+
+	/**
+	 * Check that a compression can be written by the backend: HDF5 supports raw and gzip, Zarr raw, gzip and blosc,
+	 * N5 all compressions.
+	 *
+	 * @param backend the N5 reader or writer
+	 * @param compression the compression
+	 * @return the compression
+	 * @throws IllegalArgumentException if the backend cannot write the compression
+	 */
+	public static Compression checkCompression(N5Reader backend, Compression compression) {
+		final List<Class<? extends Compression>> supported;
+		if (backend instanceof N5HDF5Reader)
+			supported = Arrays.asList(RawCompression.class, GzipCompression.class);
+		else if (backend instanceof N5ZarrReader)
+			supported = Arrays.asList(RawCompression.class, GzipCompression.class, BloscCompression.class);
+		else
+			return compression;
+
+		if (!supported.contains(compression.getClass()))
+			throw new IllegalArgumentException("Compression '" + compression.getType() + "' is not supported by "
+					+ backend.getClass().getSimpleName() + ", use " + (backend instanceof N5HDF5Reader ? "raw or gzip." : "raw, gzip or blosc."));
+		return compression;
+	}
+
+	// Blosc comes with n5-zarr, the native library is only needed (and errors only surface) when data is written or read
+	protected static Compression createBloscCompression(String codec, int level) {
+		if (!Arrays.asList("blosclz", "lz4", "lz4hc", "snappy", "zlib", "zstd").contains(codec))
+			throw new IllegalArgumentException("Unknown blosc codec '" + codec + "', use blosclz, lz4, lz4hc, snappy, zlib or zstd.");
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("Blosc level must be between 0 and 9, but is " + level + ".");
+
+		// codec, level, shuffle (1 = byte shuffle), block size (0 = automatic), number of threads
+		return new BloscCompression(codec, level, 1, 0, 1);
+	}
+
+	/**
+	 * Set the data types used for storing expression values and locations, e.g. FLOAT32 or an integer type for raw
+	 * counts, which halves the size on disk and of the cached blocks. Values are converted lazily when written and
+	 * read, the type stored in a file is detected when reading.
+	 *
+	 * @param exprValueStorageType data type of the expression values (default: FLOAT64)
+	 * @param locationStorageType data type of the locations (default: FLOAT64)
+	 * @throws IllegalArgumentException if a type is not numeric
+	 */
+	public void setStorageTypes(DataType exprValueStorageType, DataType locationStorageType) {
+		this.exprValueStorageType = checkStorageType(exprValueStorageType);
+		this.locationStorageType = checkStorageType(locationStorageType);
+	}
+
+	protected static DataType checkStorageType(DataType storageType) {
+		if (storageType == null)
+			return DataType.FLOAT64;
+
+		switch (storageType) {
+			case INT8: case INT16: case INT32: case INT64:
+			case UINT8: case UINT16: case UINT32: case UINT64:
+			case FLOAT32: case FLOAT64:
+				return storageType;
+			default:
+				throw new IllegalArgumentException("Storage type " + storageType + " is not numeric, use an integer type, FLOAT32 or FLOAT64.");
+		}
+	}
+
+	/**
+	 * @param data the data as read from disk
+	 * @return the data itself if it is stored as DoubleType, otherwise a lazily converted view
+	 */
+	@SuppressWarnings("unchecked")
+	protected static RandomAccessibleInterval<DoubleType> asDoubleType(RandomAccessibleInterval<? extends RealType<?>> data) {
+		if (Util.getTypeFromInterval(data) instanceof DoubleType)
+			return (RandomAccessibleInterval<DoubleType>) data;
+		return Converters.convert(data, (i, o) -> o.set(i.getRealDouble()), new DoubleType());
+	}
+
+	/**
+	 * @param data the data in memory
+	 * @param storageType the data type on disk
+	 * @return the data itself for FLOAT64, otherwise a lazily converted view (integer types are rounded)
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<T> convertForStorage(RandomAccessibleInterval<DoubleType> data, DataType storageType) {
+		if (storageType == DataType.FLOAT64)
+			return (RandomAccessibleInterval<T>) (RandomAccessibleInterval<?>) data;
+		final T type = N5Utils.type(storageType);
+		return Converters.convert(data, (i, o) -> o.setReal(i.get()), type);
+	}
+
 	/**
 	 * Read data (locations, expression values, barcodes, gene names, and transformations) from the given instance.
 	 *
@@ -407,7 +630,7 @@ public abstract class SpatialDataIO {
 			throw new UnsupportedOperationException("Cannot find N5 backend for extension'" + extension + "'.");
 		}
 
-		if (extension.endsWith("ad"))
+		if (extension.endsWith("ad") || (extension.startsWith("zarr") && isAnnData(writerSupplier)))
 			return new AnnDataIO(writerSupplier, path, false, service);
 		else
 			return new N5IO(writerSupplier, path, false, service);
@@ -446,12 +669,22 @@ public abstract class SpatialDataIO {
 			throw new UnsupportedOperationException("Cannot find N5 backend for extension'" + extension + "'.");
 		}
 
-		if (extension.endsWith("ad"))
+		if (extension.endsWith("ad") || (extension.startsWith("zarr") && isAnnData(readerSupplier)))
 			return new AnnDataIO(readerSupplier, path, true, service);
 		else
 			return new N5IO(readerSupplier, path, true, service);
 	}
 
+	// AnnData stores written by other tools (e.g. anndata.write_zarr) are usually just called '*.zarr'
+	protected static boolean isAnnData(final Supplier<? extends N5Reader> ioSupplier) {
+		try {
+			return AnnDataDetails.isValidAnnData(ioSupplier.get());
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
 	// TODO: refactor when pulling out AnnData stuff
 	static class N5Options {
 
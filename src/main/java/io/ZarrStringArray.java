@@ -0,0 +1,170 @@
+package io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes one-dimensional zarr arrays of strings with the 'vlen-utf8' filter, which AnnData uses for
+ * string arrays (e.g. /obs/_index) and N5-Zarr does not support. Chunks can be uncompressed or compressed with
+ * zlib, gzip or blosc.
+ */
+class ZarrStringArray {
+
+    public static boolean isStringArray(N5ZarrReader reader, String path) throws IOException {
+        final Path zarrayPath = Paths.get(reader.getBasePath(), path, ".zarray");
+        return Files.exists(zarrayPath) && isStringArray(readZarray(zarrayPath));
+    }
+
+    public static String[] read(N5ZarrReader reader, String path) throws IOException {
+        final Path arrayPath = Paths.get(reader.getBasePath(), path);
+        final JsonObject zarray = readZarray(arrayPath.resolve(".zarray"));
+
+        if (!isStringArray(zarray))
+            throw new UnsupportedOperationException("Zarr array '" + path + "' is not a 'vlen-utf8' string array.");
+
+        final int length = zarray.getAsJsonArray("shape").get(0).getAsInt();
+        final int chunkSize = zarray.getAsJsonArray("chunks").get(0).getAsInt();
+        final JsonElement compressor = zarray.get("compressor");
+        final String compressorId = (compressor == null || compressor.isJsonNull()) ? null : compressor.getAsJsonObject().get("id").getAsString();
+
+        final String[] strings = new String[length];
+        for (int chunk = 0; (long) chunk * chunkSize < length; ++chunk) {
+            final int offset = chunk * chunkSize;
+            final Path chunkPath = arrayPath.resolve(Integer.toString(chunk));
+
+            // missing chunks are filled with empty strings
+            if (!Files.exists(chunkPath)) {
+                for (int i = offset; i < Math.min(length, offset + chunkSize); ++i)
+                    strings[i] = "";
+                continue;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(decompress(Files.readAllBytes(chunkPath), compressorId)).order(ByteOrder.LITTLE_ENDIAN);
+            final int numItems = buffer.getInt();
+            for (int i = 0; i < numItems && offset + i < length; ++i) {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[offset + i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        return strings;
+    }
+
+    public static void write(N5ZarrWriter writer, String path, String[] strings) throws IOException {
+        final Path arrayPath = Paths.get(writer.getBasePath(), path);
+        Files.createDirectories(arrayPath);
+
+        final JsonObject compressor = new JsonObject();
+        compressor.addProperty("id", "zlib");
+        compressor.addProperty("level", 5);
+        final JsonObject filter = new JsonObject();
+        filter.addProperty("id", "vlen-utf8");
+        final JsonArray filters = new JsonArray();
+        filters.add(filter);
+        final JsonArray shape = new JsonArray();
+        shape.add(strings.length);
+        final JsonArray chunks = new JsonArray();
+        chunks.add(Math.max(1, strings.length));
+
+        final JsonObject zarray = new JsonObject();
+        zarray.add("chunks", chunks);
+        zarray.add("compressor", compressor);
+        zarray.addProperty("dtype", "|O");
+        zarray.add("fill_value", JsonNull.INSTANCE);
+        zarray.add("filters", filters);
+        zarray.addProperty("order", "C");
+        zarray.add("shape", shape);
+        zarray.addProperty("zarr_format", 2);
+        Files.write(arrayPath.resolve(".zarray"), zarray.toString().getBytes(StandardCharsets.UTF_8));
+
+        if (strings.length == 0)
+            return;
+
+        // all strings go into a single chunk: item count, then length and bytes of every item (little endian)
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (final DeflaterOutputStream out = new DeflaterOutputStream(encoded)) {
+            out.write(littleEndian(strings.length));
+            for (final String string : strings) {
+                final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.write(littleEndian(bytes.length));
+                out.write(bytes);
+            }
+        }
+        Files.write(arrayPath.resolve("0"), encoded.toByteArray());
+    }
+
+    protected static JsonObject readZarray(Path zarrayPath) throws IOException {
+        return new Gson().fromJson(new String(Files.readAllBytes(zarrayPath), StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    protected static boolean isStringArray(JsonObject zarray) {
+        final JsonArray filters = zarray.has("filters") && zarray.get("filters").isJsonArray() ? zarray.getAsJsonArray("filters") : new JsonArray();
+        return filters.size() == 1 && "vlen-utf8".equals(filters.get(0).getAsJsonObject().get("id").getAsString());
+    }
+
+    protected static byte[] decompress(byte[] bytes, String compressorId) throws IOException {
+        if (compressorId == null)
+            return bytes;
+
+        // the default compressor of zarr (and therefore anndata), needs the native blosc library
+        if ("blosc".equals(compressorId))
+            return decompressBlosc(bytes);
+
+        final InputStream in;
+        switch (compressorId) {
+            case "zlib":
+                in = new InflaterInputStream(new ByteArrayInputStream(bytes));
+                break;
+            case "gzip":
+                in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+                break;
+            default:
+                throw new UnsupportedOperationException("Compressor '" + compressorId + "' not supported for zarr string arrays.");
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[65536];
+        try (final InputStream input = in) {
+            for (int n = input.read(buffer); n != -1; n = input.read(buffer))
+                out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    protected static byte[] decompressBlosc(byte[] bytes) throws IOException {
+        if (bytes.length < 16)
+            throw new IOException("Blosc chunk is too short: " + bytes.length + " bytes.");
+
+        // the uncompressed size is stored in the blosc header (bytes 4-7), the codec parameters are only used for writing
+        final int size = ByteBuffer.wrap(bytes, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        final ByteArrayDataBlock block = new ByteArrayDataBlock(new int[]{size}, new long[]{0}, new byte[size]);
+        new BloscCompression("lz4", 5, 1, 0, 1).read(block, new ByteArrayInputStream(bytes));
+        return block.getData();
+    }
+
+    protected static byte[] littleEndian(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
@@ -0,0 +1,364 @@
+package render;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import filter.FilterPipeline;
+import gui.bdv.AddedGene.Rendering;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.KDTree;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import util.Grid;
+import util.Threads;
+
+/**
+ * Renders a gene block by block straight into a chunked N5/Zarr dataset, so the full image never has to fit into
+ * memory: only the blocks that are currently rendered (one per thread) are held. Gauss blocks are splatted from the
+ * spots that can influence them (see {@link TiledRasterizer#candidates(LocationIndex, double[], AffineGet, Interval, double)}),
+ * all other renderings search the {@link LocationIndex} of the dataset directly. Empty blocks are not written (they read as 0).
+ *
+ * Optionally writes a multi-resolution pyramid (s0, s1, ...), every level is rendered from the spots at its own
+ * resolution instead of downsampling the level above.
+ *
+ * @author spreibi
+ */
+public class BlockwiseRenderer
+{
+	public static int defaultBlockSize = 512;
+
+	/**
+	 * Creates the dataset(s) for a (multi-resolution) blockwise rendering. The first two dimensions are the image,
+	 * further dimensions (e.g. dataset, gene) have a block size of 1 so every block holds one image tile.
+	 *
+	 * @param n5 - the N5/Zarr writer
+	 * @param dataset - the dataset (numLevels == 1) or group of the datasets s0, s1, ... (numLevels &gt; 1)
+	 * @param interval - the pixel interval of the full resolution
+	 * @param extraDimensions - size of the additional dimensions (can be empty)
+	 * @param numLevels - the number of resolution levels, each downsampled by 2
+	 * @param blockSize - block size of the image dimensions
+	 * @return the dataset of each level
+	 * @throws IOException
+	 */
+	public static List< String > createDatasets(
+			final N5Writer n5,
+			final String dataset,
+			final Interval interval,
+			final long[] extraDimensions,
+			final int numLevels,
+			final int blockSize ) throws IOException
+	{
+		return createDatasets( n5, dataset, interval, extraDimensions, numLevels, blockSize, new GzipCompression() );
+	}
+
+	/**
+	 * Same as {@link #createDatasets(N5Writer, String, Interval, long[], int, int)} with a given compression of all levels.
+	 *
+	 * @param compression - the compression, e.g. from {@link io.SpatialDataIO#createCompression(String)}
+	 */
+	public static List< String > createDatasets(
+			final N5Writer n5,
+			final String dataset,
+			final Interval interval,
+			final long[] extraDimensions,
+			final int numLevels,
+			final int blockSize,
+			final Compression compression ) throws IOException
+	{
+		final List< String > datasets = new ArrayList<>();
+
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			final String levelDataset = ( numLevels == 1 ) ? dataset : dataset + "/s" + level;
+			final Interval levelInterval = levelInterval( interval, level );
+
+			final long[] dimensions = new long[ 2 + extraDimensions.length ];
+			final int[] blockSizes = new int[ 2 + extraDimensions.length ];
+
+			for ( int d = 0; d < 2; ++d )
+			{
+				dimensions[ d ] = levelInterval.dimension( d );
+				blockSizes[ d ] = (int)Math.min( blockSize, dimensions[ d ] );
+			}
+
+			for ( int d = 0; d < extraDimensions.length; ++d )
+			{
+				dimensions[ d + 2 ] = extraDimensions[ d ];
+				blockSizes[ d + 2 ] = 1;
+			}
+
+			n5.createDataset( levelDataset, dimensions, blockSizes, DataType.FLOAT32, compression );
+
+			if ( numLevels > 1 )
+				n5.setAttribute( levelDataset, "downsamplingFactors", new long[] { 1L << level, 1L << level } );
+
+			datasets.add( levelDataset );
+		}
+
+		return datasets;
+	}
+
+	/**
+	 * Renders all levels of a pyramid created with {@link #createDatasets(N5Writer, String, Interval, long[], int, int)}.
+	 *
+	 * @param data - the (filtered) values of the gene (2d), must iterate the locations of the index in the same order
+	 * @param index - index of the locations of data
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param transform - maps data coordinates to pixel coordinates of the full resolution
+	 * @param interval - the pixel interval of the full resolution
+	 * @param n5 - the N5/Zarr writer
+	 * @param datasets - the dataset of each level
+	 * @param extraGridPosition - position of the blocks in the additional dimensions (can be empty)
+	 * @param service - for rendering blocks in parallel
+	 */
+	public static void render(
+			final IterableRealInterval< DoubleType > data,
+			final LocationIndex index,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final N5Writer n5,
+			final List< String > datasets,
+			final long[] extraGridPosition,
+			final ExecutorService service )
+	{
+		final double[] values = FilterPipeline.values( data );
+
+		for ( int level = 0; level < datasets.size(); ++level )
+			render( index, values, medianDistance, renderType, renderingFactor, levelTransform( transform, level ), levelInterval( interval, level ), n5, datasets.get( level ), extraGridPosition, service );
+	}
+
+	/**
+	 * @param index - index of the locations
+	 * @param values - the (filtered) values of the gene in the iteration order of the locations of the index
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval, the first two dimensions of the dataset
+	 * @param n5 - the N5/Zarr writer
+	 * @param dataset - an existing dataset
+	 * @param extraGridPosition - position of the blocks in the additional dimensions (can be empty)
+	 * @param service - for rendering blocks in parallel
+	 */
+	public static void render(
+			final LocationIndex index,
+			final double[] values,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final N5Writer n5,
+			final String dataset,
+			final long[] extraGridPosition,
+			final ExecutorService service )
+	{
+		final DatasetAttributes attributes;
+
+		try
+		{
+			attributes = n5.getDatasetAttributes( dataset );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( "Cannot read attributes of dataset '" + dataset + "': " + e );
+		}
+
+		final double radius = Render.influenceRadius( medianDistance, renderType, renderingFactor );
+
+		final List< long[][] > blocks = Grid.create(
+				new long[] { interval.dimension( 0 ), interval.dimension( 1 ) },
+				new int[] { attributes.getBlockSize()[ 0 ], attributes.getBlockSize()[ 1 ] } );
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final long[][] block : blocks )
+		{
+			tasks.add( () ->
+			{
+				final long[] min = new long[ 2 ];
+				final long[] max = new long[ 2 ];
+
+				for ( int d = 0; d < 2; ++d )
+				{
+					min[ d ] = interval.min( d ) + block[ 0 ][ d ];
+					max[ d ] = min[ d ] + block[ 1 ][ d ] - 1;
+				}
+
+				final Interval blockInterval = new FinalInterval( min, max );
+
+				final RandomAccessibleInterval< DoubleType > rendered;
+
+				if ( renderType == Rendering.Gauss )
+				{
+					// splatting only needs the spots that can influence this block
+					final KDTree< DoubleType > local = TiledRasterizer.candidates( index, values, transform, blockInterval, radius );
+
+					if ( local == null )
+						return null;
+
+					rendered = Render.rasterize( local, medianDistance, renderType, renderingFactor, transform, blockInterval );
+				}
+				else
+				{
+					// the shared index (grid or tree) is searched directly, no per-block tree or grid is built
+					rendered = Render.rasterize( index, values, medianDistance, renderType, renderingFactor, transform, blockInterval, Threads.createSameThreadExecutorService() );
+
+					if ( isEmpty( rendered ) )
+						return null;
+				}
+
+				RandomAccessibleInterval< FloatType > source =
+						Converters.convert( Views.zeroMin( rendered ), new RealFloatConverter< DoubleType >(), new FloatType() );
+
+				final long[] gridPosition = new long[ 2 + extraGridPosition.length ];
+				gridPosition[ 0 ] = block[ 2 ][ 0 ];
+				gridPosition[ 1 ] = block[ 2 ][ 1 ];
+
+				for ( int d = 0; d < extraGridPosition.length; ++d )
+				{
+					source = Views.addDimension( source, 0, 0 );
+					gridPosition[ d + 2 ] = extraGridPosition[ d ];
+				}
+
+				N5Utils.saveBlock( source, n5, dataset, attributes, gridPosition );
+
+				return null;
+			});
+		}
+
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @return true if all pixels are 0, such blocks are not written since missing blocks read as 0
+	 */
+	protected static boolean isEmpty( final RandomAccessibleInterval< DoubleType > rendered )
+	{
+		for ( final DoubleType t : Views.iterable( rendered ) )
+			if ( t.get() != 0 )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param interval - the pixel interval of the full resolution
+	 * @param level - the resolution level (downsampled by 2^level)
+	 * @return the pixel interval at this level
+	 */
+	public static Interval levelInterval( final Interval interval, final int level )
+	{
+		final long[] min = new long[ interval.numDimensions() ];
+		final long[] max = new long[ interval.numDimensions() ];
+
+		for ( int d = 0; d < min.length; ++d )
+		{
+			min[ d ] = Math.floorDiv( interval.min( d ), 1L << level );
+			max[ d ] = Math.floorDiv( interval.max( d ), 1L << level );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @param transform - maps data coordinates to pixel coordinates of the full resolution
+	 * @param level - the resolution level (downsampled by 2^level)
+	 * @return maps data coordinates to pixel coordinates at this level (pixel centers are the centers of the 2^level full resolution pixels)
+	 */
+	public static AffineTransform2D levelTransform( final AffineGet transform, final int level )
+	{
+		final double f = 1L << level;
+
+		final AffineTransform2D levelTransform = new AffineTransform2D();
+		levelTransform.set( transform.getRowPackedCopy() );
+
+		final AffineTransform2D downsampling = new AffineTransform2D();
+		downsampling.set(
+				1.0 / f, 0, -( f - 1 ) / ( 2 * f ),
+				0, 1.0 / f, -( f - 1 ) / ( 2 * f ) );
+
+		return levelTransform.preConcatenate( downsampling );
+	}
+
+	/**
+	 * Renders a single gene of a single dataset, using all cores.
+	 *
+	 * @return the datasets of all levels
+	 */
+	public static List< String > render(
+			final IterableRealInterval< DoubleType > data,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final N5Writer n5,
+			final String dataset,
+			final int numLevels ) throws IOException
+	{
+		return render( data, medianDistance, renderType, renderingFactor, transform, interval, n5, dataset, numLevels, new GzipCompression() );
+	}
+
+	/**
+	 * Renders a single gene of a single dataset with a given compression, using all cores.
+	 *
+	 * @return the datasets of all levels
+	 */
+	public static List< String > render(
+			final IterableRealInterval< DoubleType > data,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final N5Writer n5,
+			final String dataset,
+			final int numLevels,
+			final Compression compression ) throws IOException
+	{
+		final List< String > datasets = createDatasets( n5, dataset, interval, new long[ 0 ], numLevels, defaultBlockSize, compression );
+
+		final ExecutorService service = Threads.createFixedExecutorService();
+		render( data, new LocationIndex( data, medianDistance ), medianDistance, renderType, renderingFactor, transform, interval, n5, datasets, new long[ 0 ], service );
+		service.shutdown();
+
+		return datasets;
+	}
+}
@@ -0,0 +1,54 @@
+package render;
+
+import filter.Filter;
+import filter.RadiusSearchFilterFactory;
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+import util.SimpleSampler;
+
+/**
+ * Same as {@link FilteringRadiusSearchOnKDTree}, but searching on a {@link GridIndex}.
+ */
+public class FilteringRadiusSearchOnGrid< S, T > implements IntegratingNeighborSearch< T >
+{
+	protected final int n;
+	final GridIndex< S > grid;
+	final SimpleSampler< T > value;
+	final RadiusSearchFilterFactory< S, T > filterFactory;
+	final Filter< T > filter;
+
+	public FilteringRadiusSearchOnGrid(
+			final GridIndex< S > grid,
+			final RadiusSearchFilterFactory< S, T > filterFactory )
+	{
+		this.n = grid.numDimensions();
+		this.grid = grid;
+		this.value = new SimpleSampler<>( () -> filterFactory.create() );
+		this.filterFactory = filterFactory;
+		this.filter = filterFactory.createFilter( grid );
+	}
+
+	@Override
+	public void search( final RealLocalizable p )
+	{
+		filter.filter( p, value.get() );
+	}
+
+	@Override
+	public Sampler< T > getSampler()
+	{
+		return value;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return n;
+	}
+
+	@Override
+	public FilteringRadiusSearchOnGrid< S, T > copy()
+	{
+		return new FilteringRadiusSearchOnGrid< S, T >( grid, filterFactory );
+	}
+}
@@ -0,0 +1,304 @@
+package render;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import imglib2.ArrayValueRealIterable;
+import imglib2.ExpValueRealIterable;
+import imglib2.TransformedIterableRealInterval;
+import net.imglib2.EuclideanSpace;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.RealCursor;
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+import net.imglib2.type.Type;
+
+/**
+ * A uniform grid (bucket) spatial index for 2d point clouds. The points are sorted by cell and their coordinates
+ * are stored in primitive arrays, so radius and nearest neighbor queries are a few linear scans over neighboring
+ * cells. For (close to) uniformly distributed spots (Slide-seq, Visium, Stereo-seq) with a cell size in the order
+ * of the median distance between spots, this is faster than a KDTree. For clustered data a KDTree is the better
+ * choice, see {@link #isNearUniform(IterableRealInterval)}.
+ *
+ * The index is immutable after construction (values of a {@link Type} are copied like in {@link util.KDTreeUtil}), all searches
+ * (see {@link RadiusCountSearchOnGrid}, {@link NearestNeighborSearchOnGrid}) keep their own state and can be
+ * created for each thread.
+ *
+ * @author spreibi
+ *
+ * @param <T> - the type of the values
+ */
+public class GridIndex< T > implements EuclideanSpace
+{
+	// heuristic for the automatic selection of the grid
+	public static double maxCoefficientOfVariation = 1.0;
+	public static double maxOccupancyFactor = 32;
+
+	// the decision of isNearUniform() per set of locations, all genes of a dataset share the same locations
+	private static final Map< Object, Boolean > nearUniform = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	final int numPoints;
+	final double cellSize, invCellSize;
+	final double minX, minY;
+	final int cellsX, cellsY;
+
+	// points of cell c: cellStart[ c ] ... cellStart[ c + 1 ] - 1
+	final int[] cellStart;
+	final double[] xs, ys;
+	final List< GridPoint > points;
+
+	/**
+	 * @param data - the 2d point cloud
+	 * @param cellSize - the size of a grid cell (e.g. the median distance between spots)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public GridIndex( final IterableRealInterval< T > data, final double cellSize )
+	{
+		if ( data.numDimensions() != 2 )
+			throw new RuntimeException( "GridIndex only supports 2d data." );
+
+		if ( data.size() > Integer.MAX_VALUE )
+			throw new RuntimeException( "Too many points for a GridIndex: " + data.size() );
+
+		this.numPoints = (int)data.size();
+		this.minX = data.realMin( 0 );
+		this.minY = data.realMin( 1 );
+
+		// do not create more cells than required (at most ~4 per point)
+		final double w = data.realMax( 0 ) - minX;
+		final double h = data.realMax( 1 ) - minY;
+		final double minCellSize = Math.sqrt( ( w * h ) / ( 4.0 * Math.max( 1, numPoints ) ) );
+
+		this.cellSize = Math.max( cellSize, Math.max( minCellSize, 1e-12 ) );
+		this.invCellSize = 1.0 / this.cellSize;
+		this.cellsX = (int)Math.floor( w * invCellSize ) + 1;
+		this.cellsY = (int)Math.floor( h * invCellSize ) + 1;
+
+		final double[] x = new double[ numPoints ];
+		final double[] y = new double[ numPoints ];
+		final List< T > values = new ArrayList<>( numPoints );
+		final int[] cell = new int[ numPoints ];
+
+		this.cellStart = new int[ cellsX * cellsY + 1 ];
+
+		final RealCursor< T > cursor = data.localizingCursor();
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final T value = cursor.next();
+			values.add( Type.class.isInstance( value ) ? (T)((Type)value).copy() : value );
+			x[ i ] = cursor.getDoublePosition( 0 );
+			y[ i ] = cursor.getDoublePosition( 1 );
+			cell[ i ] = cellY( y[ i ] ) * cellsX + cellX( x[ i ] );
+			++cellStart[ cell[ i ] + 1 ];
+		}
+
+		for ( int c = 0; c < cellsX * cellsY; ++c )
+			cellStart[ c + 1 ] += cellStart[ c ];
+
+		// counting sort by cell
+		final int[] next = cellStart.clone();
+		final int[] order = new int[ numPoints ];
+
+		for ( int i = 0; i < numPoints; ++i )
+			order[ next[ cell[ i ] ]++ ] = i;
+
+		this.xs = new double[ numPoints ];
+		this.ys = new double[ numPoints ];
+		this.points = new ArrayList<>( numPoints );
+
+		for ( int j = 0; j < numPoints; ++j )
+		{
+			final int i = order[ j ];
+			xs[ j ] = x[ i ];
+			ys[ j ] = y[ i ];
+			points.add( new GridPoint( j, values.get( i ) ) );
+		}
+	}
+
+	protected int cellX( final double x )
+	{
+		return Math.max( 0, Math.min( cellsX - 1, (int)Math.floor( ( x - minX ) * invCellSize ) ) );
+	}
+
+	protected int cellY( final double y )
+	{
+		return Math.max( 0, Math.min( cellsY - 1, (int)Math.floor( ( y - minY ) * invCellSize ) ) );
+	}
+
+	public int size() { return numPoints; }
+	public double cellSize() { return cellSize; }
+
+	@Override
+	public int numDimensions() { return 2; }
+
+	/**
+	 * Estimates the cell size from the density of the data (the expected spacing of uniformly distributed points).
+	 *
+	 * @param data - the point cloud
+	 * @return the estimated cell size
+	 */
+	public static double estimateCellSize( final IterableRealInterval< ? > data )
+	{
+		final double area = ( data.realMax( 0 ) - data.realMin( 0 ) ) * ( data.realMax( 1 ) - data.realMin( 1 ) );
+
+		return Math.sqrt( area / Math.max( 1, data.size() ) );
+	}
+
+	/**
+	 * Tests whether the points are close to uniformly distributed: the points are counted in a grid of
+	 * {@link #estimateCellSize(IterableRealInterval)}, the occupancy of the non-empty cells must have a coefficient
+	 * of variation &lt;= {@link #maxCoefficientOfVariation} and no cell may contain more than {@link #maxOccupancyFactor}
+	 * times the average number of points (empty regions, e.g. outside the tissue, are fine).
+	 *
+	 * @param data - the point cloud
+	 * @return true if a GridIndex should be used
+	 */
+	public static boolean isNearUniform( final IterableRealInterval< ? > data )
+	{
+		if ( data.numDimensions() != 2 || data.size() < 16 || data.size() > Integer.MAX_VALUE )
+			return false;
+
+		final double cellSize = estimateCellSize( data );
+
+		if ( !( cellSize > 0 ) )
+			return false;
+
+		final double minX = data.realMin( 0 );
+		final double minY = data.realMin( 1 );
+		final int cellsX = (int)Math.floor( ( data.realMax( 0 ) - minX ) / cellSize ) + 1;
+		final int cellsY = (int)Math.floor( ( data.realMax( 1 ) - minY ) / cellSize ) + 1;
+
+		if ( (long)cellsX * (long)cellsY > 4 * data.size() )
+			return false;
+
+		final int[] counts = new int[ cellsX * cellsY ];
+		final RealCursor< ? > cursor = data.localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final int cx = Math.min( cellsX - 1, (int)Math.floor( ( cursor.getDoublePosition( 0 ) - minX ) / cellSize ) );
+			final int cy = Math.min( cellsY - 1, (int)Math.floor( ( cursor.getDoublePosition( 1 ) - minY ) / cellSize ) );
+			++counts[ cy * cellsX + cx ];
+		}
+
+		long nonEmpty = 0, max = 0;
+		double sum = 0, sumSq = 0;
+
+		for ( final int c : counts )
+		{
+			if ( c > 0 )
+			{
+				++nonEmpty;
+				sum += c;
+				sumSq += (double)c * c;
+				max = Math.max( max, c );
+			}
+		}
+
+		final double mean = sum / nonEmpty;
+		final double cv = Math.sqrt( Math.max( 0, sumSq / nonEmpty - mean * mean ) ) / mean;
+
+		return cv <= maxCoefficientOfVariation && max <= maxOccupancyFactor * mean;
+	}
+
+	/**
+	 * Same as {@link #isNearUniform(IterableRealInterval)}, but the test is only performed once for all
+	 * IterableRealIntervals that share the same locations (e.g. all genes of a dataset, also if they are
+	 * transformed or filtered into an {@link ArrayValueRealIterable}).
+	 *
+	 * @param data - the point cloud
+	 * @return true if a GridIndex should be used
+	 */
+	public static boolean isNearUniformCached( final IterableRealInterval< ? > data )
+	{
+		return nearUniform.computeIfAbsent( locationsOf( data ), key -> isNearUniform( data ) );
+	}
+
+	/**
+	 * @param data - the point cloud
+	 * @return the object that defines the locations of the data, identical for all genes of a dataset
+	 */
+	protected static Object locationsOf( final IterableRealInterval< ? > data )
+	{
+		// the transforms that align sections do not change whether spots are uniformly distributed
+		if ( data instanceof TransformedIterableRealInterval )
+			return locationsOf( ((TransformedIterableRealInterval< ? >)data).getSource() );
+		else if ( data instanceof ArrayValueRealIterable )
+			return locationsOf( ((ArrayValueRealIterable)data).locations() );
+		else if ( data instanceof ExpValueRealIterable )
+			return ((ExpValueRealIterable< ? >)data).getLocations();
+		else
+			return data;
+	}
+
+	/**
+	 * @param data - the point cloud
+	 * @return a GridIndex if the data is near-uniform (see {@link #isNearUniform(IterableRealInterval)}), otherwise null
+	 */
+	public static < T > GridIndex< T > createIfNearUniform( final IterableRealInterval< T > data )
+	{
+		return createIfNearUniform( data, estimateCellSize( data ) );
+	}
+
+	/**
+	 * @param data - the point cloud
+	 * @param medianDistance - the median distance between spots of the dataset (see {@link data.STDataStatistics#getMedianDistance()}), used as cell size
+	 * @return a GridIndex if the data is near-uniform (see {@link #isNearUniform(IterableRealInterval)}), otherwise null
+	 */
+	public static < T > GridIndex< T > createIfNearUniform( final IterableRealInterval< T > data, final double medianDistance )
+	{
+		if ( isNearUniformCached( data ) )
+			return new GridIndex<>( data, medianDistance );
+		else
+			return null;
+	}
+
+	/**
+	 * A point of the grid, it is both the sampler and the position returned by the searches.
+	 */
+	public class GridPoint implements Sampler< T >, RealLocalizable
+	{
+		final int index;
+		final T value;
+
+		GridPoint( final int index, final T value )
+		{
+			this.index = index;
+			this.value = value;
+		}
+
+		@Override
+		public T get() { return value; }
+
+		@Override
+		public Sampler< T > copy() { return this; }
+
+		@Override
+		public int numDimensions() { return 2; }
+
+		@Override
+		public void localize( final float[] position )
+		{
+			position[ 0 ] = (float)xs[ index ];
+			position[ 1 ] = (float)ys[ index ];
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			position[ 0 ] = xs[ index ];
+			position[ 1 ] = ys[ index ];
+		}
+
+		@Override
+		public float getFloatPosition( final int d ) { return (float)getDoublePosition( d ); }
+
+		@Override
+		public double getDoublePosition( final int d ) { return d == 0 ? xs[ index ] : ys[ index ]; }
+	}
+}
@@ -0,0 +1,76 @@
+package render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.IterableRealInterval;
+import net.imglib2.KDTree;
+import net.imglib2.RealCursor;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.RadiusNeighborSearch;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.integer.IntType;
+
+/**
+ * A spatial index over locations only, the value of every point is its index in the iteration order of the
+ * locations. All genes of a dataset share the same locations, so one index can be used to render all of them
+ * (see {@link TiledRasterizer#rasterize(LocationIndex, double[], double, java.util.function.Function, double, net.imglib2.realtransform.AffineGet, net.imglib2.Interval, int, java.util.concurrent.ExecutorService)}).
+ *
+ * Uses a {@link GridIndex} for near-uniformly distributed locations, a {@link KDTree} otherwise.
+ *
+ * @author spreibi
+ */
+public class LocationIndex
+{
+	final int numLocations;
+	final GridIndex< IntType > grid;
+	final KDTree< IntType > tree;
+
+	/**
+	 * @param locations - the locations, the order of iteration defines the order of all value arrays
+	 */
+	public LocationIndex( final IterableRealInterval< ? > locations )
+	{
+		this( locations, GridIndex.estimateCellSize( locations ) );
+	}
+
+	/**
+	 * @param locations - the locations, the order of iteration defines the order of all value arrays
+	 * @param medianDistance - the median distance between the locations (see {@link data.STDataStatistics#getMedianDistance()}), the cell size of a grid
+	 */
+	public LocationIndex( final IterableRealInterval< ? > locations, final double medianDistance )
+	{
+		if ( locations.size() > Integer.MAX_VALUE )
+			throw new RuntimeException( "Too many locations for a LocationIndex: " + locations.size() );
+
+		this.numLocations = (int)locations.size();
+
+		final List< RealPoint > points = new ArrayList<>( numLocations );
+		final List< IntType > indices = new ArrayList<>( numLocations );
+
+		final RealCursor< ? > cursor = locations.localizingCursor();
+
+		for ( int i = 0; i < numLocations; ++i )
+		{
+			cursor.fwd();
+			points.add( new RealPoint( cursor ) );
+			indices.add( new IntType( i ) );
+		}
+
+		final KDTree< IntType > tree = new KDTree<>( indices, points );
+
+		// the grid copies the indices, the order of the tree does not matter
+		this.grid = locations.numDimensions() == 2 && GridIndex.isNearUniformCached( locations ) ? new GridIndex<>( tree, medianDistance ) : null;
+		this.tree = ( grid == null ) ? tree : null;
+	}
+
+	/**
+	 * @return a new radius search (not thread-safe, create one per thread), the values are the indices of the locations
+	 */
+	public RadiusNeighborSearch< IntType > createRadiusSearch()
+	{
+		return ( grid == null ) ? new RadiusNeighborSearchOnKDTree<>( tree ) : new RadiusCountSearchOnGrid<>( grid );
+	}
+
+	public int numLocations() { return numLocations; }
+}
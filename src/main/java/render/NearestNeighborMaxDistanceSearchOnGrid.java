@@ -0,0 +1,89 @@
+package render;
+
+import java.util.function.Supplier;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+import util.SimpleRealLocalizable;
+import util.SimpleSampler;
+
+/**
+ * Same as {@link NearestNeighborMaxDistanceSearchOnKDTree}, but searching on a {@link GridIndex}.
+ */
+public class NearestNeighborMaxDistanceSearchOnGrid< T > extends NearestNeighborSearchOnGrid< T >
+{
+	final Supplier<T> outofbounds;
+	final SimpleSampler< T > oobsSampler;
+	final SimpleRealLocalizable position;
+	final MaxDistanceParam param;
+
+	Sampler< T > value;
+	RealLocalizable point;
+	double newbestSquDistance;
+
+	public NearestNeighborMaxDistanceSearchOnGrid( final GridIndex< T > grid, final Supplier<T> outofbounds, final MaxDistanceParam param )
+	{
+		super( grid );
+
+		this.oobsSampler = new SimpleSampler< T >( outofbounds );
+		this.position = new SimpleRealLocalizable( pos );
+		this.outofbounds = outofbounds;
+		this.param = param;
+	}
+
+	@Override
+	public void search( final RealLocalizable p )
+	{
+		super.search( p );
+
+		if ( bestPoint == null || bestSquDistance > param.maxSqDistance() )
+		{
+			value = oobsSampler;
+			point = position;
+			newbestSquDistance = 0;
+		}
+		else
+		{
+			value = bestPoint;
+			point = bestPoint;
+			newbestSquDistance = bestSquDistance;
+		}
+	}
+
+	@Override
+	public Sampler< T > getSampler()
+	{
+		return value;
+	}
+
+	@Override
+	public RealLocalizable getPosition()
+	{
+		return point;
+	}
+
+	@Override
+	public double getSquareDistance()
+	{
+		return newbestSquDistance;
+	}
+
+	@Override
+	public double getDistance()
+	{
+		return Math.sqrt( newbestSquDistance );
+	}
+
+	@Override
+	public NearestNeighborMaxDistanceSearchOnGrid< T > copy()
+	{
+		final NearestNeighborMaxDistanceSearchOnGrid< T > copy = new NearestNeighborMaxDistanceSearchOnGrid< T >( grid, outofbounds, param );
+		System.arraycopy( pos, 0, copy.pos, 0, pos.length );
+		copy.bestPoint = bestPoint;
+		copy.bestSquDistance = bestSquDistance;
+		copy.newbestSquDistance = newbestSquDistance;
+		copy.point = point;
+		copy.value = value;
+		return copy;
+	}
+}
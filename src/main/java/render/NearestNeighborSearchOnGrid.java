@@ -0,0 +1,137 @@
+package render;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+import net.imglib2.neighborsearch.NearestNeighborSearch;
+
+/**
+ * Nearest neighbor search on a {@link GridIndex}, scans rings of cells around the query location until no closer
+ * point can exist.
+ *
+ * @author spreibi
+ *
+ * @param <T> - the type of the data
+ */
+public class NearestNeighborSearchOnGrid< T > implements NearestNeighborSearch< T >
+{
+	final GridIndex< T > grid;
+	final double[] pos = new double[ 2 ];
+
+	GridIndex< T >.GridPoint bestPoint;
+	double bestSquDistance;
+
+	public NearestNeighborSearchOnGrid( final GridIndex< T > grid )
+	{
+		this.grid = grid;
+	}
+
+	@Override
+	public void search( final RealLocalizable reference )
+	{
+		reference.localize( pos );
+
+		final double px = pos[ 0 ];
+		final double py = pos[ 1 ];
+
+		final int cx = grid.cellX( px );
+		final int cy = grid.cellY( py );
+		final int maxRing = Math.max( Math.max( cx, grid.cellsX - 1 - cx ), Math.max( cy, grid.cellsY - 1 - cy ) );
+
+		int best = -1;
+		double bestSqDist = Double.MAX_VALUE;
+
+		for ( int ring = 0; ring <= maxRing; ++ring )
+		{
+			// every point in this ring (or beyond) is at least (ring - 1) * cellSize away
+			if ( best >= 0 && ring > 0 )
+			{
+				final double minDist = ( ring - 1 ) * grid.cellSize;
+				if ( minDist * minDist > bestSqDist )
+					break;
+			}
+
+			final int y0 = cy - ring, y1 = cy + ring;
+			final int x0 = Math.max( 0, cx - ring ), x1 = Math.min( grid.cellsX - 1, cx + ring );
+
+			for ( int y = Math.max( 0, y0 ); y <= Math.min( grid.cellsY - 1, y1 ); ++y )
+			{
+				if ( y == y0 || y == y1 )
+				{
+					// full row of the ring
+					final int j = scan( y * grid.cellsX + x0, y * grid.cellsX + x1, px, py, bestSqDist );
+					if ( j >= 0 ) { best = j; bestSqDist = sqDist( j, px, py ); }
+				}
+				else
+				{
+					// only the left and right cell of the ring
+					if ( cx - ring >= 0 )
+					{
+						final int j = scan( y * grid.cellsX + cx - ring, y * grid.cellsX + cx - ring, px, py, bestSqDist );
+						if ( j >= 0 ) { best = j; bestSqDist = sqDist( j, px, py ); }
+					}
+
+					if ( cx + ring < grid.cellsX )
+					{
+						final int j = scan( y * grid.cellsX + cx + ring, y * grid.cellsX + cx + ring, px, py, bestSqDist );
+						if ( j >= 0 ) { best = j; bestSqDist = sqDist( j, px, py ); }
+					}
+				}
+			}
+		}
+
+		this.bestPoint = best >= 0 ? grid.points.get( best ) : null;
+		this.bestSquDistance = bestSqDist;
+	}
+
+	// returns the index of a point in cells c0...c1 (consecutive) that is closer than bestSqDist, or -1
+	protected int scan( final int c0, final int c1, final double px, final double py, double bestSqDist )
+	{
+		int best = -1;
+
+		for ( int j = grid.cellStart[ c0 ]; j < grid.cellStart[ c1 + 1 ]; ++j )
+		{
+			final double d = sqDist( j, px, py );
+
+			if ( d < bestSqDist )
+			{
+				bestSqDist = d;
+				best = j;
+			}
+		}
+
+		return best;
+	}
+
+	protected double sqDist( final int j, final double px, final double py )
+	{
+		final double dx = grid.xs[ j ] - px;
+		final double dy = grid.ys[ j ] - py;
+
+		return dx * dx + dy * dy;
+	}
+
+	@Override
+	public Sampler< T > getSampler() { return bestPoint; }
+
+	@Override
+	public RealLocalizable getPosition() { return bestPoint; }
+
+	@Override
+	public double getSquareDistance() { return bestSquDistance; }
+
+	@Override
+	public double getDistance() { return Math.sqrt( bestSquDistance ); }
+
+	@Override
+	public int numDimensions() { return grid.numDimensions(); }
+
+	@Override
+	public NearestNeighborSearchOnGrid< T > copy()
+	{
+		final NearestNeighborSearchOnGrid< T > copy = new NearestNeighborSearchOnGrid<>( grid );
+		System.arraycopy( pos, 0, copy.pos, 0, pos.length );
+		copy.bestPoint = bestPoint;
+		copy.bestSquDistance = bestSquDistance;
+		return copy;
+	}
+}
@@ -0,0 +1,27 @@
+package render;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.neighborsearch.RadiusNeighborSearch;
+
+/**
+ * A {@link RadiusNeighborSearch} that can also count the points within a radius without collecting or sorting them.
+ *
+ * @param <T> - the type of the data
+ */
+public interface RadiusCountSearch< T > extends RadiusNeighborSearch< T >
+{
+	/**
+	 * @param reference - the query location
+	 * @param radius - the search radius (inclusive)
+	 * @return the number of points within the radius
+	 */
+	public int count( final RealLocalizable reference, final double radius );
+
+	/**
+	 * @param reference - the query location
+	 * @param radius - the search radius (inclusive)
+	 * @param k - the number of points required
+	 * @return true if there are at least k points within the radius (stops searching once k points were found)
+	 */
+	public boolean atLeast( final RealLocalizable reference, final double radius, final int k );
+}
@@ -0,0 +1,173 @@
+package render;
+
+import java.util.Arrays;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.Sampler;
+
+/**
+ * Radius neighbor search (and counting) on a {@link GridIndex}, scans all cells that intersect the bounding box
+ * of the search circle.
+ *
+ * @author spreibi
+ *
+ * @param <T> - the type of the data
+ */
+public class RadiusCountSearchOnGrid< T > implements RadiusCountSearch< T >
+{
+	final GridIndex< T > grid;
+
+	// results of the last search
+	int numNeighbors = 0;
+	int[] indices = new int[ 64 ];
+	double[] sqDistances = new double[ 64 ];
+
+	public RadiusCountSearchOnGrid( final GridIndex< T > grid )
+	{
+		this.grid = grid;
+	}
+
+	@Override
+	public void search( final RealLocalizable reference, final double radius, final boolean sortResults )
+	{
+		final double px = reference.getDoublePosition( 0 );
+		final double py = reference.getDoublePosition( 1 );
+		final double sqRadius = radius * radius;
+
+		numNeighbors = 0;
+
+		final int cx0 = grid.cellX( px - radius ), cx1 = grid.cellX( px + radius );
+		final int cy0 = grid.cellY( py - radius ), cy1 = grid.cellY( py + radius );
+
+		for ( int cy = cy0; cy <= cy1; ++cy )
+		{
+			// the points of consecutive cells in a row are stored consecutively
+			final int start = grid.cellStart[ cy * grid.cellsX + cx0 ];
+			final int end = grid.cellStart[ cy * grid.cellsX + cx1 + 1 ];
+
+			for ( int j = start; j < end; ++j )
+			{
+				final double dx = grid.xs[ j ] - px;
+				final double dy = grid.ys[ j ] - py;
+				final double sqDist = dx * dx + dy * dy;
+
+				if ( sqDist <= sqRadius )
+				{
+					if ( numNeighbors == indices.length )
+					{
+						indices = Arrays.copyOf( indices, indices.length * 2 );
+						sqDistances = Arrays.copyOf( sqDistances, sqDistances.length * 2 );
+					}
+
+					indices[ numNeighbors ] = j;
+					sqDistances[ numNeighbors++ ] = sqDist;
+				}
+			}
+		}
+
+		if ( sortResults )
+			sort( 0, numNeighbors - 1 );
+	}
+
+	@Override
+	public int count( final RealLocalizable reference, final double radius )
+	{
+		return count( reference, radius, Integer.MAX_VALUE );
+	}
+
+	@Override
+	public boolean atLeast( final RealLocalizable reference, final double radius, final int k )
+	{
+		if ( k <= 0 )
+			return true;
+
+		return count( reference, radius, k ) >= k;
+	}
+
+	protected int count( final RealLocalizable reference, final double radius, final int maxCount )
+	{
+		final double px = reference.getDoublePosition( 0 );
+		final double py = reference.getDoublePosition( 1 );
+		final double sqRadius = radius * radius;
+
+		final int cx0 = grid.cellX( px - radius ), cx1 = grid.cellX( px + radius );
+		final int cy0 = grid.cellY( py - radius ), cy1 = grid.cellY( py + radius );
+
+		int count = 0;
+
+		for ( int cy = cy0; cy <= cy1; ++cy )
+		{
+			final int start = grid.cellStart[ cy * grid.cellsX + cx0 ];
+			final int end = grid.cellStart[ cy * grid.cellsX + cx1 + 1 ];
+
+			for ( int j = start; j < end; ++j )
+			{
+				final double dx = grid.xs[ j ] - px;
+				final double dy = grid.ys[ j ] - py;
+
+				if ( dx * dx + dy * dy <= sqRadius && ++count >= maxCount )
+					return count;
+			}
+		}
+
+		return count;
+	}
+
+	// quicksort of the results by distance
+	protected void sort( int left, int right )
+	{
+		while ( left < right )
+		{
+			final double pivot = sqDistances[ ( left + right ) >>> 1 ];
+			int i = left, j = right;
+
+			while ( i <= j )
+			{
+				while ( sqDistances[ i ] < pivot ) ++i;
+				while ( sqDistances[ j ] > pivot ) --j;
+
+				if ( i <= j )
+				{
+					final double d = sqDistances[ i ]; sqDistances[ i ] = sqDistances[ j ]; sqDistances[ j ] = d;
+					final int k = indices[ i ]; indices[ i ] = indices[ j ]; indices[ j ] = k;
+					++i; --j;
+				}
+			}
+
+			// recurse into the smaller part
+			if ( j - left < right - i )
+			{
+				sort( left, j );
+				left = i;
+			}
+			else
+			{
+				sort( i, right );
+				right = j;
+			}
+		}
+	}
+
+	@Override
+	public int numNeighbors() { return numNeighbors; }
+
+	@Override
+	public Sampler< T > getSampler( final int i ) { return grid.points.get( indices[ i ] ); }
+
+	@Override
+	public RealLocalizable getPosition( final int i ) { return grid.points.get( indices[ i ] ); }
+
+	@Override
+	public double getSquareDistance( final int i ) { return sqDistances[ i ]; }
+
+	@Override
+	public double getDistance( final int i ) { return Math.sqrt( sqDistances[ i ] ); }
+
+	@Override
+	public int numDimensions() { return grid.numDimensions(); }
+
+	public RadiusCountSearchOnGrid< T > copy()
+	{
+		return new RadiusCountSearchOnGrid<>( grid );
+	}
+}
@@ -0,0 +1,88 @@
+package render;
+
+import net.imglib2.KDTree;
+import net.imglib2.KDTreeNode;
+import net.imglib2.RealLocalizable;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+
+/**
+ * A {@link RadiusNeighborSearchOnKDTree} that additionally answers "how many points are within radius r"
+ * and "are there at least k points within radius r" without sorting or collecting the neighbors. The latter
+ * stops traversing the tree as soon as k points were found.
+ *
+ * @author spreibi
+ *
+ * @param <T> - the type of the tree
+ */
+public class RadiusCountSearchOnKDTree< T > extends RadiusNeighborSearchOnKDTree< T > implements RadiusCountSearch< T >
+{
+	final KDTree< T > kdtree;
+	final double[] position;
+	final int numDim;
+
+	// state of the current count query
+	private double squRadius;
+	private int count, maxCount;
+
+	public RadiusCountSearchOnKDTree( final KDTree< T > tree )
+	{
+		super( tree );
+
+		this.kdtree = tree;
+		this.numDim = tree.numDimensions();
+		this.position = new double[ numDim ];
+	}
+
+	@Override
+	public int count( final RealLocalizable reference, final double radius )
+	{
+		return count( reference, radius, Integer.MAX_VALUE );
+	}
+
+	@Override
+	public boolean atLeast( final RealLocalizable reference, final double radius, final int k )
+	{
+		if ( k <= 0 )
+			return true;
+
+		return count( reference, radius, k ) >= k;
+	}
+
+	protected int count( final RealLocalizable reference, final double radius, final int maxCount )
+	{
+		reference.localize( position );
+
+		this.squRadius = radius * radius;
+		this.count = 0;
+		this.maxCount = maxCount;
+
+		countNode( kdtree.getRoot() );
+
+		return count;
+	}
+
+	protected void countNode( final KDTreeNode< T > current )
+	{
+		if ( current.squDistanceTo( position ) <= squRadius && ++count >= maxCount )
+			return;
+
+		final double axisDiff = position[ current.getSplitDimension() ] - current.getSplitCoordinate();
+		final boolean leftIsNearBranch = axisDiff < 0;
+
+		// search the near branch
+		final KDTreeNode< T > nearChild = leftIsNearBranch ? current.left : current.right;
+		final KDTreeNode< T > awayChild = leftIsNearBranch ? current.right : current.left;
+
+		if ( nearChild != null )
+		{
+			countNode( nearChild );
+
+			if ( count >= maxCount )
+				return;
+		}
+
+		// search the away branch - maybe
+		if ( ( axisDiff * axisDiff <= squRadius ) && ( awayChild != null ) )
+			countNode( awayChild );
+	}
+}
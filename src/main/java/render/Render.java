@@ -4,15 +4,20 @@ import java.awt.Color;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 
 import data.STData;
+import filter.FastGaussianFilterFactory;
 import filter.FilterFactory;
+import filter.FilterPipeline;
 import filter.Filters;
 import filter.GaussianFilterFactory;
 import filter.GaussianFilterFactory.WeightType;
+import filter.MeanFilterFactory;
 import filter.RadiusSearchFilterFactory;
 import gui.STDataAssembly;
+import gui.bdv.AddedGene.Rendering;
 import imglib2.ExpValueRealIterable;
 import imglib2.TransformedIterableRealInterval;
 import net.imglib2.FinalRealInterval;
@@ -28,19 +33,25 @@ import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import util.KDTreeUtil;
+import util.Threads;
 
 public class Render
 {
+	// sum, weight and count of the SplatRenderer
+	public static final int bytesPerRasterizedPixel = 20;
+
 	public static IterableRealInterval< DoubleType > getRealIterable(
 			final STDataAssembly stdata,
 			final String gene )
@@ -105,6 +116,31 @@ public class Render
 			final AffineGet coordinateTransform,
 			final String gene,
 			final List< FilterFactory< DoubleType, DoubleType > > filterFactories )
+	{
+		if ( filterFactories == null || filterFactories.size() == 0 )
+			return getRealIterable( stdata, coordinateTransform, gene, filterFactories, null );
+
+		final ExecutorService service = Threads.createFixedExecutorService();
+		final IterableRealInterval< DoubleType > data = getRealIterable( stdata, coordinateTransform, gene, filterFactories, service );
+		service.shutdown();
+
+		return data;
+	}
+
+	/**
+	 * @param stdata - the dataset
+	 * @param coordinateTransform - transform of the locations (can be null)
+	 * @param gene - the gene
+	 * @param filterFactories - filters applied to the values (can be null)
+	 * @param service - for filtering in parallel (e.g. a same-thread service if genes are processed in parallel)
+	 * @return the (filtered) values of the gene at the (transformed) locations
+	 */
+	public static IterableRealInterval< DoubleType > getRealIterable(
+			final STData stdata,
+			final AffineGet coordinateTransform,
+			final String gene,
+			final List< FilterFactory< DoubleType, DoubleType > > filterFactories,
+			final ExecutorService service )
 	{
 		IterableRealInterval< DoubleType > data = stdata.getExprData( gene ); 
 
@@ -131,10 +167,16 @@ public class Render
 					coordinateTransform );
 
 		// filter the iterable
-		if ( filterFactories != null )
-			for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories )
-				data = Filters.filter( data, filterFactory );
-				// data = Filters.filterVirtual( data, filterFactory, DoubleType::new );
+		if ( filterFactories != null && filterFactories.size() > 0 )
+		{
+			// one spatial index and one neighborhood search per spot for all filters (if the neighborhoods fit into memory)
+			if ( filterFactories.size() > 1 )
+				data = FilterPipeline.filter( data, filterFactories, service );
+			else
+				for ( final FilterFactory<DoubleType, DoubleType> filterFactory : filterFactories )
+					data = Filters.filterToArray( data, filterFactory, service );
+					// data = Filters.filterVirtual( data, filterFactory, DoubleType::new );
+		}
 
 		/*
 		if ( medianRadius > 0 )
@@ -269,6 +311,17 @@ public class Render
 
 	public static < T extends RealType< T > > RealRandomAccessible< T > renderNN( final IterableRealInterval< T > data, final T outofbounds, final MaxDistanceParam maxRadius )
 	{
+		// a grid is faster for near-uniformly distributed spots
+		final GridIndex< T > grid = GridIndex.createIfNearUniform( data );
+
+		if ( grid != null )
+			return Views.interpolate(
+					new NearestNeighborMaxDistanceSearchOnGrid< T >(
+							grid,
+							() -> outofbounds.copy(),
+							maxRadius ),
+					new NearestNeighborSearchInterpolatorFactory< T >() );
+
 		return renderNN2(data, outofbounds, maxRadius).getA();
 	}
 
@@ -285,6 +338,14 @@ public class Render
 
 	public static < S extends Type<S>, T > RealRandomAccessible< T > render( final IterableRealInterval< S > data, final RadiusSearchFilterFactory< S, T > filterFactory )
 	{
+		// a grid is faster for near-uniformly distributed spots
+		final GridIndex< S > grid = GridIndex.createIfNearUniform( data );
+
+		if ( grid != null )
+			return Views.interpolate(
+					new FilteringRadiusSearchOnGrid< S, T >( grid, filterFactory ),
+					new IntegratingNeighborSearchInterpolatorFactory< T >() );
+
 		return render2( data, filterFactory ).getA();
 	}
 
@@ -298,6 +359,188 @@ public class Render
 				new IntegratingNeighborSearchInterpolatorFactory< T >() ), tree ); // interpolatorfactory (T,F)
 	}
 
+	/**
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @return the maximal distance (in data space) at which a spot contributes to a rendering of {@link #rasterize}
+	 */
+	public static double influenceRadius( final double medianDistance, final Rendering renderType, final double renderingFactor )
+	{
+		if ( renderType == Rendering.Gauss )
+			return medianDistance * renderingFactor * FastGaussianFilterFactory.defaultCutoff;
+		else
+			return medianDistance * renderingFactor;
+	}
+
+	public static RandomAccessibleInterval< DoubleType > rasterize(
+			final IterableRealInterval< DoubleType > data,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval )
+	{
+		return rasterize( data, medianDistance, renderType, renderingFactor, transform, interval, Threads.createSameThreadExecutorService() );
+	}
+
+	/**
+	 * Rasterizes the rendering of a 2d point cloud into memory, Gauss renderings are splatted ({@link SplatRenderer}),
+	 * all others are evaluated tile by tile on the spots near each tile ({@link TiledRasterizer}).
+	 *
+	 * @param data - the point cloud (2d)
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param service - for rendering in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > rasterize(
+			final IterableRealInterval< DoubleType > data,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		return rasterize( data, null, medianDistance, renderType, renderingFactor, transform, interval, service );
+	}
+
+	/**
+	 * Same as {@link #rasterize(IterableRealInterval, double, Rendering, double, AffineGet, Interval, ExecutorService)},
+	 * but NN, Mean and Linear renderings use a precomputed index of the locations (e.g. shared by all genes of a dataset).
+	 *
+	 * @param data - the point cloud (2d), must iterate the locations of the index in the same order
+	 * @param index - index of the locations of data (can be null)
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param service - for rendering in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > rasterize(
+			final IterableRealInterval< DoubleType > data,
+			final LocationIndex index,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		// too large for memory, render virtually (pixels are computed on access)
+		if ( !canRasterize( interval ) )
+			return Views.interval( RealViews.affine( createRRA( data, medianDistance, renderType, renderingFactor ), transform ), interval );
+
+		final DoubleType outofbounds = new DoubleType( 0 );
+		final double radius = medianDistance * renderingFactor;
+
+		if ( renderType == Rendering.Gauss )
+			return SplatRenderer.render( data, transform, interval, new FastGaussianFilterFactory<>( outofbounds, radius, WeightType.PARTIAL_BY_SUM_OF_WEIGHTS ), service );
+
+		final Function< KDTree< DoubleType >, RealRandomAccessible< DoubleType > > renderer = tiledRenderer( renderType, radius, outofbounds );
+
+		if ( index != null )
+			return TiledRasterizer.rasterize( index, FilterPipeline.values( data ), radius, renderer, outofbounds.get(), transform, interval, TiledRasterizer.defaultTileSize, service );
+
+		return TiledRasterizer.rasterize( data, radius, renderer, outofbounds.get(), transform, interval, TiledRasterizer.defaultTileSize, service );
+	}
+
+	/**
+	 * Rasterizes a NN, Mean or Linear rendering of the values of one gene directly on a precomputed index of the
+	 * locations, so rendering many intervals (e.g. the blocks of {@link BlockwiseRenderer}) neither builds a tree nor
+	 * decides between grid and tree again. Gauss renderings are splatted from the spots and do not need an index.
+	 *
+	 * @param index - index of the locations
+	 * @param values - the values of the gene in the iteration order of the locations of the index
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type (NN, Mean or Linear)
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param service - for rendering in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > rasterize(
+			final LocationIndex index,
+			final double[] values,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor,
+			final AffineGet transform,
+			final Interval interval,
+			final ExecutorService service )
+	{
+		if ( renderType == Rendering.Gauss )
+			throw new IllegalArgumentException( "Gauss renderings are splatted from the spots, rasterize the spots instead." );
+
+		final DoubleType outofbounds = new DoubleType( 0 );
+		final double radius = medianDistance * renderingFactor;
+
+		return TiledRasterizer.rasterize( index, values, radius, tiledRenderer( renderType, radius, outofbounds ), outofbounds.get(), transform, interval, TiledRasterizer.defaultTileSize, service );
+	}
+
+	/**
+	 * @return creates the NN, Mean or Linear rendering of a (local) KDTree for the {@link TiledRasterizer}
+	 */
+	protected static Function< KDTree< DoubleType >, RealRandomAccessible< DoubleType > > tiledRenderer(
+			final Rendering renderType,
+			final double radius,
+			final DoubleType outofbounds )
+	{
+		if ( renderType == Rendering.NN )
+			return tree -> Views.interpolate(
+					new NearestNeighborMaxDistanceSearchOnKDTree< DoubleType >( tree, () -> outofbounds.copy(), new MaxDistanceParam( radius ) ),
+					new NearestNeighborSearchInterpolatorFactory< DoubleType >() );
+		else if ( renderType == Rendering.Mean )
+			return tree -> Views.interpolate(
+					new FilteringRadiusSearchOnKDTree< DoubleType, DoubleType >( tree, new MeanFilterFactory<>( outofbounds, radius ) ),
+					new IntegratingNeighborSearchInterpolatorFactory< DoubleType >() );
+		else // LINEAR
+			return tree -> Views.interpolate(
+					new KNearestNeighborMaxDistanceSearchOnKDTree< DoubleType >( tree, 5, () -> outofbounds.copy(), new MaxDistanceParam( radius ) ),
+					new InverseDistanceWeightingInterpolatorFactory< DoubleType >( 3.0 ) );
+	}
+
+	/**
+	 * @param interval - the pixel interval
+	 * @return true if {@link #rasterize} can hold the interval in memory (at most 2^31 pixels, {@link #bytesPerRasterizedPixel} per pixel within half of the heap)
+	 */
+	public static boolean canRasterize( final Interval interval )
+	{
+		final long numPixels = Intervals.numElements( interval );
+
+		return numPixels <= Integer.MAX_VALUE - 8 && numPixels * bytesPerRasterizedPixel <= Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * @param data - the point cloud
+	 * @param medianDistance - median distance between spots
+	 * @param renderType - the rendering type
+	 * @param renderingFactor - smoothness, in multiples of the median distance
+	 * @return the (virtual) rendering of the point cloud
+	 */
+	public static RealRandomAccessible< DoubleType > createRRA(
+			final IterableRealInterval< DoubleType > data,
+			final double medianDistance,
+			final Rendering renderType,
+			final double renderingFactor )
+	{
+		if ( renderType == Rendering.Gauss )
+			return render( data, new FastGaussianFilterFactory<>( new DoubleType( 0 ), medianDistance*renderingFactor, WeightType.PARTIAL_BY_SUM_OF_WEIGHTS ) );
+		else if ( renderType == Rendering.NN )
+			return renderNN( data, new DoubleType( 0 ), new MaxDistanceParam( medianDistance*renderingFactor ) );
+		else if ( renderType == Rendering.Mean )
+			return render( data, new MeanFilterFactory<>( new DoubleType( 0 ), medianDistance*renderingFactor ) );
+		else // LINEAR
+			return renderLinear( data, 5, 3.0, new DoubleType( 0 ), new MaxDistanceParam( medianDistance*renderingFactor ) );
+	}
+
 	public static < T extends IntegerType< T > > RealRandomAccessible< ARGBType > convertToRGB( final RealRandomAccessible< T > rra, final T outofbounds, final ARGBType background, final HashMap<Long, ARGBType> lut )
 	{
 		return Converters.convert(
@@ -0,0 +1,238 @@
+package render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import filter.FastGaussianFilterFactory;
+import filter.GaussianFilter;
+import filter.GaussianFilterFactory;
+import filter.GaussianFilterFactory.WeightType;
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealCursor;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import util.ExpLookupTable;
+import util.Threads;
+
+/**
+ * Rasterizes a Gaussian rendering of a 2d point cloud by splatting: every spot adds its Gaussian footprint
+ * (value*weight, weight, count) into the output grid, afterwards every pixel is normalized like in {@link GaussianFilter}.
+ * The cost scales with the number of spots times the kernel footprint in pixels, no spatial index is required.
+ *
+ * The result is the same (up to floating point rounding) as rasterizing Render.render( data, gaussFactory ) through the
+ * same transform, since every pixel sees exactly the spots within the radius of the factory (in data space).
+ *
+ * @author spreibi
+ */
+public class SplatRenderer
+{
+	/**
+	 * Renders single-threaded, e.g. when called from within another thread pool.
+	 *
+	 * @param data - the point cloud (2d)
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param gaussFactory - radius, sigma, weight type and outofbounds value (a {@link FastGaussianFilterFactory} uses its lookup table)
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > render(
+			final IterableRealInterval< ? extends RealType< ? > > data,
+			final AffineGet transform,
+			final Interval interval,
+			final GaussianFilterFactory< ?, ? > gaussFactory )
+	{
+		return render( data, transform, interval, gaussFactory, Threads.createSameThreadExecutorService() );
+	}
+
+	/**
+	 * @param data - the point cloud (2d)
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param gaussFactory - radius, sigma, weight type and outofbounds value (a {@link FastGaussianFilterFactory} uses its lookup table)
+	 * @param service - for rendering horizontal stripes of the image in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static RandomAccessibleInterval< DoubleType > render(
+			final IterableRealInterval< ? extends RealType< ? > > data,
+			final AffineGet transform,
+			final Interval interval,
+			final GaussianFilterFactory< ?, ? > gaussFactory,
+			final ExecutorService service )
+	{
+		if ( data.numDimensions() != 2 || interval.numDimensions() != 2 )
+			throw new RuntimeException( "SplatRenderer only supports 2d data." );
+
+		if ( interval.dimension( 0 ) * interval.dimension( 1 ) > Integer.MAX_VALUE )
+			throw new RuntimeException( "Interval too large for the SplatRenderer: " + interval.dimension( 0 ) + "x" + interval.dimension( 1 ) );
+
+		final int w = (int)interval.dimension( 0 );
+		final int h = (int)interval.dimension( 1 );
+
+		final double radius = gaussFactory.getRadius();
+		final double sqRadius = radius * radius;
+		final double twoSqSigma = gaussFactory.getTwoSqSigma();
+		final WeightType normalize = gaussFactory.getNormalize();
+		final double outofbounds = gaussFactory.create().getRealDouble();
+		final ExpLookupTable lut = ( gaussFactory instanceof FastGaussianFilterFactory ) ? ((FastGaussianFilterFactory< ?, ? >)gaussFactory).getLookupTable() : null;
+
+		// linear part of the inverse to measure distances in data space
+		final AffineGet inverse = transform.inverse();
+		final double i00 = inverse.get( 0, 0 ), i01 = inverse.get( 0, 1 );
+		final double i10 = inverse.get( 1, 0 ), i11 = inverse.get( 1, 1 );
+
+		// the circle of the radius (in data space) maps to an ellipse in pixel space, these are its half extents
+		final double extentX = radius * Math.sqrt( transform.get( 0, 0 ) * transform.get( 0, 0 ) + transform.get( 0, 1 ) * transform.get( 0, 1 ) );
+		final double extentY = radius * Math.sqrt( transform.get( 1, 0 ) * transform.get( 1, 0 ) + transform.get( 1, 1 ) * transform.get( 1, 1 ) );
+
+		// all spots in pixel coordinates relative to the interval
+		final int numSpots = (int)data.size();
+		final double[] qx = new double[ numSpots ];
+		final double[] qy = new double[ numSpots ];
+		final double[] values = new double[ numSpots ];
+
+		final double[] p = new double[ 2 ];
+		final double[] q = new double[ 2 ];
+		final RealCursor< ? extends RealType< ? > > cursor = data.localizingCursor();
+
+		for ( int i = 0; i < numSpots; ++i )
+		{
+			values[ i ] = cursor.next().getRealDouble();
+			cursor.localize( p );
+			transform.apply( p, q );
+			qx[ i ] = q[ 0 ] - interval.min( 0 );
+			qy[ i ] = q[ 1 ] - interval.min( 1 );
+		}
+
+		final double[] sum = new double[ w * h ];
+		final double[] weights = new double[ w * h ];
+		final int[] counts = new int[ w * h ];
+
+		final int numStripes = Math.max( 1, Math.min( h, Threads.numThreads() * 4 ) );
+		final int stripeHeight = ( h + numStripes - 1 ) / numStripes;
+
+		// bin the spots by the stripes they overlap once, so every stripe only visits its own spots
+		final int[] firstStripe = new int[ numSpots ];
+		final int[] lastStripe = new int[ numSpots ];
+		final int[] stripeStart = new int[ numStripes + 1 ];
+
+		for ( int i = 0; i < numSpots; ++i )
+		{
+			final int minY = Math.max( 0, (int)Math.ceil( qy[ i ] - extentY ) );
+			final int maxY = Math.min( h - 1, (int)Math.floor( qy[ i ] + extentY ) );
+
+			if ( minY > maxY || Math.ceil( qx[ i ] - extentX ) > w - 1 || Math.floor( qx[ i ] + extentX ) < 0 )
+			{
+				// does not overlap the image
+				firstStripe[ i ] = 0;
+				lastStripe[ i ] = -1;
+			}
+			else
+			{
+				firstStripe[ i ] = minY / stripeHeight;
+				lastStripe[ i ] = maxY / stripeHeight;
+			}
+
+			for ( int stripe = firstStripe[ i ]; stripe <= lastStripe[ i ]; ++stripe )
+				++stripeStart[ stripe + 1 ];
+		}
+
+		for ( int stripe = 0; stripe < numStripes; ++stripe )
+			stripeStart[ stripe + 1 ] += stripeStart[ stripe ];
+
+		final int[] stripeSpots = new int[ stripeStart[ numStripes ] ];
+		final int[] next = stripeStart.clone();
+
+		for ( int i = 0; i < numSpots; ++i )
+			for ( int stripe = firstStripe[ i ]; stripe <= lastStripe[ i ]; ++stripe )
+				stripeSpots[ next[ stripe ]++ ] = i;
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int s = 0; s < numStripes; ++s )
+		{
+			final int stripe = s;
+			final int y0 = s * stripeHeight;
+			final int y1 = Math.min( h, y0 + stripeHeight ) - 1;
+
+			if ( y0 > y1 )
+				break;
+
+			tasks.add( () ->
+			{
+				// splat every spot that overlaps this stripe
+				for ( int j = stripeStart[ stripe ]; j < stripeStart[ stripe + 1 ]; ++j )
+				{
+					final int i = stripeSpots[ j ];
+					final double x = qx[ i ], y = qy[ i ];
+
+					final int minY = Math.max( y0, (int)Math.ceil( y - extentY ) );
+					final int maxY = Math.min( y1, (int)Math.floor( y + extentY ) );
+
+					final int minX = Math.max( 0, (int)Math.ceil( x - extentX ) );
+					final int maxX = Math.min( w - 1, (int)Math.floor( x + extentX ) );
+
+					final double v = values[ i ];
+
+					for ( int py = minY; py <= maxY; ++py )
+					{
+						final double dy = py - y;
+						int index = py * w + minX;
+
+						for ( int px = minX; px <= maxX; ++px, ++index )
+						{
+							final double dx = px - x;
+
+							// distance in data space
+							final double ddx = i00 * dx + i01 * dy;
+							final double ddy = i10 * dx + i11 * dy;
+							final double sqDist = ddx * ddx + ddy * ddy;
+
+							if ( sqDist <= sqRadius )
+							{
+								final double weight = ( lut == null ) ? Math.exp( -sqDist / twoSqSigma ) : lut.exp( sqDist / twoSqSigma );
+
+								sum[ index ] += v * weight;
+								weights[ index ] += weight;
+								++counts[ index ];
+							}
+						}
+					}
+				}
+
+				// normalize the stripe
+				for ( int index = y0 * w; index < ( y1 + 1 ) * w; ++index )
+				{
+					if ( counts[ index ] == 0 )
+						sum[ index ] = outofbounds;
+					else
+						sum[ index ] = GaussianFilter.normalize( sum[ index ], weights[ index ], counts[ index ], normalize );
+				}
+
+				return null;
+			});
+		}
+
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+
+		return Views.translate( ArrayImgs.doubles( sum, w, h ), interval.min( 0 ), interval.min( 1 ) );
+	}
+}
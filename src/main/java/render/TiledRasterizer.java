@@ -0,0 +1,304 @@
+package render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.KDTree;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.neighborsearch.RadiusNeighborSearch;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import util.KDTreeUtil;
+import util.Threads;
+
+/**
+ * Rasterizes a rendering of a 2d point cloud tile by tile: the spots that can influence a tile (its bounds expanded
+ * by the search radius) are gathered once with a single radius search, every pixel of the tile is then evaluated on
+ * a small KDTree of just these spots instead of descending the tree of the whole dataset for every pixel.
+ *
+ * The result is identical to rasterizing the same rendering of the whole dataset, as long as the rendering only
+ * depends on spots within the radius (true for all radius search filters, and for nearest neighbor/linear
+ * interpolation with a maximal distance).
+ *
+ * @author spreibi
+ */
+public class TiledRasterizer
+{
+	public static int defaultTileSize = 64;
+
+	/**
+	 * Rasterizes single-threaded, e.g. when called from within another thread pool.
+	 *
+	 * @param data - the point cloud (2d)
+	 * @param radius - the maximal distance (in data space) at which a spot influences a location
+	 * @param renderer - creates the rendering for a (local) KDTree
+	 * @param outofbounds - value of pixels without any spot within the radius
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static < S extends Type< S >, T extends RealType< T > > RandomAccessibleInterval< DoubleType > rasterize(
+			final IterableRealInterval< S > data,
+			final double radius,
+			final Function< KDTree< S >, RealRandomAccessible< T > > renderer,
+			final double outofbounds,
+			final AffineGet transform,
+			final Interval interval )
+	{
+		return rasterize( data, radius, renderer, outofbounds, transform, interval, defaultTileSize, Threads.createSameThreadExecutorService() );
+	}
+
+	/**
+	 * @param data - the point cloud (2d)
+	 * @param radius - the maximal distance (in data space) at which a spot influences a location
+	 * @param renderer - creates the rendering for a (local) KDTree
+	 * @param outofbounds - value of pixels without any spot within the radius
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param tileSize - the size of the square tiles in pixels
+	 * @param service - for rendering tiles in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static < S extends Type< S >, T extends RealType< T > > RandomAccessibleInterval< DoubleType > rasterize(
+			final IterableRealInterval< S > data,
+			final double radius,
+			final Function< KDTree< S >, RealRandomAccessible< T > > renderer,
+			final double outofbounds,
+			final AffineGet transform,
+			final Interval interval,
+			final int tileSize,
+			final ExecutorService service )
+	{
+		if ( data.numDimensions() != 2 )
+			throw new RuntimeException( "TiledRasterizer only supports 2d data." );
+
+		// the global index is only used once per tile
+		final GridIndex< S > grid = GridIndex.createIfNearUniform( data );
+		final KDTree< S > tree = ( grid == null ) ? KDTreeUtil.createParallelizableKDTreeFrom( data ) : null;
+
+		return TiledRasterizer.< S, S, T >rasterize(
+				() -> ( grid == null ) ? new RadiusNeighborSearchOnKDTree<>( tree ) : new RadiusCountSearchOnGrid<>( grid ),
+				s -> s,
+				radius, renderer, outofbounds, transform, interval, tileSize, service );
+	}
+
+	/**
+	 * Rasterizes the values of one gene using a {@link LocationIndex} that is shared by all genes of a dataset.
+	 *
+	 * @param index - the index of the locations of the dataset
+	 * @param values - the values of the gene, in the iteration order of the locations of the index
+	 * @param radius - the maximal distance (in data space) at which a spot influences a location
+	 * @param renderer - creates the rendering for a (local) KDTree
+	 * @param outofbounds - value of pixels without any spot within the radius
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval to render
+	 * @param tileSize - the size of the square tiles in pixels
+	 * @param service - for rendering tiles in parallel
+	 * @return the rendered image (in memory) over the interval
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< DoubleType > rasterize(
+			final LocationIndex index,
+			final double[] values,
+			final double radius,
+			final Function< KDTree< DoubleType >, RealRandomAccessible< T > > renderer,
+			final double outofbounds,
+			final AffineGet transform,
+			final Interval interval,
+			final int tileSize,
+			final ExecutorService service )
+	{
+		if ( values.length != index.numLocations() )
+			throw new RuntimeException( "Number of values (" + values.length + ") does not match the number of locations (" + index.numLocations() + ")." );
+
+		return TiledRasterizer.< IntType, DoubleType, T >rasterize(
+				index::createRadiusSearch,
+				i -> new DoubleType( values[ i.get() ] ),
+				radius, renderer, outofbounds, transform, interval, tileSize, service );
+	}
+
+	/**
+	 * @param searchSupplier - creates a radius search over all spots (one per tile)
+	 * @param toValue - maps the values of the search to the values used for rendering
+	 */
+	protected static < I, S, T extends RealType< T > > RandomAccessibleInterval< DoubleType > rasterize(
+			final Supplier< RadiusNeighborSearch< I > > searchSupplier,
+			final Function< I, S > toValue,
+			final double radius,
+			final Function< KDTree< S >, RealRandomAccessible< T > > renderer,
+			final double outofbounds,
+			final AffineGet transform,
+			final Interval interval,
+			final int tileSize,
+			final ExecutorService service )
+	{
+		if ( interval.numDimensions() != 2 )
+			throw new RuntimeException( "TiledRasterizer only supports 2d data." );
+
+		if ( interval.dimension( 0 ) * interval.dimension( 1 ) > Integer.MAX_VALUE )
+			throw new RuntimeException( "Interval too large for the TiledRasterizer: " + interval.dimension( 0 ) + "x" + interval.dimension( 1 ) );
+
+		final int w = (int)interval.dimension( 0 );
+		final int h = (int)interval.dimension( 1 );
+		final long minX = interval.min( 0 );
+		final long minY = interval.min( 1 );
+
+		final double[] pixels = new double[ w * h ];
+
+		final AffineGet inverse = transform.inverse();
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int ty = 0; ty < h; ty += tileSize )
+			for ( int tx = 0; tx < w; tx += tileSize )
+			{
+				final int x0 = tx, y0 = ty;
+				final int x1 = Math.min( w, tx + tileSize ) - 1;
+				final int y1 = Math.min( h, ty + tileSize ) - 1;
+
+				tasks.add( () ->
+				{
+					final KDTree< S > local = candidates( searchSupplier.get(), toValue, inverse, minX + x0, minY + y0, minX + x1, minY + y1, radius );
+
+					if ( local == null )
+					{
+						for ( int y = y0; y <= y1; ++y )
+							for ( int x = x0; x <= x1; ++x )
+								pixels[ y * w + x ] = outofbounds;
+
+						return null;
+					}
+
+					final double[] p = new double[ 2 ];
+					final double[] q = new double[ 2 ];
+
+					final RealRandomAccess< T > ra = renderer.apply( local ).realRandomAccess();
+
+					for ( int y = y0; y <= y1; ++y )
+						for ( int x = x0; x <= x1; ++x )
+						{
+							p[ 0 ] = minX + x;
+							p[ 1 ] = minY + y;
+							inverse.apply( p, q );
+
+							ra.setPosition( q );
+							pixels[ y * w + x ] = ra.get().getRealDouble();
+						}
+
+					return null;
+				});
+			}
+
+		try
+		{
+			final List< Future< Void > > futures = service.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+
+		return Views.translate( ArrayImgs.doubles( pixels, w, h ), minX, minY );
+	}
+
+	/**
+	 * Gathers all spots that can influence a pixel of the interval, e.g. for rendering one output block at a time.
+	 *
+	 * @param index - the index of the locations of the dataset
+	 * @param values - the values of the gene, in the iteration order of the locations of the index
+	 * @param transform - maps data coordinates to pixel coordinates
+	 * @param interval - the pixel interval (2d)
+	 * @param radius - the maximal distance (in data space) at which a spot influences a location
+	 * @return a KDTree of the spots within the radius of the interval (in data space), or null if there are none
+	 */
+	public static KDTree< DoubleType > candidates(
+			final LocationIndex index,
+			final double[] values,
+			final AffineGet transform,
+			final Interval interval,
+			final double radius )
+	{
+		return candidates(
+				index.createRadiusSearch(),
+				i -> new DoubleType( values[ i.get() ] ),
+				transform.inverse(),
+				interval.min( 0 ), interval.min( 1 ), interval.max( 0 ), interval.max( 1 ),
+				radius );
+	}
+
+	/**
+	 * Searches the bounding circle of the pixel interval (in data space) expanded by the radius.
+	 *
+	 * @return a KDTree of the candidate spots, or null if there are none
+	 */
+	protected static < I, S > KDTree< S > candidates(
+			final RadiusNeighborSearch< I > search,
+			final Function< I, S > toValue,
+			final AffineGet inverse,
+			final long minX,
+			final long minY,
+			final long maxX,
+			final long maxY,
+			final double radius )
+	{
+		final double[] p = new double[ 2 ];
+		final double[] q = new double[ 2 ];
+
+		p[ 0 ] = ( minX + maxX ) / 2.0;
+		p[ 1 ] = ( minY + maxY ) / 2.0;
+		inverse.apply( p, q );
+		final RealPoint center = new RealPoint( q );
+
+		double boundingRadius = 0;
+
+		for ( final long cx : new long[] { minX, maxX } )
+			for ( final long cy : new long[] { minY, maxY } )
+			{
+				p[ 0 ] = cx;
+				p[ 1 ] = cy;
+				inverse.apply( p, q );
+
+				final double dx = q[ 0 ] - center.getDoublePosition( 0 );
+				final double dy = q[ 1 ] - center.getDoublePosition( 1 );
+				boundingRadius = Math.max( boundingRadius, Math.sqrt( dx * dx + dy * dy ) );
+			}
+
+		search.search( center, boundingRadius + radius, false );
+
+		final int numCandidates = search.numNeighbors();
+
+		if ( numCandidates == 0 )
+			return null;
+
+		final List< S > values = new ArrayList<>( numCandidates );
+		final List< RealLocalizable > positions = new ArrayList<>( numCandidates );
+
+		for ( int i = 0; i < numCandidates; ++i )
+		{
+			values.add( toValue.apply( search.getSampler( i ).get() ) );
+			positions.add( new RealPoint( search.getPosition( i ) ) );
+		}
+
+		return new KDTree<>( values, positions );
+	}
+}
@@ -0,0 +1,60 @@
+package util;
+
+/**
+ * A lookup table for exp(-x) on [0, xMax] with linear interpolation, e.g. for Gaussian weights where x = d^2 / (2*sigma^2).
+ *
+ * The absolute error of the linear interpolation is bounded by h^2/8 (h = xMax / (size-1), since |d^2/dx^2 exp(-x)| &lt;= 1),
+ * for the defaults (xMax=8, size=4096) this is &lt; 5e-7. For x &gt; xMax the table returns 0.
+ *
+ * The table is immutable and can be shared between threads.
+ */
+public class ExpLookupTable
+{
+	final double[] table;
+	final double xMax, scale;
+
+	public ExpLookupTable( final double xMax, final int size )
+	{
+		if ( size < 2 )
+			throw new RuntimeException( "ExpLookupTable requires at least 2 entries: " + size );
+
+		this.xMax = xMax;
+		this.scale = ( size - 1 ) / xMax;
+
+		// one more entry so the interpolation at xMax does not need a special case
+		this.table = new double[ size + 1 ];
+
+		for ( int i = 0; i < size; ++i )
+			table[ i ] = Math.exp( -i / scale );
+
+		table[ size ] = table[ size - 1 ];
+	}
+
+	/**
+	 * @param x - the argument (&gt;= 0)
+	 * @return exp(-x) for x &lt;= xMax, otherwise 0
+	 */
+	public double exp( final double x )
+	{
+		if ( x > xMax )
+			return 0;
+
+		final double pos = x * scale;
+		final int i = (int)pos;
+		final double a = table[ i ];
+
+		return a + ( pos - i ) * ( table[ i + 1 ] - a );
+	}
+
+	public double xMax() { return xMax; }
+	public int size() { return table.length - 1; }
+
+	/**
+	 * @return the maximal absolute interpolation error (not including the cutoff at xMax)
+	 */
+	public double maxError()
+	{
+		final double h = 1.0 / scale;
+		return h * h / 8.0;
+	}
+}
@@ -1,10 +1,14 @@
 package util;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class Threads
 {
@@ -16,6 +20,12 @@ public class Threads
 	public static ExecutorService createFixedExecutorService( final int nThreads ) { return Executors.newFixedThreadPool( nThreads ); }
 	public static ExecutorService createFixedExecutorService() { return createFixedExecutorService( numThreads() ); }
 
+	/**
+	 * @return an ExecutorService that runs every task directly in the calling thread (no threads are created), e.g. for
+	 * code that requires an ExecutorService but already runs inside a task of another thread pool
+	 */
+	public static ExecutorService createSameThreadExecutorService() { return new SameThreadExecutorService(); }
+
 	public static final Vector<ImagePortion> divideIntoPortions( final long imageSize )
 	{
 		int numPortions;
@@ -74,6 +84,36 @@ public class Threads
 		}
 	}
 
+	public static class SameThreadExecutorService extends AbstractExecutorService
+	{
+		private volatile boolean shutdown = false;
+
+		@Override
+		public void execute( final Runnable command )
+		{
+			if ( shutdown )
+				throw new RejectedExecutionException( "ExecutorService was shut down." );
+
+			command.run();
+		}
+
+		@Override
+		public void shutdown() { shutdown = true; }
+
+		@Override
+		public List< Runnable > shutdownNow() { shutdown = true; return new ArrayList<>(); }
+
+		@Override
+		public boolean isShutdown() { return shutdown; }
+
+		// tasks run synchronously, so all of them are done once shutdown was called
+		@Override
+		public boolean isTerminated() { return shutdown; }
+
+		@Override
+		public boolean awaitTermination( final long timeout, final TimeUnit unit ) { return shutdown; }
+	}
+
 	public static class ImagePortion
 	{
 		public ImagePortion( final long startPosition, final long loopSize )
@@ -0,0 +1,187 @@
+import align.AlignTools;
+import align.Pairwise;
+import data.STData;
+import data.STDataStatistics;
+import data.STDataText;
+import data.STDataUtils;
+import gui.bdv.AddedGene.Rendering;
+import imglib2.ImgLib2Util;
+import imglib2.phasecorrelation.PhaseCorrelation2Workspace;
+import imglib2.phasecorrelation.PhaseCorrelationPeak2;
+import imglib2.phasecorrelation.SummedAreaTable;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.complex.ComplexDoubleType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import util.Threads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class AlignTest {
+
+	protected static final String gene = "gene";
+	protected static final double scaling = 0.2;
+
+	protected static ExecutorService service;
+
+	@BeforeAll
+	public static void setup() {
+		service = Threads.createFixedExecutorService(Threads.numThreads());
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		service.shutdown();
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {PhaseCorrelation2Workspace.verifyAll, Pairwise.numVerifiedShifts})
+	public void shift_of_the_workspace_matches_exact_cross_correlation(int numVerified) {
+		STData stDataA = createTissue(0, 0, 0);
+		STData stDataB = createTissue(25, 40, -30);
+		STDataStatistics statA = new STDataStatistics(stDataA);
+		STDataStatistics statB = new STDataStatistics(stDataB);
+		Interval interval = STDataUtils.getCommonInterval(stDataA, stDataB);
+
+		AffineTransform2D transformA = new AffineTransform2D();
+		transformA.scale(scaling);
+		RandomAccessibleInterval<DoubleType> imgA = Views.zeroMin(render(stDataA, statA, transformA, interval));
+		SummedAreaTable satA = new SummedAreaTable(imgA);
+
+		ExecutorService serviceLocal = Threads.createSameThreadExecutorService();
+		PhaseCorrelation2Workspace<DoubleType, ComplexDoubleType> workspace = Pairwise.createWorkspace(serviceLocal);
+		// only the numVerified candidates with the highest estimate from the summed-area tables are checked exactly
+		workspace.setVerification(Pairwise.crossCorrSubsampling, numVerified);
+
+		for (double angle : new double[]{0, 90, 180, 300, 335}) {
+			AffineTransform2D transformB = transformA.copy();
+			transformB.rotate(Math.toRadians(angle));
+			RandomAccessibleInterval<DoubleType> imgB = Views.zeroMin(render(stDataB, statB, transformB, interval));
+
+			PhaseCorrelationPeak2 expected = Pairwise.testPair(imgA, imgB, Pairwise.nHighest, service);
+			PhaseCorrelationPeak2 actual = Pairwise.testPair(imgA, satA, imgB, Pairwise.nHighest, workspace);
+
+			assertArrayEquals(position(expected), position(actual), 1e-9, "Shift differs for angle " + angle + ", numVerified " + numVerified);
+			assertEquals(expected.getCrossCorr(), actual.getCrossCorr(), 1e-9, "Cross correlation differs for angle " + angle + ", numVerified " + numVerified);
+		}
+
+		serviceLocal.shutdown();
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {30, 180, 250})
+	public void polar_spectrum_recovers_the_rotation(double rotation) {
+		STData stDataA = createTissue(0, 0, 0);
+		STData stDataB = createTissue(rotation, 40, -30);
+		Interval interval = STDataUtils.getCommonInterval(stDataA, stDataB);
+
+		AffineTransform2D scalingTransform = new AffineTransform2D();
+		scalingTransform.scale(scaling);
+
+		List<Pair<PhaseCorrelationPeak2, Double>> peaks = Pairwise.alignGenePairwisePolarSpectrum(
+				stDataA, new STDataStatistics(stDataA), stDataB, new STDataStatistics(stDataB), gene,
+				5, false, scalingTransform, interval, service);
+
+		// B is rotated by +rotation relative to A, so it has to be rotated back by -rotation
+		double expected = (360 - rotation) % 360;
+		double actual = peaks.get(0).getB();
+		assertTrue(angleDistance(expected, actual) < 3, "Expected angle " + expected + ", but found " + actual);
+	}
+
+	@Test
+	public void coarse_to_fine_search_matches_exhaustive_search() {
+		STData stDataA = createTissue(0, 0, 0);
+		STData stDataB = createTissue(37, -20, 25);
+		STDataStatistics statA = new STDataStatistics(stDataA);
+		STDataStatistics statB = new STDataStatistics(stDataB);
+		Interval interval = STDataUtils.getCommonInterval(stDataA, stDataB);
+
+		AffineTransform2D scalingTransform = new AffineTransform2D();
+		scalingTransform.scale(scaling);
+
+		List<Pair<PhaseCorrelationPeak2, Double>> exhaustive = Pairwise.alignGenePairwise(
+				stDataA, statA, stDataB, statB, gene, 2, 5, false, scalingTransform, interval, service);
+		List<Pair<PhaseCorrelationPeak2, Double>> coarseToFine = Pairwise.alignGenePairwiseCoarseToFine(
+				stDataA, statA, stDataB, statB, gene, 2, 10, 2.0, 5, false, scalingTransform, interval, service);
+
+		// the fine angles are a subset of the exhaustive ones, so the best one has to be identical
+		assertEquals(exhaustive.get(0).getB(), coarseToFine.get(0).getB(), 1e-9);
+		assertArrayEquals(position(exhaustive.get(0).getA()), position(coarseToFine.get(0).getA()), 1e-9);
+		assertEquals(exhaustive.get(0).getA().getCrossCorr(), coarseToFine.get(0).getA().getCrossCorr(), 1e-9);
+		assertTrue(angleDistance(360 - 37, exhaustive.get(0).getB()) <= 2);
+	}
+
+	/**
+	 * A tissue with a few overlapping expression domains (and no expression in between) on a jittered grid of spots,
+	 * rotated by the given angle (in degrees) around its center and then translated.
+	 */
+	protected static STData createTissue(double angle, double tx, double ty) {
+		Random random = new Random(17);
+		AffineTransform2D transform = new AffineTransform2D();
+		transform.rotate(Math.toRadians(angle));
+		transform.translate(300 + tx, 300 + ty);
+
+		List<Pair<double[], String>> locations = new ArrayList<>();
+		double[] values = new double[60 * 60];
+		int i = 0;
+		for (int y = 0; y < 60; ++y)
+			for (int x = 0; x < 60; ++x) {
+				double[] p = new double[]{x * 10 - 295 + 4 * (random.nextDouble() - 0.5), y * 10 - 295 + 4 * (random.nextDouble() - 0.5)};
+				values[i] = expression(p[0], p[1]);
+				transform.apply(p, p);
+				locations.add(new ValuePair<>(p, "spot" + i));
+				++i;
+			}
+
+		HashMap<String, double[]> geneMap = new HashMap<>();
+		geneMap.put(gene, values);
+		return new STDataText(locations, geneMap);
+	}
+
+	protected static double expression(double x, double y) {
+		double value = 5 * blob(x + 120, y + 80, 40, 40)
+				+ 3 * blob(x - 100, y + 30, 25, 25)
+				+ 4 * blob(x - 20, y - 130, 60, 30);
+		return value < 0.2 ? 0 : value;
+	}
+
+	protected static double blob(double x, double y, double sigmaX, double sigmaY) {
+		return Math.exp(-0.5 * (x * x / (sigmaX * sigmaX) + y * y / (sigmaY * sigmaY)));
+	}
+
+	protected static RandomAccessibleInterval<DoubleType> render(STData stData, STDataStatistics stat, AffineTransform2D transform, Interval interval) {
+		return AlignTools.display(stData, stat, gene, ImgLib2Util.transformInterval(interval, transform), transform, null, Rendering.Gauss, AlignTools.defaultSmoothnessFactor);
+	}
+
+	protected static double angleDistance(double a, double b) {
+		double distance = Math.abs(a - b) % 360;
+		return Math.min(distance, 360 - distance);
+	}
+
+	protected static double[] position(PhaseCorrelationPeak2 peak) {
+		double[] position = new double[peak.getShift().numDimensions()];
+		peak.getShift().localize(position);
+		return position;
+	}
+}
@@ -1,24 +1,56 @@
 import filter.DensityFilterFactory;
+import filter.FastGaussianFilterFactory;
 import filter.Filter;
+import filter.FilterFactory;
+import filter.FilterPipeline;
+import filter.Filters;
 import filter.GaussianFilterFactory;
+import filter.GaussianFilterFactory.WeightType;
 import filter.MeanFilterFactory;
 import filter.MedianFilterFactory;
 import filter.SingleSpotRemovingFilterFactory;
+import gui.bdv.AddedGene.Rendering;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
 import net.imglib2.KDTree;
+import net.imglib2.RealCursor;
 import net.imglib2.RealPoint;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPointSampleList;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
 import org.junit.jupiter.api.DisplayNameGeneration;
 import org.junit.jupiter.api.DisplayNameGenerator;
 import org.junit.jupiter.api.Named;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import render.GridIndex;
+import render.NearestNeighborSearchOnGrid;
+import render.RadiusCountSearchOnGrid;
+import render.RadiusCountSearchOnKDTree;
+import render.Render;
+import render.SplatRenderer;
+import util.ExpLookupTable;
+import util.Threads;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Named.named;
 
@@ -82,6 +114,303 @@ public class FilterTest {
 		assertTrue(0.0 < actualValue.getRealDouble());
 	}
 
+	@Test
+	public void grid_searches_match_kdtree_searches() {
+		RealPointSampleList<DoubleType> data = createJitteredGrid(40, 40, new Random(42));
+		assertTrue(GridIndex.isNearUniform(data));
+
+		KDTree<DoubleType> tree = new KDTree<>(data);
+		GridIndex<DoubleType> grid = new GridIndex<>(data, 1.0);
+
+		RadiusCountSearchOnKDTree<DoubleType> treeSearch = new RadiusCountSearchOnKDTree<>(tree);
+		RadiusCountSearchOnGrid<DoubleType> gridSearch = new RadiusCountSearchOnGrid<>(grid);
+		NearestNeighborSearchOnKDTree<DoubleType> treeNN = new NearestNeighborSearchOnKDTree<>(tree);
+		NearestNeighborSearchOnGrid<DoubleType> gridNN = new NearestNeighborSearchOnGrid<>(grid);
+
+		Random random = new Random(7);
+		for (int i = 0; i < 1000; ++i) {
+			// also query outside of the data
+			RealPoint point = new RealPoint(random.nextDouble() * 46 - 3, random.nextDouble() * 46 - 3);
+
+			for (double radius : new double[]{0.3, 1.0, 2.7}) {
+				treeSearch.search(point, radius, true);
+				gridSearch.search(point, radius, true);
+
+				assertEquals(treeSearch.numNeighbors(), gridSearch.numNeighbors());
+				double treeSum = 0, gridSum = 0;
+				for (int k = 0; k < treeSearch.numNeighbors(); ++k) {
+					assertEquals(treeSearch.getSquareDistance(k), gridSearch.getSquareDistance(k), 1e-12);
+					treeSum += treeSearch.getSampler(k).get().get();
+					gridSum += gridSearch.getSampler(k).get().get();
+				}
+				// the values are unique indices, so the same sum means the same neighbors
+				assertEquals(treeSum, gridSum, 0.0);
+
+				assertEquals(treeSearch.count(point, radius), gridSearch.count(point, radius));
+				assertEquals(treeSearch.atLeast(point, radius, 3), gridSearch.atLeast(point, radius, 3));
+			}
+
+			treeNN.search(point);
+			gridNN.search(point);
+			assertEquals(treeNN.getSquareDistance(), gridNN.getSquareDistance(), 1e-12);
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("provideGridParameters")
+	public void filter_on_grid_matches_filter_on_kdtree(DoubleGridFilterCreator filterCreator) {
+		RealPointSampleList<DoubleType> data = createJitteredGrid(30, 30, new Random(3));
+		KDTree<DoubleType> tree = new KDTree<>(data);
+		GridIndex<DoubleType> grid = new GridIndex<>(data, 1.0);
+
+		for (double radius : new double[]{0.5, 1.5, 4.0}) {
+			Filter<DoubleType> treeFilter = filterCreator.create(radius, tree, null);
+			Filter<DoubleType> gridFilter = filterCreator.create(radius, null, grid);
+
+			Random random = new Random(11);
+			DoubleType expected = new DoubleType();
+			DoubleType actual = new DoubleType();
+			for (int i = 0; i < 500; ++i) {
+				RealPoint point = new RealPoint(random.nextDouble() * 34 - 2, random.nextDouble() * 34 - 2);
+				treeFilter.filter(point, expected);
+				gridFilter.filter(point, actual);
+				assertEquals(expected.get(), actual.get(), 1e-9);
+			}
+		}
+	}
+
+	public static Stream<Named<DoubleGridFilterCreator>> provideGridParameters() {
+		return Stream.of(
+			named("Density Filter", (radius, tree, grid) -> tree != null ? new DensityFilterFactory<>(new DoubleType(0), radius).createFilter(tree) : new DensityFilterFactory<>(new DoubleType(0), radius).createFilter(grid)),
+			named("Median Filter", (radius, tree, grid) -> tree != null ? new MedianFilterFactory<>(new DoubleType(0), radius).createFilter(tree) : new MedianFilterFactory<>(new DoubleType(0), radius).createFilter(grid)),
+			named("Single Spot Removing Filter", (radius, tree, grid) -> tree != null ? new SingleSpotRemovingFilterFactory<>(new DoubleType(0), radius).createFilter(tree) : new SingleSpotRemovingFilterFactory<>(new DoubleType(0), radius).createFilter(grid)),
+			named("Mean Filter", (radius, tree, grid) -> tree != null ? new MeanFilterFactory<DoubleType, DoubleType>(new DoubleType(0), radius).createFilter(tree) : new MeanFilterFactory<DoubleType, DoubleType>(new DoubleType(0), radius).createFilter(grid)),
+			named("Gaussian Filter", (radius, tree, grid) -> tree != null ? new GaussianFilterFactory<DoubleType, DoubleType>(new DoubleType(0), radius).createFilter(tree) : new GaussianFilterFactory<DoubleType, DoubleType>(new DoubleType(0), radius).createFilter(grid)));
+	}
+
+	@Test
+	public void exp_lookup_table_is_within_its_error_bound() {
+		ExpLookupTable lut = new ExpLookupTable(8.0, 4096);
+		assertTrue(lut.maxError() < 5e-7);
+
+		for (double x = 0; x <= 8.0; x += 0.000731)
+			assertEquals(Math.exp(-x), lut.exp(x), lut.maxError() + 1e-15);
+
+		assertEquals(0.0, lut.exp(8.0001), 0.0);
+	}
+
+	@Test
+	public void fast_gaussian_filter_matches_gaussian_filter_within_documented_error() {
+		// values in [0,1), spacing 1
+		RealPointSampleList<DoubleType> data = createJitteredGrid(30, 30, new Random(13));
+		Random random = new Random(17);
+		for (DoubleType value : data)
+			value.set(random.nextDouble());
+		KDTree<DoubleType> tree = new KDTree<>(data);
+
+		for (double sigma : new double[]{0.5, 1.0, 2.5}) {
+			GaussianFilterFactory<DoubleType, DoubleType> exactFactory = new GaussianFilterFactory<>(new DoubleType(0), sigma, WeightType.BY_SUM_OF_WEIGHTS);
+			FastGaussianFilterFactory<DoubleType, DoubleType> fastFactory = new FastGaussianFilterFactory<>(new DoubleType(0), sigma, WeightType.BY_SUM_OF_WEIGHTS);
+			Filter<DoubleType> exact = exactFactory.createFilter(tree);
+			Filter<DoubleType> fast = fastFactory.createFilter(tree);
+
+			// the ignored neighbors beyond the cutoff have at most this fraction of the total weight (times the maximal value of 1)
+			double cutoff = fastFactory.getCutoff();
+			double tolerance = Math.exp(-cutoff * cutoff / 2) + 1e-4;
+
+			DoubleType expected = new DoubleType();
+			DoubleType actual = new DoubleType();
+			// the bound holds for evenly spaced spots, i.e. inside the grid
+			for (int i = 0; i < 500; ++i) {
+				RealPoint point = new RealPoint(random.nextDouble() * 29, random.nextDouble() * 29);
+				exact.filter(point, expected);
+				fast.filter(point, actual);
+				assertEquals(expected.get(), actual.get(), tolerance);
+			}
+		}
+	}
+
+	@Test
+	public void splat_rendering_matches_virtual_rendering() {
+		RealPointSampleList<DoubleType> data = createRandomValues(createJitteredGrid(30, 30, new Random(19)), new Random(23));
+		AffineTransform2D transform = createRenderTransform();
+		Interval interval = new FinalInterval(new long[]{-20, -30}, new long[]{90, 80});
+
+		for (WeightType weightType : WeightType.values()) {
+			FastGaussianFilterFactory<DoubleType, DoubleType> factory = new FastGaussianFilterFactory<>(new DoubleType(0), 1.2, weightType);
+
+			ExecutorService service = Threads.createFixedExecutorService(4);
+			RandomAccessibleInterval<DoubleType> splatted = SplatRenderer.render(data, transform, interval, factory, service);
+			RandomAccessibleInterval<DoubleType> singleThreaded = SplatRenderer.render(data, transform, interval, factory);
+			service.shutdown();
+
+			RandomAccessibleInterval<DoubleType> virtual = Views.interval(RealViews.affine(Render.render(data, factory), transform), interval);
+
+			assertImagesEqual(virtual, splatted, 1e-9);
+			assertImagesEqual(virtual, singleThreaded, 1e-9);
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("provideRenderings")
+	public void rasterized_rendering_matches_virtual_rendering(Rendering rendering) {
+		RealPointSampleList<DoubleType> data = createRandomValues(createJitteredGrid(30, 30, new Random(29)), new Random(31));
+		AffineTransform2D transform = createRenderTransform();
+		Interval interval = new FinalInterval(new long[]{-20, -30}, new long[]{90, 80});
+		double medianDistance = 1.0;
+		double renderingFactor = 1.5;
+
+		ExecutorService service = Threads.createFixedExecutorService(4);
+		RandomAccessibleInterval<DoubleType> rasterized = Render.rasterize(data, medianDistance, rendering, renderingFactor, transform, interval, service);
+		service.shutdown();
+
+		RandomAccessibleInterval<DoubleType> virtual = Views.interval(RealViews.affine(Render.createRRA(data, medianDistance, rendering, renderingFactor), transform), interval);
+
+		assertTrue(Render.canRasterize(interval));
+		assertImagesEqual(virtual, rasterized, 1e-9);
+	}
+
+	public static Stream<Named<Rendering>> provideRenderings() {
+		return Stream.of(Rendering.values()).map(rendering -> named(rendering.name(), rendering));
+	}
+
+	@Test
+	public void huge_intervals_are_not_rasterized_into_memory() {
+		assertFalse(Render.canRasterize(new FinalInterval(100000, 100000)));
+	}
+
+	protected static AffineTransform2D createRenderTransform() {
+		// rotated and scaled, so pixels and spots are not aligned
+		AffineTransform2D transform = new AffineTransform2D();
+		transform.rotate(0.3);
+		transform.scale(2.5);
+		transform.translate(5.3, -2.1);
+		return transform;
+	}
+
+	protected static RealPointSampleList<DoubleType> createRandomValues(RealPointSampleList<DoubleType> data, Random random) {
+		for (DoubleType value : data)
+			value.set(random.nextDouble() * 10);
+		return data;
+	}
+
+	protected static void assertImagesEqual(RandomAccessibleInterval<DoubleType> expected, RandomAccessibleInterval<DoubleType> actual, double delta) {
+		assertEquals(expected.dimension(0), actual.dimension(0));
+		assertEquals(expected.dimension(1), actual.dimension(1));
+
+		Cursor<DoubleType> cursor = Views.iterable(expected).localizingCursor();
+		RandomAccess<DoubleType> randomAccess = actual.randomAccess();
+		while (cursor.hasNext()) {
+			double value = cursor.next().get();
+			randomAccess.setPosition(cursor);
+			assertEquals(value, randomAccess.get().get(), delta, "pixel (" + cursor.getLongPosition(0) + "," + cursor.getLongPosition(1) + ")");
+		}
+	}
+
+	public static Stream<Named<RealPointSampleList<DoubleType>>> providePipelineData() {
+		return Stream.of(
+			named("uniform", createJitteredGrid(40, 40, new Random(5))),
+			named("clustered", createClusters(5, 300, new Random(5))));
+	}
+
+	@ParameterizedTest
+	@MethodSource("providePipelineData")
+	public void pipeline_matches_filters_applied_one_after_another(RealPointSampleList<DoubleType> data) {
+		List<FilterFactory<DoubleType, DoubleType>> stages = createStages();
+		ExecutorService service = Threads.createFixedExecutorService(4);
+
+		IterableRealInterval<DoubleType> chain = data;
+		for (FilterFactory<DoubleType, DoubleType> stage : stages)
+			chain = Filters.filterToArray(chain, stage, service);
+		double[] expected = FilterPipeline.values(chain);
+
+		FilterPipeline pipeline = FilterPipeline.create(data, FilterPipeline.maxRadius(stages), Long.MAX_VALUE, service);
+		assertNotNull(pipeline);
+		double[] actual = pipeline.filter(FilterPipeline.values(data), stages, service);
+
+		// without a memory limit the static version uses a pipeline as well
+		double[] actualStatic = FilterPipeline.values(FilterPipeline.filter(data, stages, service));
+		service.shutdown();
+
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], actual[i], 1e-9);
+			assertEquals(expected[i], actualStatic[i], 1e-9);
+		}
+	}
+
+	@Test
+	public void pipeline_gives_up_when_exceeding_the_memory_limit() {
+		RealPointSampleList<DoubleType> data = createJitteredGrid(40, 40, new Random(5));
+		List<FilterFactory<DoubleType, DoubleType>> stages = createStages();
+		double radius = FilterPipeline.maxRadius(stages);
+
+		// every spot is its own neighbor, so there are more than data.size() neighbors
+		assertNull(FilterPipeline.create(data, radius, data.size(), Threads.createSameThreadExecutorService()));
+		assertTrue(FilterPipeline.estimateMemory(data, radius) > FilterPipeline.bytesPerNeighbor * data.size());
+		assertTrue(!FilterPipeline.supports(stages, data, FilterPipeline.bytesPerNeighbor * data.size()));
+	}
+
+	@ParameterizedTest
+	@MethodSource("providePipelineData")
+	public void number_of_neighbors_is_estimated_within_a_factor_of_two(RealPointSampleList<DoubleType> data) {
+		double radius = 3.0;
+		KDTree<DoubleType> tree = new KDTree<>(data);
+		RadiusCountSearchOnKDTree<DoubleType> search = new RadiusCountSearchOnKDTree<>(tree);
+
+		long actual = 0;
+		for (RealPoint point : asPoints(data))
+			actual += search.count(point, radius);
+
+		double estimate = FilterPipeline.estimateNumNeighbors(data, radius);
+		assertTrue(estimate > actual / 2.0 && estimate < actual * 2.0, "estimate " + estimate + " vs. " + actual);
+	}
+
+	protected static List<FilterFactory<DoubleType, DoubleType>> createStages() {
+		List<FilterFactory<DoubleType, DoubleType>> stages = new ArrayList<>();
+		stages.add(new SingleSpotRemovingFilterFactory<>(new DoubleType(0), 1.5));
+		stages.add(new MedianFilterFactory<>(new DoubleType(0), 2.0));
+		stages.add(new GaussianFilterFactory<>(new DoubleType(0), 1.5, WeightType.BY_SUM_OF_WEIGHTS));
+		stages.add(new MeanFilterFactory<>(new DoubleType(0), 2.5));
+		return stages;
+	}
+
+	protected static List<RealPoint> asPoints(IterableRealInterval<?> data) {
+		List<RealPoint> points = new ArrayList<>();
+		RealCursor<?> cursor = data.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			points.add(new RealPoint(cursor));
+		}
+		return points;
+	}
+
+	/**
+	 * @return spots in gaussian clusters with a standard deviation of 3, the value of every spot is its (unique) index
+	 */
+	protected static RealPointSampleList<DoubleType> createClusters(int numClusters, int spotsPerCluster, Random random) {
+		RealPointSampleList<DoubleType> samples = new RealPointSampleList<>(2);
+		int i = 0;
+		for (int c = 0; c < numClusters; ++c) {
+			double cx = random.nextDouble() * 100, cy = random.nextDouble() * 100;
+			for (int j = 0; j < spotsPerCluster; ++j)
+				samples.add(new RealPoint(cx + 3 * random.nextGaussian(), cy + 3 * random.nextGaussian()), new DoubleType(i++));
+		}
+		return samples;
+	}
+
+	/**
+	 * @return a jittered grid of spots with spacing 1, the value of every spot is its (unique) index
+	 */
+	protected static RealPointSampleList<DoubleType> createJitteredGrid(int width, int height, Random random) {
+		RealPointSampleList<DoubleType> samples = new RealPointSampleList<>(2);
+		int i = 0;
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				samples.add(new RealPoint(x + 0.4 * (random.nextDouble() - 0.5), y + 0.4 * (random.nextDouble() - 0.5)), new DoubleType(i++));
+		return samples;
+	}
+
 	protected KDTree<DoubleType> createSingleNodeTree() {
 		RealPointSampleList<DoubleType> samples = new RealPointSampleList<>(2);
 		samples.add(new RealPoint(0.0, 0.0), new DoubleType(1.0));
@@ -98,4 +427,8 @@ public class FilterTest {
 	protected interface DoubleFilterCreator {
 		Filter<DoubleType> create(double radius, KDTree<DoubleType> tree);
 	}
+
+	protected interface DoubleGridFilterCreator {
+		Filter<DoubleType> create(double radius, KDTree<DoubleType> tree, GridIndex<DoubleType> grid);
+	}
 }
\ No newline at end of file
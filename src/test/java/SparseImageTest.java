@@ -62,6 +62,32 @@ public class SparseImageTest {
 		TestUtils.assertRaiEquals(sparse, newCsc);
 	}
 
+	@ParameterizedTest
+	@MethodSource("setupSparseImages")
+	public void switching_layout_is_correct(CompressedStorageRai<DoubleType, LongType> sparse) {
+		CompressedStorageRai<DoubleType, LongType> switched = CompressedStorageRai.switchLayout(sparse);
+		assertTrue((sparse instanceof CsrRandomAccessibleInterval) == (switched instanceof CscRandomAccessibleInterval));
+		TestUtils.assertRaiEquals(sparse, switched);
+		TestUtils.assertRaiEquals(sparse, CompressedStorageRai.switchLayout(switched));
+	}
+
+	@ParameterizedTest
+	@MethodSource("setupSparseImages")
+	public void cell_backed_conversion_is_correct(CompressedStorageRai<DoubleType, LongType> sparse) {
+		final long maxArraySize = CompressedStorageRai.maxArraySize;
+		final int storageCellSize = CompressedStorageRai.storageCellSize;
+		try {
+			CompressedStorageRai.maxArraySize = 2;
+			CompressedStorageRai.storageCellSize = 2;
+			TestUtils.assertRaiEquals(sparse, CompressedStorageRai.convertToSparse(sparse, 0));
+			TestUtils.assertRaiEquals(sparse, CompressedStorageRai.switchLayout(sparse));
+		}
+		finally {
+			CompressedStorageRai.maxArraySize = maxArraySize;
+			CompressedStorageRai.storageCellSize = storageCellSize;
+		}
+	}
+
 	@Test
 	public void CSC_is_CSR_transposed() {
 		CsrRandomAccessibleInterval<DoubleType, LongType> csr = setupCsr();
@@ -0,0 +1,108 @@
+"""
+Writes the test fixture anndata-blosc.zarr (read by IOTest): a tiny AnnData object stored with
+anndata.write_zarr, i.e. with zarr's default compressor Blosc(cname='lz4', clevel=5, shuffle=1) for all
+arrays, including the 'vlen-utf8' string arrays of the obs/var indices.
+
+If anndata is installed, the fixture is written by anndata itself:
+
+    pip install anndata zarr
+    python write_anndata_blosc_fixture.py
+
+Otherwise the same store is written with the standard library only, reproducing the layout of
+anndata 0.9 / zarr 2 (.zgroup/.zarray/.zattrs and encoding attributes). All chunks are smaller than
+128 bytes, which c-blosc never compresses, so the chunks are the 'memcpyed' blosc frames that numcodecs
+produces for such small buffers (16 byte header followed by the raw bytes).
+"""
+
+import json
+import os
+import shutil
+import struct
+
+BARCODES = ["AAAC", "AAAG", "AACT", "AAGT"]
+GENES = ["Calm2", "Hpca", "Ubb"]
+# cells x genes
+X = [[0.0, 1.5, 2.0],
+     [0.25, 0.0, 3.0],
+     [4.0, 0.0, 0.5],
+     [1.0, 2.0, 0.0]]
+# cells x 2
+SPATIAL = [[-1.0, 1.0],
+           [2.5, 2.0],
+           [17.0, -5.0],
+           [3.0, 0.5]]
+
+PATH = os.path.join(os.path.dirname(os.path.abspath(__file__)), "anndata-blosc.zarr")
+BLOSC = {"blocksize": 0, "clevel": 5, "cname": "lz4", "id": "blosc", "shuffle": 1}
+
+
+def write_with_anndata():
+    import anndata
+    import numpy as np
+    import pandas as pd
+
+    adata = anndata.AnnData(
+        X=np.array(X, dtype=np.float32),
+        obs=pd.DataFrame(index=BARCODES),
+        var=pd.DataFrame(index=GENES),
+        obsm={"spatial": np.array(SPATIAL, dtype=np.float64)})
+    adata.write_zarr(PATH)
+
+
+def write_json(path, content):
+    with open(path, "w") as f:
+        json.dump(content, f, indent=4, sort_keys=True)
+
+
+def blosc_frame(data, typesize):
+    # version 2, lz4 format 1, flags: shuffle | memcpyed | lz4 << 5, typesize, nbytes, blocksize, cbytes
+    assert len(data) < 128
+    return struct.pack("<BBBBiii", 2, 1, 0x01 | 0x02 | 0x20, typesize, len(data), len(data), len(data) + 16) + data
+
+
+def group(path, encoding_type, encoding_version, attributes=None):
+    os.makedirs(path)
+    write_json(os.path.join(path, ".zgroup"), {"zarr_format": 2})
+    attrs = {"encoding-type": encoding_type, "encoding-version": encoding_version}
+    attrs.update(attributes or {})
+    write_json(os.path.join(path, ".zattrs"), attrs)
+
+
+def array(path, shape, dtype, data, typesize, chunk_key, filters=None, fill_value=0.0, encoding_type="array"):
+    os.makedirs(path)
+    write_json(os.path.join(path, ".zarray"), {
+        "chunks": shape, "compressor": BLOSC, "dtype": dtype, "fill_value": fill_value, "filters": filters,
+        "order": "C", "shape": shape, "zarr_format": 2})
+    write_json(os.path.join(path, ".zattrs"), {"encoding-type": encoding_type, "encoding-version": "0.2.0"})
+    with open(os.path.join(path, chunk_key), "wb") as f:
+        f.write(blosc_frame(data, typesize))
+
+
+def string_array(path, strings):
+    # 'vlen-utf8': number of items, then length and bytes of every item (little endian)
+    data = struct.pack("<i", len(strings))
+    for s in strings:
+        data += struct.pack("<i", len(s.encode("utf-8"))) + s.encode("utf-8")
+    array(path, [len(strings)], "|O", data, 1, "0", filters=[{"id": "vlen-utf8"}], fill_value=None,
+          encoding_type="string-array")
+
+
+def write_by_hand():
+    group(PATH, "anndata", "0.1.0")
+    array(os.path.join(PATH, "X"), [len(X), len(X[0])], "<f4",
+          b"".join(struct.pack("<f", v) for row in X for v in row), 4, "0.0")
+    for name in ["obsm", "varm", "obsp", "varp", "layers", "uns"]:
+        group(os.path.join(PATH, name), "dict", "0.1.0")
+    array(os.path.join(PATH, "obsm", "spatial"), [len(SPATIAL), 2], "<f8",
+          b"".join(struct.pack("<d", v) for row in SPATIAL for v in row), 8, "0.0")
+    for name, index in [("obs", BARCODES), ("var", GENES)]:
+        group(os.path.join(PATH, name), "dataframe", "0.2.0", {"_index": "_index", "column-order": []})
+        string_array(os.path.join(PATH, name, "_index"), index)
+
+
+if __name__ == "__main__":
+    shutil.rmtree(PATH, ignore_errors=True)
+    try:
+        write_with_anndata()
+    except ImportError:
+        write_by_hand()